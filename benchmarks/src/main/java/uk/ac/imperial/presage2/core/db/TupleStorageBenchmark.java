@@ -0,0 +1,109 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.db;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * One timestep's worth of tuple writes through {@link PersistentSimulation}:
+ * an agent-time tuple for every agent, or a single simulation-time tuple.
+ * Subclasses provide the {@link TupleStorageService} to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public abstract class TupleStorageBenchmark {
+
+	@Param({ "100", "1000" })
+	public int agents;
+
+	DatabaseService db;
+	PersistentSimulation sim;
+	UUID[] ids;
+	int t = 0;
+
+	/**
+	 * Create the storage to benchmark. It must also implement
+	 * {@link DatabaseService}.
+	 */
+	protected abstract TupleStorageService createStorage() throws Exception;
+
+	/**
+	 * Remove anything left behind by the storage after it has been stopped.
+	 */
+	protected void cleanUp() throws Exception {
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		TupleStorageService sto = createStorage();
+		db = (DatabaseService) sto;
+		db.start();
+		sim = sto.createSimulation("benchmark", getClass().getName(),
+				"RUNNING", Integer.MAX_VALUE);
+		sto.setSimulation(sim);
+		ids = new UUID[agents];
+		for (int i = 0; i < agents; i++) {
+			ids[i] = Random.randomUUID();
+			sto.createAgent(ids[i], "a" + i);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		db.stop();
+		cleanUp();
+	}
+
+	@Benchmark
+	public void storeAgentTuples() {
+		t++;
+		for (int i = 0; i < agents; i++) {
+			sim.storeTuple("benchmark.int", ids[i], t, i);
+			sim.storeTuple("benchmark.str", ids[i], t, "value");
+		}
+	}
+
+	@Benchmark
+	public void storeSimulationTuple() {
+		sim.storeTuple("benchmark.int", ++t, agents);
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link EventBusImpl#publish(Event)} to a number of subscribed
+ * listeners, half of which listen for the published type and half for a
+ * supertype of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EventBusBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	public int listeners;
+
+	EventBusImpl bus;
+
+	// strong references to the listeners, the bus only holds weak ones.
+	final List<Object> subscribed = new ArrayList<Object>();
+
+	final Event event = new ChildEvent();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		bus = new EventBusImpl();
+		for (int i = 0; i < listeners; i++) {
+			Object l = i % 2 == 0 ? new ChildListener() : new ParentListener();
+			subscribed.add(l);
+			bus.subscribe(l);
+		}
+	}
+
+	@Benchmark
+	public void publish() {
+		bus.publish(event);
+	}
+
+	public static class ParentEvent implements Event {
+	}
+
+	public static class ChildEvent extends ParentEvent {
+	}
+
+	public static class ParentListener {
+		int count = 0;
+
+		@EventListener
+		public void onEvent(ParentEvent e) {
+			count++;
+		}
+	}
+
+	public static class ChildListener {
+		int count = 0;
+
+		@EventListener
+		public void onEvent(ChildEvent e) {
+			count++;
+		}
+	}
+
+}
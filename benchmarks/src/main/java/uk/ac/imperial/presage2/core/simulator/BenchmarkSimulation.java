@@ -0,0 +1,52 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link RunnableSimulation} for use in benchmarks, which are stepped
+ * manually rather than run to completion.
+ */
+public abstract class BenchmarkSimulation extends RunnableSimulation {
+
+	/**
+	 * Load parameters and initialise the simulation. The finish time is set
+	 * so that the simulation never finishes by itself.
+	 * 
+	 * @param params
+	 *            parameters other than <code>finishTime</code>.
+	 */
+	public void start(Map<String, String> params) throws Exception {
+		Map<String, String> all = new HashMap<String, String>(params);
+		all.put("finishTime", Integer.toString(Integer.MAX_VALUE));
+		loadParameters(all);
+		initialise();
+	}
+
+	/**
+	 * Stop the schedule executor's threads.
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Singleton;
+
+/**
+ * Time taken by {@link RunnableSimulation#step()} for a population of agents
+ * whose step function does no work, i.e. the overhead of the simulation loop
+ * itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class StepBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int agents;
+
+	@Param({ "MULTI_THREADED", "FORK_JOIN" })
+	public String scheduleExecutor;
+
+	TrivialSimulation sim;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		sim = new TrivialSimulation(agents);
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("scheduleExecutor", scheduleExecutor);
+		sim.start(params);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sim.shutdown();
+	}
+
+	@Benchmark
+	public boolean step() {
+		return sim.step();
+	}
+
+	public static class TrivialSimulation extends BenchmarkSimulation {
+
+		final int agents;
+
+		public TrivialSimulation(int agents) {
+			super();
+			this.agents = agents;
+		}
+
+		@Override
+		public void initialiseScenario(Scenario scenario) {
+			for (int i = 0; i < agents; i++) {
+				scenario.addObject(new TrivialAgent());
+			}
+			addModule(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(SharedStateStorage.class).to(MappedSharedState.class)
+							.in(Singleton.class);
+				}
+			});
+		}
+	}
+
+	public static class TrivialAgent {
+
+		int steps = 0;
+
+		@Step
+		public void step(int t) {
+			steps++;
+		}
+	}
+
+}
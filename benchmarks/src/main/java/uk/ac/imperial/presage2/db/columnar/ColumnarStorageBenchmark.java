@@ -0,0 +1,57 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.io.File;
+
+import uk.ac.imperial.presage2.core.db.TupleStorageBenchmark;
+import uk.ac.imperial.presage2.core.db.TupleStorageService;
+
+/**
+ * {@link TupleStorageBenchmark} for {@link ColumnarStorage} writing to a
+ * temporary directory.
+ */
+public class ColumnarStorageBenchmark extends TupleStorageBenchmark {
+
+	File dir;
+
+	@Override
+	protected TupleStorageService createStorage() throws Exception {
+		dir = File.createTempFile("presage2-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		return new ColumnarStorage(dir.getPath(), 16);
+	}
+
+	@Override
+	protected void cleanUp() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.imperial.presage2.core.environment.IntStateKey;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * One timestep's worth of shared state changes, one per participant, followed
+ * by the commit at {@link MappedSharedState#incrementTime()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SharedStateBenchmark {
+
+	static final IntStateKey COUNTER = new IntStateKey("benchmark.counter");
+
+	@Param({ "1000", "100000" })
+	public int participants;
+
+	@Param({ "MAPPED", "STRIPED" })
+	public String storage;
+
+	MappedSharedState state;
+	UUID[] ids;
+	int[] slots;
+	int t = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		state = storage.equals("STRIPED") ? new StripedSharedState()
+				: new MappedSharedState();
+		ids = new UUID[participants];
+		slots = new int[participants];
+		for (int i = 0; i < participants; i++) {
+			ids[i] = Random.randomUUID();
+			slots[i] = state.getSlot(ids[i]);
+			state.create("benchmark.value", ids[i], 0);
+			state.changeInt(COUNTER, slots[i], 0);
+		}
+		state.incrementTime();
+	}
+
+	@Benchmark
+	public void changeAndCommit() {
+		t++;
+		for (int i = 0; i < participants; i++) {
+			state.change("benchmark.value", ids[i], t);
+		}
+		state.incrementTime();
+	}
+
+	@Benchmark
+	public void typedChangeAndCommit() {
+		t++;
+		for (int i = 0; i < participants; i++) {
+			state.changeInt(COUNTER, slots[i], t);
+		}
+		state.incrementTime();
+	}
+
+}
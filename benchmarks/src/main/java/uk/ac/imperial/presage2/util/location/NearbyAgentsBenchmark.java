@@ -0,0 +1,145 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.imperial.presage2.core.simulator.BenchmarkSimulation;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.util.environment.AbstractEnvironmentModule;
+import uk.ac.imperial.presage2.util.location.area.Area;
+import uk.ac.imperial.presage2.util.location.area.AreaService;
+import uk.ac.imperial.presage2.util.participant.AbstractParticipant;
+import uk.ac.imperial.presage2.util.participant.HasPerceptionRange;
+
+/**
+ * Cost of a single {@link ParticipantLocationService#getNearbyAgents()} call
+ * with each of the available lookup strategies. Agents are spread uniformly
+ * at a fixed density.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class NearbyAgentsBenchmark {
+
+	static final double SPACING = 10;
+	static final double PERCEPTION_RANGE = 25;
+
+	@Param({ "1000", "10000" })
+	public int agents;
+
+	/**
+	 * SCAN: check every participant; GRID: {@link SpatialIndexService};
+	 * KDTREE: {@link SpatialQueryService}.
+	 */
+	@Param({ "SCAN", "GRID", "KDTREE" })
+	public String index;
+
+	BenchmarkSimulation sim;
+	ParticipantLocationService[] services;
+	int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final java.util.Random rnd = new java.util.Random(0);
+		final double side = Math.sqrt(agents) * SPACING;
+		final SeeingAgent[] population = new SeeingAgent[agents];
+		for (int i = 0; i < agents; i++) {
+			population[i] = new SeeingAgent("a" + i, new Location(
+					rnd.nextDouble() * side, rnd.nextDouble() * side),
+					PERCEPTION_RANGE);
+		}
+		sim = new BenchmarkSimulation() {
+			@Override
+			public void initialiseScenario(Scenario s) {
+				AbstractEnvironmentModule env = new AbstractEnvironmentModule()
+						.addGlobalEnvironmentService(AreaService.class)
+						.addParticipantEnvironmentService(ParticipantLocationService.class);
+				if (index.equals("GRID"))
+					env.addGlobalEnvironmentService(SpatialIndexService.class);
+				else if (index.equals("KDTREE"))
+					env.addGlobalEnvironmentService(SpatialQueryService.class);
+				addModule(env);
+				addModule(Area.Bind.area2D((int) side + 1, (int) side + 1));
+				for (SeeingAgent a : population) {
+					s.addAgent(a);
+				}
+			}
+		};
+		sim.start(Collections.<String, String> emptyMap());
+		sim.step();
+		services = new ParticipantLocationService[agents];
+		for (int i = 0; i < agents; i++) {
+			services[i] = population[i]
+					.getEnvironmentService(ParticipantLocationService.class);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sim.shutdown();
+	}
+
+	@Benchmark
+	public Map<UUID, Location> getNearbyAgents() {
+		final ParticipantLocationService s = services[next];
+		next = (next + 1) % services.length;
+		return s.getNearbyAgents();
+	}
+
+	public static class SeeingAgent extends AbstractParticipant implements
+			HasPerceptionRange {
+
+		public State<Location> loc;
+		final double perceptionRange;
+
+		public SeeingAgent(String name, Location loc, double perceptionRange) {
+			super(UUID.randomUUID(), name);
+			this.loc = new State<Location>("util.location", loc);
+			this.perceptionRange = perceptionRange;
+		}
+
+		@Override
+		public double getPerceptionRange() {
+			return perceptionRange;
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.imperial.presage2.core.environment.ActionHandlingException;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.simulator.BenchmarkSimulation;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.util.environment.AbstractEnvironmentModule;
+import uk.ac.imperial.presage2.util.location.Location;
+import uk.ac.imperial.presage2.util.location.SpatialIndexService;
+import uk.ac.imperial.presage2.util.participant.AbstractParticipant;
+
+/**
+ * A timestep in which every agent sends one {@link BroadcastMessage}, measuring
+ * delivery through the {@link MessageHandler} with and without a
+ * {@link NetworkRangeConstraint}. Agents are spread uniformly at a fixed
+ * density, so each has a similar number of neighbours at every population
+ * size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BroadcastBenchmark {
+
+	static final double SPACING = 10;
+	static final double COMM_RANGE = 15;
+
+	@Param({ "100", "1000" })
+	public int agents;
+
+	/**
+	 * NONE: fully connected network; RANGE: {@link NetworkRangeConstraint};
+	 * RANGE_INDEXED: {@link NetworkRangeConstraint} with a
+	 * {@link SpatialIndexService}.
+	 */
+	@Param({ "NONE", "RANGE", "RANGE_INDEXED" })
+	public String constraint;
+
+	BenchmarkSimulation sim;
+	NetworkConnector[] connectors;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final java.util.Random rnd = new java.util.Random(0);
+		final double side = Math.sqrt(agents) * SPACING;
+		final BroadcastAgent[] population = new BroadcastAgent[agents];
+		for (int i = 0; i < agents; i++) {
+			population[i] = new BroadcastAgent("a" + i, new Location(
+					rnd.nextDouble() * side, rnd.nextDouble() * side),
+					COMM_RANGE);
+		}
+		sim = new BenchmarkSimulation() {
+			@Override
+			public void initialiseScenario(Scenario s) {
+				AbstractEnvironmentModule env = new AbstractEnvironmentModule()
+						.addParticipantEnvironmentService(BasicNetworkConnector.class);
+				if (constraint.equals("NONE")) {
+					addModule(NetworkModule.fullyConnectedNetworkModule());
+				} else {
+					if (constraint.equals("RANGE_INDEXED"))
+						env.addGlobalEnvironmentService(SpatialIndexService.class);
+					Set<Class<? extends NetworkConstraint>> constraints = new HashSet<Class<? extends NetworkConstraint>>();
+					constraints.add(NetworkRangeConstraint.class);
+					addModule(NetworkModule.constrainedNetworkModule(constraints));
+				}
+				addModule(env);
+				for (BroadcastAgent a : population) {
+					s.addAgent(a);
+				}
+			}
+		};
+		sim.start(Collections.<String, String> emptyMap());
+		sim.step();
+		connectors = new NetworkConnector[agents];
+		for (int i = 0; i < agents; i++) {
+			connectors[i] = population[i]
+					.getEnvironmentService(BasicNetworkConnector.class);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sim.shutdown();
+	}
+
+	@Benchmark
+	public void broadcast(Blackhole bh) throws ActionHandlingException {
+		for (NetworkConnector c : connectors) {
+			c.sendMessage(new BroadcastMessage(Performative.INFORM, c
+					.getAddress(), 0));
+		}
+		sim.step();
+		for (NetworkConnector c : connectors) {
+			bh.consume(c.getMessages().size());
+			c.getMessages().clear();
+		}
+	}
+
+	public static class BroadcastAgent extends AbstractParticipant {
+
+		public State<Location> loc;
+		public State<Double> commRange;
+
+		public BroadcastAgent(String name, Location loc, double commRange) {
+			super(UUID.randomUUID(), name);
+			this.loc = new State<Location>("util.location", loc);
+			this.commRange = new State<Double>("network.commrange", commRange);
+		}
+
+	}
+
+}
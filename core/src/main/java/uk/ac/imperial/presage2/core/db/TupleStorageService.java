@@ -134,6 +134,57 @@ public abstract class TupleStorageService implements StorageService {
 	protected abstract void storeTuple(long id, String key, UUID agent, int t,
 			double value);
 
+	/**
+	 * Store the value of <code>key</code> at time <code>t</code> for each of
+	 * <code>agents</code>. Implementations should override this where they
+	 * can write a column more cheaply than one tuple at a time.
+	 */
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			int[] values) {
+		checkLength(agents, values.length);
+		for (int i = 0; i < agents.length; i++) {
+			storeTuple(id, key, agents[i], t, values[i]);
+		}
+	}
+
+	/**
+	 * Store the value of <code>key</code> at time <code>t</code> for each of
+	 * <code>agents</code>. Implementations should override this where they
+	 * can write a column more cheaply than one tuple at a time.
+	 */
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			double[] values) {
+		checkLength(agents, values.length);
+		for (int i = 0; i < agents.length; i++) {
+			storeTuple(id, key, agents[i], t, values[i]);
+		}
+	}
+
+	/**
+	 * Store several properties of one agent.
+	 */
+	protected void storeTuples(long id, UUID agent, Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			storeTuple(id, e.getKey(), agent, e.getValue());
+		}
+	}
+
+	/**
+	 * Store several properties of one agent at time <code>t</code>.
+	 */
+	protected void storeTuples(long id, UUID agent, int t,
+			Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			storeTuple(id, e.getKey(), agent, t, e.getValue());
+		}
+	}
+
+	protected static void checkLength(UUID[] agents, int values) {
+		if (agents.length != values)
+			throw new IllegalArgumentException("Got " + values
+					+ " values for " + agents.length + " agents.");
+	}
+
 	protected abstract Set<String> fetchParameterKeys(long id);
 
 	protected abstract String fetchParameter(long id, String key);
@@ -348,6 +399,17 @@ public abstract class TupleStorageService implements StorageService {
 			TupleStorageService.this.storeTuple(id, key, agent, t, value);
 		}
 
+		@Override
+		public void storeTuples(String key, int t, UUID[] agents, int[] values) {
+			TupleStorageService.this.storeTuples(id, key, t, agents, values);
+		}
+
+		@Override
+		public void storeTuples(String key, int t, UUID[] agents,
+				double[] values) {
+			TupleStorageService.this.storeTuples(id, key, t, agents, values);
+		}
+
 		@Override
 		public PersistentEnvironment getEnvironment() {
 			return this;
@@ -434,6 +496,11 @@ public abstract class TupleStorageService implements StorageService {
 			storeTuple(simId, key, id, value);
 		}
 
+		@Override
+		public void setProperties(Map<String, String> properties) {
+			storeTuples(simId, id, properties);
+		}
+
 		@Override
 		public TransientAgentState getState(int time) {
 			return new TState(time);
@@ -449,6 +516,11 @@ public abstract class TupleStorageService implements StorageService {
 			storeTuple(simId, key, id, t, value);
 		}
 
+		@Override
+		public void setProperties(int t, Map<String, String> properties) {
+			storeTuples(simId, id, t, properties);
+		}
+
 		protected class TState implements TransientAgentState {
 
 			final int t;
@@ -59,6 +59,22 @@ public interface PersistentAgent {
 
 	void setProperty(String key, int t, String value);
 
+	/**
+	 * Set several properties associated with this agent at once.
+	 * 
+	 * @param properties
+	 */
+	void setProperties(Map<String, String> properties);
+
+	/**
+	 * Set several properties associated with this agent at time
+	 * <code>t</code> at once.
+	 * 
+	 * @param t
+	 * @param properties
+	 */
+	void setProperties(int t, Map<String, String> properties);
+
 	/**
 	 * Get state for this agents at <code>time</code>.
 	 * 
@@ -77,6 +77,30 @@ public interface PersistentSimulation {
 
 	void storeTuple(String key, UUID agent, int t, double value);
 
+	/**
+	 * Store the value of <code>key</code> at time <code>t</code> for several
+	 * agents at once. <code>values[i]</code> is the value for
+	 * <code>agents[i]</code>.
+	 * 
+	 * @param key
+	 * @param t
+	 * @param agents
+	 * @param values
+	 */
+	void storeTuples(String key, int t, UUID[] agents, int[] values);
+
+	/**
+	 * Store the value of <code>key</code> at time <code>t</code> for several
+	 * agents at once. <code>values[i]</code> is the value for
+	 * <code>agents[i]</code>.
+	 * 
+	 * @param key
+	 * @param t
+	 * @param agents
+	 * @param values
+	 */
+	void storeTuples(String key, int t, UUID[] agents, double[] values);
+
 	String fetchTuple(String key);
 
 	<T> T fetchTuple(String key, Class<T> type);
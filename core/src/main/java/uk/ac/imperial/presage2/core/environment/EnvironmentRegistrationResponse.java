@@ -38,6 +38,8 @@ public class EnvironmentRegistrationResponse {
 	
 	private Set<EnvironmentService> services;
 
+	private int slot = -1;
+
 	/**
 	 * @param authKey
 	 * @param services
@@ -49,6 +51,19 @@ public class EnvironmentRegistrationResponse {
 		this.services = services;
 	}
 
+	/**
+	 * @param authKey
+	 * @param services
+	 * @param slot
+	 *            dense integer handle the environment has assigned to the
+	 *            participant.
+	 */
+	public EnvironmentRegistrationResponse(UUID authKey,
+			Set<EnvironmentService> services, int slot) {
+		this(authKey, services);
+		this.slot = slot;
+	}
+
 	/**
 	 * @return the authKey
 	 */
@@ -62,5 +77,16 @@ public class EnvironmentRegistrationResponse {
 	public Set<EnvironmentService> getServices() {
 		return services;
 	}
+
+	/**
+	 * Get the dense integer handle of the participant. Handles are assigned
+	 * by the environment from 0 upwards and are not reused, so they may be
+	 * used to index arrays of per-participant data.
+	 * 
+	 * @return the slot, or -1 if the environment does not assign slots.
+	 */
+	public int getSlot() {
+		return slot;
+	}
 	
 }
@@ -20,6 +20,7 @@
 package uk.ac.imperial.presage2.core.environment;
 
 import java.util.Map;
+import java.util.UUID;
 
 import com.google.inject.Inject;
 
@@ -85,4 +86,13 @@ abstract public class EnvironmentService {
 
 	}
 
+	/**
+	 * Called when a participant is deregistered (optional).
+	 * 
+	 * @param participantID
+	 */
+	public void deregisterParticipant(UUID participantID) {
+
+	}
+
 }
@@ -0,0 +1,91 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.environment;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Typed key for a participant's shared state, for use with
+ * {@link TypedSharedStateAccess}.
+ * </p>
+ * <p>
+ * A key refers to the same state as the string name it is created with, so
+ * state written with a key can still be read by name through
+ * {@link EnvironmentSharedStateAccess}. Keys should be created once and held
+ * in a static field; each key is given a small integer id which storage
+ * implementations may use to look up the key's values without hashing its
+ * name.
+ * </p>
+ * 
+ * @param <T>
+ *            type of the state value.
+ */
+public class StateKey<T extends Serializable> {
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private final String name;
+	private final Class<T> type;
+	private final int id;
+
+	public StateKey(String name, Class<T> type) {
+		super();
+		if (name == null || type == null)
+			throw new NullPointerException("StateKey requires a name and type");
+		this.name = name;
+		this.type = type;
+		this.id = nextId.getAndIncrement();
+	}
+
+	/**
+	 * Get the name of the state this key refers to.
+	 * 
+	 * @return {@link String} name of the state.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the type of value stored under this key.
+	 * 
+	 * @return {@link Class} of the value.
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Get this key's id. Ids are dense, starting at 0, and unique within the
+	 * JVM.
+	 * 
+	 * @return integer id of this key.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return "StateKey [" + name + ", " + type.getSimpleName() + "]";
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.environment;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Access to participant shared state by {@link StateKey} and integer
+ * participant slot rather than by name and {@link UUID}.
+ * </p>
+ * <p>
+ * A participant's slot is obtained once with {@link #getSlot(UUID)} and may
+ * then be held by the caller. Storage may keep the values of each key in
+ * arrays indexed by slot, so that reads are array loads. As with
+ * {@link EnvironmentSharedStateAccess}, changes are not visible until the
+ * next time slice.
+ * </p>
+ */
+public interface TypedSharedStateAccess extends EnvironmentSharedStateAccess {
+
+	/**
+	 * Get the integer slot of a participant. Slots are dense, starting at 0,
+	 * and do not change for the lifetime of the storage.
+	 * 
+	 * @param participantID
+	 *            {@link UUID} of the participant.
+	 * @return slot of this participant.
+	 */
+	public int getSlot(UUID participantID);
+
+	/**
+	 * Get the integer slot of a participant without assigning one, for reads
+	 * of participants which may have no state.
+	 * 
+	 * @param participantID
+	 *            {@link UUID} of the participant.
+	 * @return slot of this participant, or -1 if it does not have one.
+	 */
+	public int lookupSlot(UUID participantID);
+
+	/**
+	 * Check if a participant has a value for the given state.
+	 * 
+	 * @param key
+	 *            state to check.
+	 * @param slot
+	 *            participant slot.
+	 * @return true if a value exists.
+	 */
+	public boolean has(StateKey<?> key, int slot);
+
+	/**
+	 * Get a participant's value for the given state.
+	 * 
+	 * @param key
+	 *            state to get.
+	 * @param slot
+	 *            participant slot.
+	 * @return the value, or null if none exists.
+	 */
+	public <T extends Serializable> T get(StateKey<T> key, int slot);
+
+	/**
+	 * Change a participant's value for the given state. The value will not be
+	 * changed until the next time slice.
+	 * 
+	 * @param key
+	 *            state to change.
+	 * @param slot
+	 *            participant slot.
+	 * @param value
+	 *            new value.
+	 */
+	public <T extends Serializable> void change(StateKey<T> key, int slot,
+			T value);
+
+	/**
+	 * Get a participant's value for the given integer state.
+	 * 
+	 * @param key
+	 *            state to get.
+	 * @param slot
+	 *            participant slot.
+	 * @return the value.
+	 * @throws SharedStateAccessException
+	 *             if no value exists.
+	 */
+	public int getInt(IntStateKey key, int slot);
+
+	/**
+	 * Change a participant's value for the given integer state. The value will
+	 * not be changed until the next time slice.
+	 * 
+	 * @param key
+	 *            state to change.
+	 * @param slot
+	 *            participant slot.
+	 * @param value
+	 *            new value.
+	 */
+	public void changeInt(IntStateKey key, int slot, int value);
+
+	/**
+	 * Get a participant's value for the given double state.
+	 * 
+	 * @param key
+	 *            state to get.
+	 * @param slot
+	 *            participant slot.
+	 * @return the value.
+	 * @throws SharedStateAccessException
+	 *             if no value exists.
+	 */
+	public double getDouble(DoubleStateKey key, int slot);
+
+	/**
+	 * Change a participant's value for the given double state. The value will
+	 * not be changed until the next time slice.
+	 * 
+	 * @param key
+	 *            state to change.
+	 * @param slot
+	 *            participant slot.
+	 * @param value
+	 *            new value.
+	 */
+	public void changeDouble(DoubleStateKey key, int slot, double value);
+
+}
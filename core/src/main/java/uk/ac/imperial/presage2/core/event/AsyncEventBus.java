@@ -0,0 +1,216 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * <p>
+ * An {@link EventBus} which delivers events asynchronously. Each subscribed
+ * listener has a mailbox; {@link #publish(Event)} appends the event to the
+ * mailboxes of its listeners and returns, and the mailboxes are drained on a
+ * pool of worker threads.
+ * </p>
+ * 
+ * <p>
+ * A mailbox is drained by at most one thread at a time, so a listener sees
+ * events in the order they were published and is never called concurrently
+ * by this bus. Different listeners may run in parallel. {@link #flush()}
+ * waits until all mailboxes are empty.
+ * </p>
+ * 
+ */
+@Singleton
+class AsyncEventBus extends EventBusImpl implements FlushableEventBus {
+
+	/**
+	 * Name of the binding for the number of worker threads.
+	 */
+	static final String THREADS = "eventbus.threads";
+
+	/**
+	 * Maximum events a worker delivers from one mailbox before giving other
+	 * mailboxes a turn.
+	 */
+	static final int BATCH = 64;
+
+	private final ExecutorService workers;
+
+	/**
+	 * Events published but not yet delivered.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final Object idle = new Object();
+
+	@Inject
+	AsyncEventBus(@Named(THREADS) int threads) {
+		this(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "eventbus-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	}
+
+	AsyncEventBus(ExecutorService workers) {
+		super();
+		this.workers = workers;
+	}
+
+	@Override
+	void deliver(Invoker invoker, Object listener, Event event) {
+		((Mailbox) invoker.subscription).post(new Delivery(invoker.method,
+				listener, event));
+	}
+
+	@Override
+	Subscription createSubscription(Object listener,
+			Map<Class<?>, MethodHandle[]> methods, long order) {
+		return new Mailbox(listener, methods, order);
+	}
+
+	@Override
+	public void flush() {
+		synchronized (idle) {
+			boolean interrupted = false;
+			while (pending.get() > 0) {
+				try {
+					idle.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+	private void delivered() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (idle) {
+				idle.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A pending call of a listener method. Holds a strong reference to the
+	 * listener so that it is not collected before the event is delivered.
+	 */
+	static class Delivery {
+
+		final MethodHandle method;
+		final Object listener;
+		final Event event;
+
+		Delivery(MethodHandle method, Object listener, Event event) {
+			super();
+			this.method = method;
+			this.listener = listener;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * A subscription with a queue of events waiting to be delivered to the
+	 * listener.
+	 */
+	class Mailbox extends Subscription implements Runnable {
+
+		private final Queue<Delivery> queue = new ConcurrentLinkedQueue<Delivery>();
+
+		/**
+		 * Whether a drain of this mailbox is queued or running.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		Mailbox(Object listener, Map<Class<?>, MethodHandle[]> methods,
+				long order) {
+			super(listener, methods, collected, order);
+		}
+
+		void post(Delivery d) {
+			if (workers.isShutdown())
+				return;
+			pending.incrementAndGet();
+			queue.add(d);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException e) {
+					// shut down after post checked: drop the events, as post
+					// does once the bus is shut down.
+					scheduled.set(false);
+					discard();
+				}
+			}
+		}
+
+		private void discard() {
+			while (queue.poll() != null) {
+				delivered();
+			}
+		}
+
+		@Override
+		public void run() {
+			Delivery d;
+			for (int n = 0; n < BATCH && (d = queue.poll()) != null; n++) {
+				try {
+					invoke(d.method, d.listener, d.event);
+				} finally {
+					delivered();
+				}
+			}
+			scheduled.set(false);
+			// events posted after the last poll but before the flag was
+			// cleared, or left over from the batch.
+			if (!queue.isEmpty())
+				schedule();
+		}
+	}
+
+}
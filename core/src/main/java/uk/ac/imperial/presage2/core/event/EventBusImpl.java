@@ -18,18 +18,23 @@
  */
 package uk.ac.imperial.presage2.core.event;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -42,6 +47,17 @@ import com.google.inject.Singleton;
  * </p>
  * 
  * <p>
+ * The {@link EventListener} methods of a listener class are found once, when
+ * the first instance of the class subscribes. Listeners are held by weak
+ * reference and identified by object identity, in concurrent sets for each
+ * event type they listen for, so subscribe and unsubscribe take no global
+ * lock and do not depend on the number of listeners. On the first
+ * publication of an event class after a change the listeners for it and its
+ * superclasses are resolved, in subscription order, into a dispatch table
+ * which is reused for every later event of that class.
+ * </p>
+ * 
+ * <p>
  * Derived from code at
  * http://www.mechanicalspirit.com/java-programming-tip-building-your-own-event
  * </p>
@@ -54,55 +70,98 @@ class EventBusImpl implements EventBus {
 
 	private final Logger logger = Logger.getLogger(EventBusImpl.class);
 
-	private Map<Class<?>, Set<WeakReference<Object>>> listeners = new HashMap<Class<?>, Set<WeakReference<Object>>>();
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(
+			void.class, Object.class, Event.class);
+
+	private static final Comparator<Subscription> SUBSCRIPTION_ORDER = new Comparator<Subscription>() {
+		@Override
+		public int compare(Subscription o1, Subscription o2) {
+			return o1.order < o2.order ? -1 : (o1.order == o2.order ? 0 : 1);
+		}
+	};
+
+	/**
+	 * {@link EventListener} methods of each listener class, by event type.
+	 */
+	private final Map<Class<?>, Map<Class<?>, MethodHandle[]>> listenerMethods = new ConcurrentHashMap<Class<?>, Map<Class<?>, MethodHandle[]>>();
+
+	/**
+	 * Every current subscription, keyed by listener identity.
+	 */
+	private final ConcurrentMap<Subscription, Subscription> subscriptions = new ConcurrentHashMap<Subscription, Subscription>();
+
+	/**
+	 * Subscribed listeners by the event type they listen for.
+	 */
+	private final ConcurrentMap<Class<?>, Set<Subscription>> listeners = new ConcurrentHashMap<Class<?>, Set<Subscription>>();
+
+	/**
+	 * Listener invocations for each published event class.
+	 */
+	private final Map<Class<?>, Dispatch> dispatch = new ConcurrentHashMap<Class<?>, Dispatch>();
+
+	/**
+	 * Incremented after every change to the subscriptions, invalidating
+	 * {@link #dispatch}.
+	 */
+	private final AtomicInteger version = new AtomicInteger();
+
+	private final AtomicLong subscriptionCount = new AtomicLong();
+
+	/**
+	 * Subscriptions whose listeners have been garbage collected.
+	 */
+	final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
 
 	EventBusImpl() {
 		super();
 	}
 
 	@Override
-	public synchronized void subscribe(final Object listener) {
+	public void subscribe(final Object listener) {
 
 		if (logger.isDebugEnabled())
 			logger.debug(listener + " subscribing to eventbus");
 
-		// find all @EventListeners
-		Set<Method> eventListeners = new HashSet<Method>();
-		for (Method method : listener.getClass().getMethods()) {
-			if (method.isAnnotationPresent(EventListener.class)) {
-				eventListeners.add(method);
-			}
+		expungeCollected();
+		final Map<Class<?>, MethodHandle[]> methods = getListenerMethods(listener
+				.getClass());
+		if (methods.isEmpty())
+			return;
+		final Subscription sub = createSubscription(listener, methods,
+				subscriptionCount.getAndIncrement());
+		if (subscriptions.putIfAbsent(sub, sub) != null) {
+			if (logger.isDebugEnabled())
+				logger.debug("Skipped duplicate listener " + listener);
+			return;
 		}
-
-		// examine each @EventListener
-		for (Method method : eventListeners) {
-
-			Class<?>[] paramTypes = method.getParameterTypes();
-
-			// Disqualify malformed candidates
-			if ((paramTypes.length == 1)
-					&& Event.class.isAssignableFrom(paramTypes[0])) {
-				addTypeSpecificListener(listener, paramTypes[0]);
+		for (Class<?> type : methods.keySet()) {
+			Set<Subscription> typeListeners = listeners.get(type);
+			if (typeListeners == null) {
+				typeListeners = Collections
+						.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+				final Set<Subscription> existing = listeners.putIfAbsent(type,
+						typeListeners);
+				if (existing != null)
+					typeListeners = existing;
 			}
+			typeListeners.add(sub);
+			if (logger.isDebugEnabled())
+				logger.debug("Added listener in " + listener + " for type "
+						+ type);
 		}
+		version.incrementAndGet();
 	}
 
 	@Override
-	public synchronized void unsubscribe(Object listener) {
+	public void unsubscribe(Object listener) {
 		if (logger.isDebugEnabled())
 			logger.debug(listener + " unsubscribing from eventbus");
 
-		for (Entry<Class<?>, Set<WeakReference<Object>>> clazzEntry : listeners
-				.entrySet()) {
-			Collection<WeakReference<Object>> toRemove = new LinkedList<WeakReference<Object>>();
-			for (WeakReference<Object> listenerRef : clazzEntry.getValue()) {
-				Object o = listenerRef.get();
-				if (o != null && o.equals(listener)) {
-					toRemove.add(listenerRef);
-				}
-			}
-			clazzEntry.getValue().removeAll(toRemove);
-		}
+		final Subscription sub = subscriptions.remove(new Subscription(
+				listener, null, null, -1));
+		if (sub != null)
+			remove(sub);
 	}
 
 	@Override
@@ -111,108 +170,230 @@ class EventBusImpl implements EventBus {
 		if (logger.isDebugEnabled())
 			logger.debug("Taking publication of event " + event);
 
-		// loop this event type and it's supertypes.
-		for (Iterator<Class<?>> iter = superclassIterator(event.getClass()); iter
-				.hasNext();) {
+		final int v = version.get();
+		Dispatch d = dispatch.get(event.getClass());
+		if (d == null || d.version != v)
+			d = buildDispatch(event.getClass(), v);
 
-			Class<?> type = iter.next();
-			// skip Object
-			if (type.equals(Object.class)) {
+		boolean dead = false;
+		for (Invoker i : d.invokers) {
+			final Object listener = i.subscription.get();
+			if (listener == null) {
+				dead = true;
 				continue;
 			}
+			deliver(i, listener, event);
+		}
+		if (dead)
+			expungeCollected();
+	}
 
-			// get listeners for this type
-			Set<WeakReference<Object>> typeListeners = listeners.get(type);
-			if (typeListeners != null) {
-				Collection<WeakReference<Object>> deadRefs = new LinkedList<WeakReference<Object>>();
-
-				for (WeakReference<Object> listenerRef : typeListeners) {
-					Object listener = listenerRef.get();
-					if (listener != null) {
-
-						// invoke methods
-						for (Method m : getEventListenersFor(listener, type)) {
-							try {
-								if (logger.isDebugEnabled())
-									logger.debug("Invoking EventListener "
-											+ listener + " with event " + event);
-								m.invoke(listener, event);
-							} catch (IllegalAccessException e) {
-								logger.warn(
-										"Exception when invoking EventListener "
-												+ listener + " with event "
-												+ event
-												+ ". Is your class public?", e);
-							} catch (InvocationTargetException e) {
-								logger.warn(
-										"Exception when invoking EventListener "
-												+ listener + " with event "
-												+ event, e);
-							}
-						}
-
-					} else {
-						deadRefs.add(listenerRef);
-					}
-				}
-				synchronized (typeListeners) {
-					typeListeners.removeAll(deadRefs);
+	/**
+	 * Deliver an event to one listener method. By default the method is
+	 * invoked immediately on the publishing thread.
+	 * 
+	 * @param invoker
+	 * @param listener
+	 *            the listener, which has not been collected.
+	 * @param event
+	 */
+	void deliver(Invoker invoker, Object listener, Event event) {
+		invoke(invoker.method, listener, event);
+	}
+
+	final void invoke(MethodHandle method, Object listener, Event event) {
+		try {
+			if (logger.isDebugEnabled())
+				logger.debug("Invoking EventListener " + listener
+						+ " with event " + event);
+			method.invokeExact(listener, event);
+		} catch (Throwable e) {
+			logger.warn("Exception when invoking EventListener " + listener
+					+ " with event " + event, e);
+		}
+	}
+
+	Subscription createSubscription(Object listener,
+			Map<Class<?>, MethodHandle[]> methods, long order) {
+		return new Subscription(listener, methods, collected, order);
+	}
+
+	/**
+	 * Build and cache the dispatch table for events of class
+	 * <code>eventClass</code>: the listeners of it and each of its
+	 * superclasses in turn. The table is tagged with the subscription
+	 * <code>version</code> read before it was built, so a change made while
+	 * building causes it to be rebuilt on the next publish.
+	 */
+	private Dispatch buildDispatch(final Class<?> eventClass, final int version) {
+		final List<Invoker> list = new ArrayList<Invoker>();
+		final List<Subscription> typeSubs = new ArrayList<Subscription>();
+		for (Class<?> type = eventClass; type != null
+				&& !type.equals(Object.class); type = type.getSuperclass()) {
+			final Set<Subscription> typeListeners = listeners.get(type);
+			if (typeListeners == null)
+				continue;
+			typeSubs.clear();
+			for (Subscription sub : typeListeners) {
+				if (sub.active && sub.get() != null)
+					typeSubs.add(sub);
+				else if (!sub.active)
+					// lost a race with unsubscribe
+					typeListeners.remove(sub);
+			}
+			Collections.sort(typeSubs, SUBSCRIPTION_ORDER);
+			for (Subscription sub : typeSubs) {
+				for (MethodHandle m : sub.methods.get(type)) {
+					list.add(new Invoker(sub, m));
 				}
 			}
 		}
+		final Dispatch d = new Dispatch(version, list.toArray(new Invoker[list
+				.size()]));
+		dispatch.put(eventClass, d);
+		return d;
 	}
 
-	private void addTypeSpecificListener(final Object listener,
-			final Class<?> type) {
-		// Get or create the Set of listeners for this type
-		Set<WeakReference<Object>> typeListeners = listeners.get(type);
-		if (typeListeners == null) {
-			typeListeners = new HashSet<WeakReference<Object>>();
-			listeners.put(type, typeListeners);
+	private void remove(Subscription sub) {
+		sub.active = false;
+		for (Class<?> type : sub.methods.keySet()) {
+			final Set<Subscription> typeListeners = listeners.get(type);
+			if (typeListeners != null)
+				typeListeners.remove(sub);
 		}
+		version.incrementAndGet();
+	}
 
-		// check for existence of this listener for this type
-		for (WeakReference<Object> weakReference : typeListeners) {
-			if (weakReference.get().equals(listener)) {
-				if (logger.isDebugEnabled())
-					logger.debug("Skipped duplicate listener " + listener
-							+ " for type " + type);
-				return;
-			}
+	/**
+	 * Remove the subscriptions of listeners which have been garbage
+	 * collected.
+	 */
+	private void expungeCollected() {
+		Subscription sub;
+		while ((sub = (Subscription) collected.poll()) != null) {
+			if (subscriptions.remove(sub) != null)
+				remove(sub);
 		}
+	}
 
-		// Add the listener
-		typeListeners.add(new WeakReference<Object>(listener));
+	/**
+	 * Get the {@link EventListener} methods of <code>clazz</code> by the
+	 * event type they take, finding them if this is the first time we have
+	 * seen this class.
+	 */
+	private Map<Class<?>, MethodHandle[]> getListenerMethods(
+			final Class<?> clazz) {
+		Map<Class<?>, MethodHandle[]> methods = listenerMethods.get(clazz);
+		if (methods != null)
+			return methods;
 
-		if (logger.isDebugEnabled())
-			logger.debug("Added listener in " + listener + " for type " + type);
+		final Map<Class<?>, List<MethodHandle>> found = new LinkedHashMap<Class<?>, List<MethodHandle>>();
+		for (Method method : clazz.getMethods()) {
+			if (!method.isAnnotationPresent(EventListener.class))
+				continue;
+			Class<?>[] paramTypes = method.getParameterTypes();
+			// Disqualify malformed candidates
+			if (paramTypes.length != 1
+					|| !Event.class.isAssignableFrom(paramTypes[0]))
+				continue;
+			final MethodHandle handle;
+			try {
+				method.setAccessible(true);
+				handle = MethodHandles.lookup().unreflect(method)
+						.asType(INVOKER_TYPE);
+			} catch (IllegalAccessException e) {
+				logger.warn("Cannot access EventListener " + method
+						+ ". Is your class public?", e);
+				continue;
+			} catch (SecurityException e) {
+				logger.warn("Cannot access EventListener " + method
+						+ ". Is your class public?", e);
+				continue;
+			}
+			List<MethodHandle> l = found.get(paramTypes[0]);
+			if (l == null) {
+				l = new ArrayList<MethodHandle>();
+				found.put(paramTypes[0], l);
+			}
+			l.add(handle);
+		}
+
+		methods = new LinkedHashMap<Class<?>, MethodHandle[]>();
+		for (Map.Entry<Class<?>, List<MethodHandle>> e : found.entrySet()) {
+			methods.put(e.getKey(), e.getValue().toArray(
+					new MethodHandle[e.getValue().size()]));
+		}
+		methods = Collections.unmodifiableMap(methods);
+		listenerMethods.put(clazz, methods);
+		return methods;
 	}
 
-	private Iterator<Class<?>> superclassIterator(final Class<?> clazz) {
+	/**
+	 * A subscribed listener and its {@link EventListener} methods. Equal to
+	 * another {@link Subscription} to the same listener object, so a
+	 * {@link Subscription} to a listener can be used to look up the
+	 * subscription of that listener.
+	 */
+	static class Subscription extends WeakReference<Object> {
+
+		final Map<Class<?>, MethodHandle[]> methods;
+		final long order;
+		private final int hash;
+		volatile boolean active = true;
+
+		Subscription(Object listener, Map<Class<?>, MethodHandle[]> methods,
+				ReferenceQueue<Object> queue, long order) {
+			super(listener, queue);
+			this.methods = methods;
+			this.order = order;
+			this.hash = System.identityHashCode(listener);
+		}
 
-		Set<Class<?>> set = new LinkedHashSet<Class<?>>();
+		@Override
+		public int hashCode() {
+			return hash;
+		}
 
-		Class<?> superClass = clazz;
-		while (superClass != null) {
-			set.add(superClass);
-			superClass = superClass.getSuperclass();
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof Subscription))
+				return false;
+			final Object listener = get();
+			return listener != null && listener == ((Subscription) obj).get();
 		}
+	}
+
+	/**
+	 * Dispatch table of an event class, valid while the subscription version
+	 * is unchanged.
+	 */
+	static class Dispatch {
 
-		return set.iterator();
+		final int version;
+		final Invoker[] invokers;
+
+		Dispatch(int version, Invoker[] invokers) {
+			super();
+			this.version = version;
+			this.invokers = invokers;
+		}
 	}
 
-	private Set<Method> getEventListenersFor(final Object listener,
-			final Class<?> clazz) {
-		Set<Method> set = new LinkedHashSet<Method>();
-		for (Method m : listener.getClass().getMethods()) {
-			if (m.isAnnotationPresent(EventListener.class)) {
-				Class<?>[] paramTypes = m.getParameterTypes();
-				if (paramTypes[0] == clazz) {
-					set.add(m);
-				}
-			}
+	/**
+	 * A single listener method to call for an event class.
+	 */
+	static class Invoker {
+
+		final Subscription subscription;
+		final MethodHandle method;
+
+		Invoker(Subscription subscription, MethodHandle method) {
+			super();
+			this.subscription = subscription;
+			this.method = method;
 		}
-		return set;
 	}
 
 }
@@ -19,12 +19,52 @@
 package uk.ac.imperial.presage2.core.event;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 
+/**
+ * Binds the {@link EventBus}. By default events are delivered synchronously on
+ * the publishing thread; use {@link #asyncEventBusModule(int)} for delivery
+ * on a pool of worker threads.
+ */
 public class EventBusModule extends AbstractModule {
 
+	private final int threads;
+
+	public EventBusModule() {
+		this(0);
+	}
+
+	private EventBusModule(int threads) {
+		super();
+		this.threads = threads;
+	}
+
+	/**
+	 * Create a module binding an {@link EventBus} which delivers events
+	 * asynchronously on <code>threads</code> worker threads. The bus is a
+	 * {@link FlushableEventBus} and is flushed at the end of each simulation
+	 * step.
+	 * 
+	 * @param threads
+	 *            number of worker threads.
+	 * @return {@link EventBusModule}
+	 */
+	public static EventBusModule asyncEventBusModule(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"Async event bus requires at least one thread");
+		return new EventBusModule(threads);
+	}
+
 	@Override
 	protected void configure() {
-		bind(EventBus.class).to(EventBusImpl.class);
+		if (threads > 0) {
+			bindConstant().annotatedWith(Names.named(AsyncEventBus.THREADS))
+					.to(threads);
+			bind(EventBus.class).to(AsyncEventBus.class);
+		} else {
+			bind(EventBus.class).to(EventBusImpl.class);
+		}
 	}
 
 }
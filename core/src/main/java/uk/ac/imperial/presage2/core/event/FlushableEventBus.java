@@ -0,0 +1,44 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+/**
+ * An {@link EventBus} which may deliver events after {@link #publish(Event)}
+ * has returned. {@link #flush()} blocks until every published event has been
+ * delivered, and is called by the simulator at the end of each step before
+ * the shared state is updated.
+ * 
+ */
+public interface FlushableEventBus extends EventBus {
+
+	/**
+	 * Wait until all events published so far, and any events published by
+	 * listeners while handling them, have been delivered. Must not be called
+	 * from within an {@link EventListener}.
+	 */
+	public void flush();
+
+	/**
+	 * Stop any threads used to deliver events. Events which have not been
+	 * delivered, and any published afterwards, are dropped. Called by the
+	 * simulator when it finishes.
+	 */
+	public void shutdown();
+
+}
@@ -0,0 +1,179 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * {@link ScheduleExecutor} which batches the tasks of each
+ * {@link WaitCondition} and runs them in chunks on a {@link ForkJoinPool}.
+ * </p>
+ * <p>
+ * Scheduled tasks are held until {@link #waitFor(WaitCondition)} is called for
+ * their condition. The queued tasks are then split into a small number of
+ * chunks, which idle workers may steal from each other, and the phase ends when
+ * a single {@link CountDownLatch} for all chunks is released. This avoids
+ * creating and joining a {@link Future} for every task in every phase.
+ * </p>
+ */
+public class ForkJoinSchedule implements ScheduleExecutor {
+
+	private final Logger logger = Logger.getLogger(ForkJoinSchedule.class);
+
+	/**
+	 * Number of chunks to aim for per worker thread. More than one chunk per
+	 * thread gives work stealing something to balance with.
+	 */
+	static final int CHUNKS_PER_THREAD = 4;
+
+	private final ForkJoinPool pool;
+
+	private final Map<WaitCondition, Queue<Runnable>> tasks = new EnumMap<WaitCondition, Queue<Runnable>>(
+			WaitCondition.class);
+
+	private final int threads;
+
+	ForkJoinSchedule(final int threads) {
+		super();
+		this.threads = threads;
+		this.pool = new ForkJoinPool(this.threads);
+		for (WaitCondition c : WaitCondition.values()) {
+			tasks.put(c, new ConcurrentLinkedQueue<Runnable>());
+		}
+	}
+
+	@Override
+	public void submit(Runnable s) {
+		pool.execute(s);
+	}
+
+	@Override
+	public void submitScheduled(Runnable s, WaitCondition condition) {
+		tasks.get(condition).add(s);
+	}
+
+	@Override
+	public Future<Boolean> submitScheduledConditional(Callable<Boolean> s,
+			WaitCondition condition) {
+		FutureTask<Boolean> f = new FutureTask<Boolean>(s);
+		tasks.get(condition).add(f);
+		return f;
+	}
+
+	@Override
+	public void waitFor(WaitCondition condition) {
+		final Queue<Runnable> queue = tasks.get(condition);
+		// tasks may be scheduled for this condition while we are waiting, so
+		// loop until the queue is drained.
+		while (!queue.isEmpty()) {
+			List<Runnable> phase = new ArrayList<Runnable>(queue.size());
+			Runnable r;
+			while ((r = queue.poll()) != null) {
+				phase.add(r);
+			}
+			runPhase(phase);
+		}
+	}
+
+	private void runPhase(List<Runnable> phase) {
+		final int size = phase.size();
+		final int chunkSize = Math.max(1,
+				(size + threads * CHUNKS_PER_THREAD - 1)
+						/ (threads * CHUNKS_PER_THREAD));
+		final int chunks = (size + chunkSize - 1) / chunkSize;
+		final CountDownLatch done = new CountDownLatch(chunks);
+		for (int from = 0; from < size; from += chunkSize) {
+			pool.execute(new Chunk(phase, from, Math.min(size, from
+					+ chunkSize), done));
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				logger.warn("Unexpected InterruptedException", e);
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public int getThreadCount() {
+		return this.threads;
+	}
+
+	@Override
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * A contiguous slice of a phase's task list, executed by a single worker.
+	 */
+	@SuppressWarnings("serial")
+	class Chunk extends RecursiveAction {
+
+		final List<Runnable> phase;
+		final int from;
+		final int to;
+		final CountDownLatch done;
+
+		Chunk(List<Runnable> phase, int from, int to, CountDownLatch done) {
+			super();
+			this.phase = phase;
+			this.from = from;
+			this.to = to;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				for (int i = from; i < to; i++) {
+					try {
+						phase.get(i).run();
+					} catch (Throwable e) {
+						logger.warn("Unexpected exception in scheduled task.",
+								e);
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Ordered collection of schedule tasks which is maintained incrementally.
+ * </p>
+ * <p>
+ * Tasks are kept in buckets by their nice level, and iteration visits buckets
+ * in ascending nice order. Within a bucket tasks are kept in a random order:
+ * each insert places the new task at a uniformly random position (an
+ * inside-out Fisher-Yates shuffle step), and each removal swaps the last task
+ * of the bucket into the hole. Both are O(1) within the bucket, so scheduling a
+ * new object does not require re-sorting the whole population. The shuffle is
+ * driven by a seeded {@link Random}, so for a given seed the order depends
+ * only on the sequence of inserts and removals. Callers which want a
+ * reproducible schedule must insert tasks in a deterministic order.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @param <T>
+ *            type of task in the schedule.
+ */
+class NiceSchedule<T> implements Iterable<T> {
+
+	private final TreeMap<Integer, Bucket> buckets = new TreeMap<Integer, Bucket>();
+
+	private final Map<T, Bucket> index = new HashMap<T, Bucket>();
+
+	private final Random rnd;
+
+	NiceSchedule(long seed) {
+		super();
+		this.rnd = new Random(seed);
+	}
+
+	/**
+	 * Add a task to the schedule at the given nice level. Adding a task which
+	 * is already in the schedule has no effect.
+	 *
+	 * @param task
+	 * @param nice
+	 * @return true if the task was added.
+	 */
+	boolean add(T task, int nice) {
+		if (index.containsKey(task))
+			return false;
+		Bucket b = buckets.get(nice);
+		if (b == null) {
+			b = new Bucket();
+			buckets.put(nice, b);
+		}
+		b.insert(task);
+		index.put(task, b);
+		return true;
+	}
+
+	/**
+	 * Remove a task from the schedule.
+	 *
+	 * @param task
+	 * @return true if the task was in the schedule.
+	 */
+	boolean remove(T task) {
+		Bucket b = index.remove(task);
+		if (b == null)
+			return false;
+		b.remove(task);
+		return true;
+	}
+
+	boolean contains(T task) {
+		return index.containsKey(task);
+	}
+
+	int size() {
+		return index.size();
+	}
+
+	void clear() {
+		buckets.clear();
+		index.clear();
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		final Iterator<Bucket> bucketIt = buckets.values().iterator();
+		return new Iterator<T>() {
+
+			Bucket current = null;
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				while (current == null || i >= current.tasks.size()) {
+					if (!bucketIt.hasNext())
+						return false;
+					current = bucketIt.next();
+					i = 0;
+				}
+				return true;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return current.tasks.get(i++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Tasks of a single nice level, with the position of each task so that it
+	 * may be removed without a search.
+	 */
+	class Bucket {
+
+		final ArrayList<T> tasks = new ArrayList<T>();
+		final Map<T, Integer> positions = new HashMap<T, Integer>();
+
+		void insert(T task) {
+			final int n = tasks.size();
+			final int j = rnd.nextInt(n + 1);
+			if (j == n) {
+				tasks.add(task);
+			} else {
+				// move the task at j to the end and put the new one in its
+				// place
+				T displaced = tasks.get(j);
+				tasks.add(displaced);
+				positions.put(displaced, n);
+				tasks.set(j, task);
+			}
+			positions.put(task, j);
+		}
+
+		void remove(T task) {
+			final int j = positions.remove(task);
+			final int last = tasks.size() - 1;
+			T moved = tasks.remove(last);
+			if (j != last) {
+				tasks.set(j, moved);
+				positions.put(moved, j);
+			}
+		}
+	}
+
+}
@@ -20,24 +20,31 @@ package uk.ac.imperial.presage2.core.simulator;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
 
 import uk.ac.imperial.presage2.core.TimeDriven;
@@ -46,8 +53,11 @@ import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.db.StorageService;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
 import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.FlushableEventBus;
 import uk.ac.imperial.presage2.core.participant.Participant;
 import uk.ac.imperial.presage2.core.simulator.ScheduleExecutor.WaitCondition;
+import uk.ac.imperial.presage2.core.util.random.Random;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.BindingAnnotation;
@@ -73,19 +83,32 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 	Set<DeclaredParameter> parameters = new HashSet<DeclaredParameter>();
 
 	boolean newObjects = true;
-	Set<Pair<Method, Object>> initialisors = Collections
-			.synchronizedSet(new HashSet<Pair<Method, Object>>());
-	Set<Pair<Method, Object>> presteppers = Collections
-			.synchronizedSet(new HashSet<Pair<Method, Object>>());
-	Set<Pair<Method, Object>> steppers = Collections
-			.synchronizedSet(new HashSet<Pair<Method, Object>>());
-	Set<Pair<Method, Object>> finishConditions = Collections
-			.synchronizedSet(new HashSet<Pair<Method, Object>>());
-	Set<Pair<Method, Object>> finalisors = Collections
-			.synchronizedSet(new HashSet<Pair<Method, Object>>());
-
-	LinkedList<Pair<Method, Object>> preStepQueue = new LinkedList<Pair<Method, Object>>();
-	LinkedList<Pair<Method, Object>> stepQueue = new LinkedList<Pair<Method, Object>>();
+	Set<ScheduledTask> initialisors = Collections
+			.synchronizedSet(new HashSet<ScheduledTask>());
+	Set<ScheduledTask> presteppers = Collections
+			.synchronizedSet(new HashSet<ScheduledTask>());
+	Set<ScheduledTask> steppers = Collections
+			.synchronizedSet(new HashSet<ScheduledTask>());
+	Set<ScheduledTask> finishConditions = Collections
+			.synchronizedSet(new HashSet<ScheduledTask>());
+	Set<ScheduledTask> finalisors = Collections
+			.synchronizedSet(new HashSet<ScheduledTask>());
+
+	/**
+	 * Tasks added to {@link #presteppers} and {@link #steppers} which have not
+	 * yet been inserted into {@link #preStepQueue} and {@link #stepQueue}.
+	 */
+	Queue<ScheduledTask> pendingPreSteps = new ConcurrentLinkedQueue<ScheduledTask>();
+	Queue<ScheduledTask> pendingSteps = new ConcurrentLinkedQueue<ScheduledTask>();
+
+	/**
+	 * Tasks removed from {@link #presteppers} and {@link #steppers} which have
+	 * not yet been removed from {@link #preStepQueue} and {@link #stepQueue}.
+	 */
+	Queue<ScheduledTask> pendingRemovals = new ConcurrentLinkedQueue<ScheduledTask>();
+
+	NiceSchedule<ScheduledTask> preStepQueue;
+	NiceSchedule<ScheduledTask> stepQueue;
 
 	/**
 	 * The number of threads to use for schedule execution.
@@ -93,6 +116,29 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 	protected int threads = 8;
 	ScheduleExecutor executor;
 
+	/**
+	 * {@link ScheduleExecutor} implementations which can be selected with the
+	 * <code>scheduleExecutor</code> parameter.
+	 */
+	public enum ExecutorType {
+		/**
+		 * {@link MultiThreadedSchedule}: one task per agent per phase on a
+		 * fixed thread pool.
+		 */
+		MULTI_THREADED,
+		/**
+		 * {@link ForkJoinSchedule}: each phase is batched into chunks on a
+		 * work-stealing pool.
+		 */
+		FORK_JOIN
+	}
+
+	/**
+	 * The {@link ScheduleExecutor} implementation to run the schedule with.
+	 */
+	@Parameter(value = "scheduleExecutor", optional = true)
+	public ExecutorType scheduleExecutor = ExecutorType.MULTI_THREADED;
+
 	@Inject
 	SharedStateStorage stateEngine;
 	int t = 0;
@@ -107,10 +153,18 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 
 	@Inject(optional = true)
 	DatabaseService db = null;
+
+	/**
+	 * If this is a {@link FlushableEventBus} it is flushed before the state
+	 * is updated at the end of each step, and shut down in {@link #finish()}.
+	 */
+	@Inject(optional = true)
+	EventBus eventBus = null;
 	PersistentSimulation pSim;
 	long stoId = -1;
 
-	Comparator<Pair<Method, Object>> niceComp = new NiceComparator();
+	Comparator<ScheduledTask> niceComp = new NiceComparator();
+	Comparator<ScheduledTask> scheduleOrder = new ScheduleOrder();
 
 	/**
 	 * <p>
@@ -293,6 +347,11 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 		modules.remove(null);
 		injector = Guice.createInjector(modules);
 
+		// seed step ordering from the simulation's random source so that it
+		// is reproducible for a given seed.
+		preStepQueue = new NiceSchedule<ScheduledTask>(Random.randomInt());
+		stepQueue = new NiceSchedule<ScheduledTask>(Random.randomInt());
+
 		logger.info("Loading scenario...");
 		// Load the runtime scenario from the spec generated via the
 		// ScenarioModule
@@ -308,25 +367,50 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 				+ finalisors.size() + " finalisors.");
 
 		logger.info("Starting schedule executor...");
-		executor = new MultiThreadedSchedule(threads);
+		executor = createScheduleExecutor();
 
 		logger.info("Initialising agents and environment...");
-		LinkedList<Pair<Method, Object>> taskQueue;
+		LinkedList<ScheduledTask> taskQueue;
 		synchronized (initialisors) {
-			taskQueue = new LinkedList<Pair<Method, Object>>(initialisors);
+			taskQueue = new LinkedList<ScheduledTask>(initialisors);
 			initialisors.clear();
 		}
 		Collections.sort(taskQueue, new NiceComparator());
-		for (Pair<Method, Object> task : taskQueue) {
-			executor.submitScheduled(new TaskRunner(task),
-					WaitCondition.PRE_STEP);
+		for (ScheduledTask task : taskQueue) {
+			executor.submitScheduled(task, WaitCondition.PRE_STEP);
 		}
 		executor.waitFor(WaitCondition.PRE_STEP);
 
+		flushEvents();
 		stateEngine.incrementTime();
 		executor.waitFor(WaitCondition.POST_STEP);
 	}
 
+	/**
+	 * Wait for delivery of any events still pending on an asynchronous
+	 * {@link EventBus}, so that their effects are part of this timestep.
+	 */
+	private void flushEvents() {
+		if (eventBus instanceof FlushableEventBus)
+			((FlushableEventBus) eventBus).flush();
+	}
+
+	/**
+	 * Create the {@link ScheduleExecutor} specified by the
+	 * {@link #scheduleExecutor} parameter.
+	 * 
+	 * @return {@link ScheduleExecutor} using {@link #threads} threads.
+	 */
+	protected ScheduleExecutor createScheduleExecutor() {
+		switch (scheduleExecutor) {
+		case FORK_JOIN:
+			return new ForkJoinSchedule(threads);
+		case MULTI_THREADED:
+		default:
+			return new MultiThreadedSchedule(threads);
+		}
+	}
+
 	public void stepUntilFinish() {
 		boolean step = true;
 		pSim.setState("RUNNING");
@@ -339,53 +423,55 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 		logger.info("Timestep = " + t);
 		// initialise anything new
 		if (!initialisors.isEmpty()) {
-			LinkedList<Pair<Method, Object>> taskQueue;
+			LinkedList<ScheduledTask> taskQueue;
 			synchronized (initialisors) {
-				taskQueue = new LinkedList<Pair<Method, Object>>(initialisors);
+				taskQueue = new LinkedList<ScheduledTask>(initialisors);
 				initialisors.clear();
 			}
 			Collections.sort(taskQueue, niceComp);
-			for (Pair<Method, Object> task : taskQueue) {
-				executor.submitScheduled(new TaskRunner(task),
-						WaitCondition.PRE_STEP);
+			for (ScheduledTask task : taskQueue) {
+				executor.submitScheduled(task, WaitCondition.PRE_STEP);
 			}
 		}
 
+		// removals first, so that an object removed and added again in the
+		// same step is scheduled.
+		if (!pendingRemovals.isEmpty()) {
+			ScheduledTask task;
+			while ((task = pendingRemovals.poll()) != null) {
+				preStepQueue.remove(task);
+				stepQueue.remove(task);
+			}
+		}
 		if (newObjects) {
-			preStepQueue.clear();
-			preStepQueue.addAll(presteppers);
-			Collections.shuffle(preStepQueue);
-			Collections.sort(preStepQueue, niceComp);
-			stepQueue.clear();
-			stepQueue.addAll(steppers);
-			Collections.shuffle(stepQueue);
-			Collections.sort(stepQueue, niceComp);
+			newObjects = false;
+			addPending(pendingPreSteps, preStepQueue);
+			addPending(pendingSteps, stepQueue);
 		}
-		for (Pair<Method, Object> task : preStepQueue) {
-			executor.submitScheduled(new TaskRunner(task, t),
-					WaitCondition.PRE_STEP);
+		for (ScheduledTask task : preStepQueue) {
+			executor.submitScheduled(task, WaitCondition.PRE_STEP);
 		}
 
 		executor.waitFor(WaitCondition.PRE_STEP);
 
 		// main step component
-		for (Pair<Method, Object> task : stepQueue) {
-			executor.submitScheduled(new TaskRunner(task, t),
-					WaitCondition.STEP);
+		for (ScheduledTask task : stepQueue) {
+			executor.submitScheduled(task, WaitCondition.STEP);
 		}
 		pSim.setCurrentTime(t);
 
 		executor.waitFor(WaitCondition.STEP);
 
 		// state update
+		flushEvents();
 		stateEngine.incrementTime();
 
 		// loop conditions
 		boolean more = true;
 		List<Future<Boolean>> conditions = new LinkedList<Future<Boolean>>();
-		for (Pair<Method, Object> task : finishConditions) {
-			conditions.add(executor.submitScheduledConditional(
-					new ConditionalTask(task, t), WaitCondition.POST_STEP));
+		for (ScheduledTask task : finishConditions) {
+			conditions.add(executor.submitScheduledConditional(task,
+					WaitCondition.POST_STEP));
 		}
 		executor.waitFor(WaitCondition.POST_STEP);
 		for (Future<Boolean> f : conditions) {
@@ -401,13 +487,34 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 		return more;
 	}
 
+	/**
+	 * Insert a batch of new tasks into a schedule. Tasks arrive in the
+	 * pending queue in whatever order they were found, which depends on
+	 * reflection and on which threads added them, so they are sorted by
+	 * {@link ScheduleOrder} first to make the shuffle reproducible.
+	 */
+	private void addPending(Queue<ScheduledTask> pending,
+			NiceSchedule<ScheduledTask> schedule) {
+		List<ScheduledTask> batch = new ArrayList<ScheduledTask>();
+		ScheduledTask task;
+		while ((task = pending.poll()) != null) {
+			batch.add(task);
+		}
+		Collections.sort(batch, scheduleOrder);
+		for (ScheduledTask next : batch) {
+			schedule.add(next, next.nice);
+		}
+	}
+
 	public void finish() {
 		logger.info("Running post-simulation tasks");
-		for (Pair<Method, Object> task : finalisors) {
-			executor.submitScheduled(new TaskRunner(task),
-					WaitCondition.POST_STEP);
+		for (ScheduledTask task : finalisors) {
+			executor.submitScheduled(task, WaitCondition.POST_STEP);
 		}
 		executor.waitFor(WaitCondition.POST_STEP);
+		flushEvents();
+		if (eventBus instanceof FlushableEventBus)
+			((FlushableEventBus) eventBus).shutdown();
 		pSim.setState("FINISHED");
 		if (db != null) {
 			db.stop();
@@ -487,12 +594,38 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 				finalisors, finishConditions);
 	}
 
+	@Override
+	public final void removeFromSchedule(Object o) {
+		removeTasks(initialisors, o);
+		removeTasks(finalisors, o);
+		removeTasks(finishConditions, o);
+		List<ScheduledTask> removed = removeTasks(presteppers, o);
+		removed.addAll(removeTasks(steppers, o));
+		// tasks added since the last step are not in the queues yet
+		pendingPreSteps.removeAll(removed);
+		pendingSteps.removeAll(removed);
+		pendingRemovals.addAll(removed);
+	}
+
+	private static List<ScheduledTask> removeTasks(Set<ScheduledTask> tasks,
+			Object o) {
+		List<ScheduledTask> removed = new LinkedList<ScheduledTask>();
+		synchronized (tasks) {
+			for (Iterator<ScheduledTask> it = tasks.iterator(); it.hasNext();) {
+				ScheduledTask task = it.next();
+				if (task.target == o) {
+					it.remove();
+					removed.add(task);
+				}
+			}
+		}
+		return removed;
+	}
+
 	private void findScheduleFunctions(Object o,
-			Set<Pair<Method, Object>> initialisors,
-			Set<Pair<Method, Object>> presteppers,
-			Set<Pair<Method, Object>> steppers,
-			Set<Pair<Method, Object>> finalisors,
-			Set<Pair<Method, Object>> finishConditions) {
+			Set<ScheduledTask> initialisors, Set<ScheduledTask> presteppers,
+			Set<ScheduledTask> steppers, Set<ScheduledTask> finalisors,
+			Set<ScheduledTask> finishConditions) {
 		boolean foundFunction = false;
 		for (Method m : o.getClass().getMethods()) {
 			if (m.isAnnotationPresent(Initialisor.class)) {
@@ -502,7 +635,7 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 									+ m.getName() + " takes "
 									+ m.getParameterTypes().length);
 				}
-				initialisors.add(Pair.of(m, o));
+				initialisors.add(new ScheduledTask(m, o));
 				foundFunction = true;
 			} else if (m.isAnnotationPresent(PreStep.class)) {
 				Class<?>[] paramTypes = m.getParameterTypes();
@@ -517,7 +650,9 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 									+ " of types: "
 									+ Arrays.toString(paramTypes));
 				}
-				presteppers.add(Pair.of(m, o));
+				ScheduledTask task = new ScheduledTask(m, o);
+				if (presteppers.add(task))
+					pendingPreSteps.add(task);
 				foundFunction = true;
 			} else if (m.isAnnotationPresent(Step.class)) {
 				Class<?>[] paramTypes = m.getParameterTypes();
@@ -531,7 +666,9 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 									+ " of types: "
 									+ Arrays.toString(paramTypes));
 				}
-				steppers.add(Pair.of(m, o));
+				ScheduledTask task = new ScheduledTask(m, o);
+				if (steppers.add(task))
+					pendingSteps.add(task);
 				foundFunction = true;
 			} else if (m.isAnnotationPresent(Finalisor.class)) {
 				if (m.getParameterTypes().length != 0) {
@@ -540,7 +677,7 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 									+ m.getName() + " takes "
 									+ m.getParameterTypes().length);
 				}
-				finalisors.add(Pair.of(m, o));
+				finalisors.add(new ScheduledTask(m, o));
 				foundFunction = true;
 			} else if (m.isAnnotationPresent(FinishCondition.class)) {
 				Class<?>[] paramTypes = m.getParameterTypes();
@@ -558,15 +695,17 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 									+ Arrays.toString(paramTypes)
 									+ " and returns " + m.getReturnType());
 				}
-				finishConditions.add(Pair.of(m, o));
+				finishConditions.add(new ScheduledTask(m, o));
 				foundFunction = true;
 			}
 		}
 		// legacy support for TimeDriven
 		if (o instanceof TimeDriven) {
 			try {
-				steppers.add(Pair.of(
-						TimeDriven.class.getMethod("incrementTime"), o));
+				ScheduledTask task = new ScheduledTask(
+						TimeDriven.class.getMethod("incrementTime"), o);
+				if (steppers.add(task))
+					pendingSteps.add(task);
 				foundFunction = true;
 			} catch (NoSuchMethodException e) {
 				throw new RuntimeException(
@@ -748,62 +887,125 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 
 	}
 
-	static class TaskRunner implements Runnable {
-
-		final Pair<Method, Object> task;
-		final Object[] args;
-
-		TaskRunner(Pair<Method, Object> task, Object... args) {
+	/**
+	 * <p>
+	 * A schedule function bound to the object it was found on.
+	 * </p>
+	 * <p>
+	 * The {@link Method} is compiled to a {@link MethodHandle} once, when the
+	 * object is added to the schedule. Functions which take no arguments have
+	 * the timestep argument dropped so that every task is invoked directly
+	 * with the current timestep, without reflection, argument arrays or
+	 * boxing. Tasks are created once and re-submitted each timestep.
+	 * </p>
+	 */
+	class ScheduledTask implements Runnable, Callable<Boolean> {
+
+		final Method method;
+		final Object target;
+		/**
+		 * Handle of type <code>(int)void</code>.
+		 */
+		final MethodHandle handle;
+		/**
+		 * Handle of type <code>(int)boolean</code> if the method returns a
+		 * boolean, null otherwise.
+		 */
+		final MethodHandle condition;
+		/**
+		 * Nice level from the method's schedule annotation.
+		 */
+		final int nice;
+
+		ScheduledTask(Method method, Object target) {
 			super();
-			this.task = task;
-			if (task.getLeft().getParameterTypes().length == args.length)
-				this.args = args;
-			else
-				this.args = new Object[] {};
+			this.method = method;
+			this.target = target;
+			this.nice = NiceComparator.getNice(method);
+			MethodHandle h;
+			try {
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+				// fall back to normal access checks
+			}
+			try {
+				h = MethodHandles.lookup().unreflect(method);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException("Cannot access schedule function "
+						+ method.getName() + " of " + target, e);
+			}
+			if (!Modifier.isStatic(method.getModifiers())) {
+				h = h.bindTo(target);
+			}
+			if (method.getParameterTypes().length == 0) {
+				h = MethodHandles.dropArguments(h, 0, Integer.TYPE);
+			}
+			if (method.getReturnType() == Boolean.TYPE) {
+				this.condition = h.asType(MethodType.methodType(Boolean.TYPE,
+						Integer.TYPE));
+			} else {
+				this.condition = null;
+			}
+			this.handle = h.asType(MethodType.methodType(Void.TYPE,
+					Integer.TYPE));
 		}
 
 		@Override
 		public void run() {
 			try {
-				task.getLeft().invoke(task.getRight(), args);
-			} catch (Exception e) {
+				handle.invokeExact(t);
+			} catch (Throwable e) {
 				throw new RuntimeException("Cannot invoke task method", e);
 			}
 		}
-	}
 
-	static class ConditionalTask implements Callable<Boolean> {
+		@Override
+		public Boolean call() throws Exception {
+			try {
+				return (boolean) condition.invokeExact(t);
+			} catch (Exception e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException("Cannot invoke task method", e);
+			}
+		}
 
-		final Pair<Method, Object> task;
-		final Object[] args;
+		@Override
+		public int hashCode() {
+			return method.hashCode() ^ target.hashCode();
+		}
 
-		ConditionalTask(Pair<Method, Object> task, Object... args) {
-			super();
-			this.task = task;
-			if (task.getLeft().getParameterTypes().length == args.length)
-				this.args = args;
-			else
-				this.args = new Object[] {};
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ScheduledTask))
+				return false;
+			ScheduledTask other = (ScheduledTask) obj;
+			return method.equals(other.method) && target.equals(other.target);
 		}
 
 		@Override
-		public Boolean call() throws Exception {
-			return (Boolean) task.getLeft().invoke(task.getRight(), args);
+		public String toString() {
+			return method.getName() + " of " + target;
 		}
 
 	}
 
-	static class NiceComparator implements Comparator<Pair<Method, Object>> {
+	static class NiceComparator implements Comparator<ScheduledTask> {
 
 		@Override
-		public int compare(Pair<Method, Object> o1, Pair<Method, Object> o2) {
-			return getNice(o1.getLeft()) - getNice(o2.getLeft());
+		public int compare(ScheduledTask o1, ScheduledTask o2) {
+			return o1.nice - o2.nice;
 		}
 
-		int getNice(Method m) {
+		static int getNice(Method m) {
 			Step s = m.getAnnotation(Step.class);
 			if (s != null)
 				return s.nice();
+			PreStep p = m.getAnnotation(PreStep.class);
+			if (p != null)
+				return p.nice();
 			Initialisor i = m.getAnnotation(Initialisor.class);
 			if (i != null)
 				return i.nice();
@@ -812,6 +1014,38 @@ public abstract class RunnableSimulation implements Runnable, Scheduler {
 
 	}
 
+	/**
+	 * Orders tasks by nice level, then by a key which does not depend on the
+	 * order in which they were added: the target's class, the participant
+	 * name for {@link Participant}s, and the method. Tasks which are still
+	 * equal keep their original order.
+	 */
+	static class ScheduleOrder implements Comparator<ScheduledTask> {
+
+		@Override
+		public int compare(ScheduledTask o1, ScheduledTask o2) {
+			int c = o1.nice - o2.nice;
+			if (c != 0)
+				return c;
+			c = o1.target.getClass().getName()
+					.compareTo(o2.target.getClass().getName());
+			if (c != 0)
+				return c;
+			if (o1.target instanceof Participant
+					&& o2.target instanceof Participant) {
+				String n1 = ((Participant) o1.target).getName();
+				String n2 = ((Participant) o2.target).getName();
+				if (n1 != null && n2 != null) {
+					c = n1.compareTo(n2);
+					if (c != 0)
+						return c;
+				}
+			}
+			return o1.method.toString().compareTo(o2.method.toString());
+		}
+
+	}
+
 	public Injector getInjector() {
 		return injector;
 	}
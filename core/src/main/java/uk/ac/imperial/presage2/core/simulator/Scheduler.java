@@ -21,5 +21,7 @@ package uk.ac.imperial.presage2.core.simulator;
 interface Scheduler {
 
 	void addToSchedule(Object o);
-	
+
+	void removeFromSchedule(Object o);
+
 }
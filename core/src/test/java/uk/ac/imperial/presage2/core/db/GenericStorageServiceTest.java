@@ -24,6 +24,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
@@ -290,4 +291,54 @@ public abstract class GenericStorageServiceTest {
 		assertEquals(spropVal, ag.getState(0).getProperty(spropKey).toString());
 	}
 
+	@Test
+	public void testBulkTuples() {
+		final PersistentSimulation sim = sto.createSimulation(
+				RandomStringUtils.randomAlphanumeric(Random.randomInt(20)),
+				RandomStringUtils.randomAlphanumeric(Random.randomInt(100)),
+				RandomStringUtils.randomAlphanumeric(Random.randomInt(80)),
+				Random.randomInt(100));
+		sto.setSimulation(sim);
+
+		final int n = 20;
+		final UUID[] agents = new UUID[n];
+		final int[] ints = new int[n];
+		final double[] doubles = new double[n];
+		for (int i = 0; i < n; i++) {
+			agents[i] = sto.createAgent(Random.randomUUID(),
+					RandomStringUtils.randomAlphanumeric(10)).getID();
+			ints[i] = Random.randomInt(1000);
+			doubles[i] = i + 0.25;
+		}
+		final int t = Random.randomInt(100);
+		sim.storeTuples("bulk.int", t, agents, ints);
+		sim.storeTuples("bulk.double", t, agents, doubles);
+		for (int i = 0; i < n; i++) {
+			assertEquals(ints[i], (int) sim.fetchTuple("bulk.int", agents[i],
+					t, Integer.class));
+			assertEquals(doubles[i], sim.fetchTuple("bulk.double", agents[i],
+					t, Double.class), 0);
+		}
+		assertNull(sim.fetchTuple("bulk.int", agents[0], t + 1));
+
+		try {
+			sim.storeTuples("bulk.int", t, agents, new int[n - 1]);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		final PersistentAgent agent = sto.getAgent(agents[0]);
+		final Map<String, String> props = new HashMap<String, String>();
+		for (int i = 0; i < 5; i++) {
+			props.put("bulk.prop" + i, RandomStringUtils.randomAlphanumeric(10));
+		}
+		agent.setProperties(props);
+		agent.setProperties(t, props);
+		for (Map.Entry<String, String> e : props.entrySet()) {
+			assertEquals(e.getValue(), agent.getProperty(e.getKey()));
+			assertEquals(e.getValue(), agent.getProperty(e.getKey(), t));
+		}
+		assertNull(agent.getProperty("bulk.prop0", t + 1));
+	}
+
 }
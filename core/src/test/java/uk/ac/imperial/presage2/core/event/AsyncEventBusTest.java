@@ -0,0 +1,189 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.Time;
+
+import com.google.inject.Guice;
+
+public class AsyncEventBusTest {
+
+	static class CountEvent implements Event {
+		final int n;
+
+		CountEvent(int n) {
+			this.n = n;
+		}
+
+		public Time getTime() {
+			return null;
+		}
+	}
+
+	static class EchoEvent implements Event {
+		public Time getTime() {
+			return null;
+		}
+	}
+
+	private AsyncEventBus bus;
+
+	@Before
+	public void setUp() {
+		bus = new AsyncEventBus(4);
+	}
+
+	@After
+	public void tearDown() {
+		bus.shutdown();
+	}
+
+	public static class OrderListener {
+
+		final List<Integer> received = Collections
+				.synchronizedList(new ArrayList<Integer>());
+
+		@EventListener
+		public void hear(CountEvent e) {
+			received.add(e.n);
+		}
+
+	}
+
+	public class EchoListener {
+
+		int echoes = 0;
+
+		@EventListener
+		public void hear(CountEvent e) {
+			bus.publish(new EchoEvent());
+		}
+
+		@EventListener
+		public void hear(EchoEvent e) {
+			echoes++;
+		}
+
+	}
+
+	@Test
+	public void testFlushDeliversInOrder() {
+		final List<OrderListener> listeners = new ArrayList<OrderListener>();
+		for (int i = 0; i < 8; i++) {
+			OrderListener l = new OrderListener();
+			listeners.add(l);
+			bus.subscribe(l);
+		}
+		final int events = 1000;
+		for (int i = 0; i < events; i++) {
+			bus.publish(new CountEvent(i));
+		}
+		bus.flush();
+		for (OrderListener l : listeners) {
+			assertEquals(events, l.received.size());
+			for (int i = 0; i < events; i++) {
+				assertEquals(i, l.received.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void testFlushWaitsForEventsPublishedByListeners() {
+		EchoListener l = new EchoListener();
+		bus.subscribe(l);
+		for (int i = 0; i < 100; i++) {
+			bus.publish(new CountEvent(i));
+		}
+		bus.flush();
+		assertEquals(100, l.echoes);
+	}
+
+	@Test
+	public void testPublishAfterShutdown() {
+		OrderListener l = new OrderListener();
+		bus.subscribe(l);
+		bus.publish(new CountEvent(0));
+		bus.flush();
+		bus.shutdown();
+		bus.publish(new CountEvent(1));
+		bus.flush();
+		assertEquals(Collections.singletonList(0), l.received);
+	}
+
+	public static class BlockingListener {
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@EventListener
+		public void hear(CountEvent e) throws InterruptedException {
+			entered.countDown();
+			release.await();
+		}
+
+	}
+
+	@Test
+	public void testRejectedDeliveryIsDropped() throws Exception {
+		// one worker and no queue, so a second mailbox is rejected while the
+		// first is being drained, as it would be by a racing shutdown.
+		bus.shutdown();
+		bus = new AsyncEventBus(new ThreadPoolExecutor(1, 1, 0,
+				TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>()));
+		BlockingListener blocking = new BlockingListener();
+		bus.subscribe(blocking);
+		bus.publish(new CountEvent(0));
+		blocking.entered.await();
+
+		OrderListener l = new OrderListener();
+		bus.subscribe(l);
+		bus.publish(new CountEvent(1));
+		blocking.release.countDown();
+		// flush returns as the dropped event is no longer pending
+		bus.flush();
+		assertTrue(l.received.isEmpty());
+	}
+
+	@Test
+	public void testModuleBinding() {
+		EventBus sync = Guice.createInjector(new EventBusModule()).getInstance(
+				EventBus.class);
+		assertFalse(sync instanceof FlushableEventBus);
+		EventBus async = Guice.createInjector(
+				EventBusModule.asyncEventBusModule(2)).getInstance(
+				EventBus.class);
+		assertTrue(async instanceof AsyncEventBus);
+		((FlushableEventBus) async).shutdown();
+	}
+
+}
@@ -20,6 +20,12 @@ package uk.ac.imperial.presage2.core.event;
 
 import static org.junit.Assert.*;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
 import org.junit.Test;
 
 import org.jmock.Mockery;
@@ -34,7 +40,11 @@ public class EventBusImplTest {
 		}
 	}
 
+	static class ChildEvent extends MockEvent {
+	}
+
 	private int invocationCount = 0;
+	private int childCount = 0;
 
 	class MockEventListener {
 
@@ -45,6 +55,15 @@ public class EventBusImplTest {
 
 	}
 
+	class ChildEventListener {
+
+		@EventListener
+		public void hearChildEvent(ChildEvent e) {
+			childCount++;
+		}
+
+	}
+
 	@Test
 	public void testEventBusImpl() {
 
@@ -79,4 +98,145 @@ public class EventBusImplTest {
 		assertEquals(2, invocationCount);
 	}
 
+	@Test
+	public void testDispatchToSuperclassListeners() {
+		EventBus eventBus = new EventBusImpl();
+		MockEventListener parent = new MockEventListener();
+		ChildEventListener child = new ChildEventListener();
+		eventBus.subscribe(parent);
+
+		eventBus.publish(new ChildEvent());
+		assertEquals(1, invocationCount);
+		assertEquals(0, childCount);
+
+		// subscribing invalidates the cached dispatch for ChildEvent
+		eventBus.subscribe(child);
+		eventBus.publish(new ChildEvent());
+		assertEquals(2, invocationCount);
+		assertEquals(1, childCount);
+
+		eventBus.publish(new MockEvent());
+		assertEquals(3, invocationCount);
+		assertEquals(1, childCount);
+
+		eventBus.unsubscribe(parent);
+		eventBus.publish(new ChildEvent());
+		assertEquals(3, invocationCount);
+		assertEquals(2, childCount);
+	}
+
+	@Test
+	public void testCollectedListenerIsDropped() throws InterruptedException {
+		EventBus eventBus = new EventBusImpl();
+		MockEventListener listener = new MockEventListener();
+		eventBus.subscribe(listener);
+		eventBus.publish(new MockEvent());
+		assertEquals(1, invocationCount);
+
+		WeakReference<Object> ref = new WeakReference<Object>(listener);
+		listener = null;
+		for (int i = 0; i < 20 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assume.assumeTrue(ref.get() == null);
+		eventBus.publish(new MockEvent());
+		eventBus.publish(new MockEvent());
+		assertEquals(1, invocationCount);
+	}
+
+	public static class CountingListener {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		@EventListener
+		public void hear(MockEvent e) {
+			count.incrementAndGet();
+		}
+
+		// all CountingListeners are equal, subscriptions must still be
+		// distinct.
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CountingListener;
+		}
+
+		@Override
+		public int hashCode() {
+			return 1;
+		}
+
+	}
+
+	@Test
+	public void testListenersIdentifiedByIdentity() {
+		EventBus eventBus = new EventBusImpl();
+		CountingListener a = new CountingListener();
+		CountingListener b = new CountingListener();
+		eventBus.subscribe(a);
+		eventBus.subscribe(b);
+		eventBus.publish(new MockEvent());
+		assertEquals(1, a.count.get());
+		assertEquals(1, b.count.get());
+
+		eventBus.unsubscribe(a);
+		eventBus.publish(new MockEvent());
+		assertEquals(1, a.count.get());
+		assertEquals(2, b.count.get());
+	}
+
+	@Test
+	public void testConcurrentSubscribeAndPublish() throws InterruptedException {
+		final EventBus eventBus = new EventBusImpl();
+		final int threads = 4;
+		final int perThread = 2000;
+		final List<CountingListener> all = new ArrayList<CountingListener>();
+		final List<Thread> subscribers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final List<CountingListener> mine = new ArrayList<CountingListener>();
+			for (int i = 0; i < perThread; i++) {
+				mine.add(new CountingListener());
+			}
+			all.addAll(mine);
+			subscribers.add(new Thread() {
+				@Override
+				public void run() {
+					for (CountingListener l : mine) {
+						eventBus.subscribe(l);
+					}
+					// unsubscribe every other listener
+					for (int i = 0; i < mine.size(); i += 2) {
+						eventBus.unsubscribe(mine.get(i));
+					}
+				}
+			});
+		}
+		final AtomicInteger published = new AtomicInteger();
+		Thread publisher = new Thread() {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					eventBus.publish(new MockEvent());
+					published.incrementAndGet();
+				}
+			}
+		};
+		publisher.start();
+		for (Thread t : subscribers)
+			t.start();
+		for (Thread t : subscribers)
+			t.join();
+		publisher.interrupt();
+		publisher.join();
+
+		final int[] before = new int[all.size()];
+		for (int i = 0; i < all.size(); i++)
+			before[i] = all.get(i).count.get();
+		eventBus.publish(new MockEvent());
+		for (int i = 0; i < all.size(); i++) {
+			int expected = i % 2 == 0 ? 0 : 1;
+			assertEquals(expected, all.get(i).count.get() - before[i]);
+		}
+	}
+
 }
@@ -0,0 +1,103 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class NiceScheduleTest {
+
+	@Test
+	public void testNiceOrder() {
+		Random rnd = new Random();
+		NiceSchedule<Integer> schedule = new NiceSchedule<Integer>(
+				rnd.nextLong());
+		final int n = 1000;
+		for (int i = 0; i < n; i++) {
+			assertTrue(schedule.add(i, i % 7 - 3));
+		}
+		assertFalse(schedule.add(5, 0));
+		assertEquals(n, schedule.size());
+
+		int lastNice = Integer.MIN_VALUE;
+		Set<Integer> seen = new HashSet<Integer>();
+		for (Integer i : schedule) {
+			int nice = i % 7 - 3;
+			assertTrue(nice >= lastNice);
+			lastNice = nice;
+			assertTrue(seen.add(i));
+		}
+		assertEquals(n, seen.size());
+	}
+
+	@Test
+	public void testDeterministic() {
+		final long seed = new Random().nextLong();
+		NiceSchedule<Integer> a = new NiceSchedule<Integer>(seed);
+		NiceSchedule<Integer> b = new NiceSchedule<Integer>(seed);
+		for (int i = 0; i < 500; i++) {
+			a.add(i, i % 3);
+			b.add(i, i % 3);
+		}
+		for (int i = 0; i < 500; i += 11) {
+			a.remove(i);
+			b.remove(i);
+		}
+		assertEquals(toList(a), toList(b));
+	}
+
+	@Test
+	public void testRemove() {
+		NiceSchedule<Integer> schedule = new NiceSchedule<Integer>(0);
+		final int n = 200;
+		for (int i = 0; i < n; i++) {
+			schedule.add(i, i % 2);
+		}
+		for (int i = 0; i < n; i += 3) {
+			assertTrue(schedule.remove(i));
+			assertFalse(schedule.contains(i));
+		}
+		assertFalse(schedule.remove(0));
+
+		List<Integer> remaining = toList(schedule);
+		assertEquals(schedule.size(), remaining.size());
+		for (int i = 0; i < n; i++) {
+			assertEquals(i % 3 != 0, remaining.contains(i));
+		}
+		// re-adding a removed task should schedule it again
+		assertTrue(schedule.add(0, 0));
+		assertTrue(toList(schedule).contains(0));
+	}
+
+	private static List<Integer> toList(NiceSchedule<Integer> schedule) {
+		List<Integer> l = new ArrayList<Integer>();
+		for (Integer i : schedule) {
+			l.add(i);
+		}
+		return l;
+	}
+
+}
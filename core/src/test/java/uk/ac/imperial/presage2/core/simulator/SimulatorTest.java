@@ -205,8 +205,88 @@ public class SimulatorTest {
 	@Test
 	public void testSimulationRun() throws IllegalArgumentException,
 			IllegalAccessException, UndefinedParameterException {
+		runSimulation(new HashMap<String, String>());
+	}
+
+	@Test
+	public void testSimulationRunForkJoin() throws IllegalArgumentException,
+			IllegalAccessException, UndefinedParameterException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("scheduleExecutor",
+				RunnableSimulation.ExecutorType.FORK_JOIN.name());
+		runSimulation(params);
+	}
+
+	@Test
+	public void testRemoveFromSchedule() throws IllegalArgumentException,
+			IllegalAccessException, UndefinedParameterException {
 		TestSimulation sim = new TestSimulation();
+		time = 10;
 		Map<String, String> params = new HashMap<String, String>();
+		params.put("param1", "1");
+		params.put("finishTime", Integer.toString(time));
+		sim.loadParameters(params);
+		context.checking(new Expectations() {
+			{
+				allowing(ss).incrementTime();
+			}
+		});
+		sim.initialise();
+		sim.step();
+		sim.step();
+
+		TestAgent removed = testedObjects.iterator().next();
+		sim.removeFromSchedule(removed);
+		sim.step();
+		for (TestAgent a : testedObjects) {
+			assertEquals(a == removed ? 2 : 3, a.nextT);
+		}
+		assertTrue(sim.pendingRemovals.isEmpty());
+	}
+
+	@Test
+	public void testRemoveThenAdd() throws IllegalArgumentException,
+			IllegalAccessException, UndefinedParameterException {
+		TestSimulation sim = new TestSimulation();
+		time = 10;
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("param1", "1");
+		params.put("finishTime", Integer.toString(time));
+		sim.loadParameters(params);
+		context.checking(new Expectations() {
+			{
+				allowing(ss).incrementTime();
+			}
+		});
+		sim.initialise();
+		sim.step();
+		sim.step();
+
+		// removed and added again within one step
+		TestAgent readded = testedObjects.iterator().next();
+		sim.removeFromSchedule(readded);
+		readded.initialised = false;
+		sim.addToSchedule(readded);
+		sim.step();
+		sim.step();
+		for (TestAgent a : testedObjects) {
+			assertEquals(4, a.nextT);
+		}
+		assertTrue(readded.initialised);
+
+		// added and removed again before it was ever stepped
+		TestAgent late = new TestAgent(time);
+		late.initialised = true;
+		sim.addToSchedule(late);
+		sim.removeFromSchedule(late);
+		sim.step();
+		assertEquals(0, late.nextT);
+	}
+
+	private void runSimulation(Map<String, String> params)
+			throws IllegalArgumentException, IllegalAccessException,
+			UndefinedParameterException {
+		TestSimulation sim = new TestSimulation();
 		final int p1 = rnd.nextInt();
 		final int po = rnd.nextInt();
 		time = rnd.nextInt(100);
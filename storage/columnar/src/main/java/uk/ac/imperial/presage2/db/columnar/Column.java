@@ -0,0 +1,581 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Dense storage of the numeric values of one key for every agent and
+ * timestep of a simulation.
+ * </p>
+ * 
+ * <p>
+ * Values are grouped into chunks of <code>chunkSteps</code> timesteps. Within
+ * a chunk each agent slot has a row of <code>stride</code> longs: a bitmap of
+ * which timesteps have a value, followed by the values, so the value for slot
+ * <code>s</code> at time <code>t</code> is at
+ * <code>s * stride + maskWords + t % chunkSteps</code>. The current (hot)
+ * chunk is written in place through a memory mapped file. When a write moves
+ * past it the chunk is sealed: its values are XOR-delta coded along each
+ * agent's time series, deflated on the sealing thread, and appended to the
+ * data file with an entry in the chunk index.
+ * </p>
+ * 
+ * <p>
+ * Writes to chunks which have already been sealed are made to a decoded copy
+ * of the chunk, which is written back as a new version when another chunk is
+ * read or the column is flushed. Old versions are left in the data file until
+ * they make up more than half of it, when it is compacted.
+ * </p>
+ * 
+ * <p>
+ * Zero filled parts of a chunk have no bits set in their bitmap, so they read
+ * back as missing, while any double, including NaN, can be stored.
+ * </p>
+ */
+class Column {
+
+	static final int HEADER = 16;
+	static final int MIN_CAPACITY = 64;
+	/**
+	 * Maximum number of chunks waiting to be sealed before writers block.
+	 */
+	static final int MAX_SEALING = 2;
+	/**
+	 * Suffix of the data and index files written by a compaction.
+	 */
+	static final String COMPACT = ".compact";
+	private static final byte[] ZEROS = new byte[65536];
+
+	final File hotFile;
+	final File dataFile;
+	final File indexFile;
+	final int chunkSteps;
+	/**
+	 * Number of longs in the presence bitmap of a row.
+	 */
+	final int maskWords;
+	/**
+	 * Number of longs in a row: the bitmap followed by the values.
+	 */
+	final int stride;
+	final Executor sealer;
+
+	final RandomAccessFile hotRaf;
+	MappedByteBuffer hot;
+	int hotChunk = -1;
+	int capacity = 0;
+
+	RandomAccessFile data;
+	DataOutputStream indexOut;
+	/**
+	 * Sealed chunks by chunk number; null entries have no data.
+	 */
+	final List<Sealed> sealed = new ArrayList<Sealed>();
+	/**
+	 * Chunks handed to the sealer but not yet written.
+	 */
+	final Map<Integer, long[]> sealing = new HashMap<Integer, long[]>();
+
+	int cachedChunk = -1;
+	long[] cached = null;
+	/**
+	 * Set when cached has writes which are not in the data file.
+	 */
+	boolean dirty = false;
+
+	/**
+	 * Bytes of the data file referred to by the chunk index.
+	 */
+	long live = 0;
+	/**
+	 * Bytes of old chunk versions below which the data file is not compacted.
+	 */
+	long minGarbage = 1 << 20;
+
+	Column(File dir, String name, int chunkSteps, Executor sealer)
+			throws IOException {
+		super();
+		this.hotFile = new File(dir, name + ".hot");
+		this.dataFile = new File(dir, name + ".col");
+		this.indexFile = new File(dir, name + ".idx");
+		this.chunkSteps = chunkSteps;
+		this.maskWords = (chunkSteps + 63) / 64;
+		this.stride = maskWords + chunkSteps;
+		this.sealer = sealer;
+		recoverCompaction();
+		this.data = new RandomAccessFile(dataFile, "rw");
+		loadIndex();
+		this.indexOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile, true)));
+		this.hotRaf = new RandomAccessFile(hotFile, "rw");
+		if (hotRaf.length() >= HEADER) {
+			// resume the hot chunk of a previous run
+			map(HEADER);
+			final int c = hot.getInt(0);
+			final int cap = hot.getInt(4);
+			if (cap > 0) {
+				map(size(cap));
+				hotChunk = c;
+				capacity = cap;
+			}
+		}
+	}
+
+	private long size(int cap) {
+		return HEADER + (long) cap * stride * 8;
+	}
+
+	private void map(long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Hot chunk of " + size
+					+ " bytes is too large, reduce the chunk size.");
+		hot = hotRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * @return index of the value for slot at t within a chunk.
+	 */
+	private int index(int slot, int t) {
+		return slot * stride + maskWords + t % chunkSteps;
+	}
+
+	/**
+	 * @return index of the bitmap word for slot at t within a chunk.
+	 */
+	private int maskIndex(int slot, int t) {
+		return slot * stride + (t % chunkSteps) / 64;
+	}
+
+	private long maskBit(int t) {
+		return 1L << (t % chunkSteps % 64);
+	}
+
+	synchronized void put(int slot, int t, double v) throws IOException {
+		final int chunk = t / chunkSteps;
+		if (chunk != hotChunk) {
+			if (chunk < hotChunk) {
+				update(chunk, slot, t, v);
+				return;
+			}
+			if (hotChunk >= 0)
+				seal();
+			startChunk(chunk, Math.max(capacity, slot + 1));
+		}
+		if (slot >= capacity)
+			grow(slot + 1);
+		hot.putLong(HEADER + index(slot, t) * 8,
+				Double.doubleToRawLongBits(v));
+		final int m = HEADER + maskIndex(slot, t) * 8;
+		hot.putLong(m, hot.getLong(m) | maskBit(t));
+	}
+
+	/**
+	 * Write the values of several slots at time t.
+	 */
+	synchronized void putAll(int[] slots, int t, double[] values)
+			throws IOException {
+		for (int i = 0; i < slots.length; i++) {
+			put(slots[i], t, values[i]);
+		}
+	}
+
+	/**
+	 * @return value for the slot at time t, null if none has been written.
+	 */
+	synchronized Double get(int slot, int t) throws IOException {
+		final int chunk = t / chunkSteps;
+		final long bit = maskBit(t);
+		if (chunk == hotChunk) {
+			if (slot >= capacity
+					|| (hot.getLong(HEADER + maskIndex(slot, t) * 8) & bit) == 0)
+				return null;
+			return Double.longBitsToDouble(hot.getLong(HEADER + index(slot, t)
+					* 8));
+		}
+		final long[] values = read(chunk);
+		if (values == null || slot * stride >= values.length
+				|| (values[maskIndex(slot, t)] & bit) == 0)
+			return null;
+		return Double.longBitsToDouble(values[index(slot, t)]);
+	}
+
+	private void startChunk(int chunk, int cap) throws IOException {
+		cap = Math.max(cap, MIN_CAPACITY);
+		if (hot == null || hot.capacity() < size(cap))
+			map(size(cap));
+		// clear what the previous chunk used
+		final int end = (int) size(capacity);
+		for (int p = HEADER; p < end; p += ZEROS.length) {
+			hot.position(p);
+			hot.put(ZEROS, 0, Math.min(ZEROS.length, end - p));
+		}
+		hotChunk = chunk;
+		capacity = cap;
+		hot.putInt(0, hotChunk);
+		hot.putInt(4, capacity);
+	}
+
+	private void grow(int needed) throws IOException {
+		final int cap = Math.max(needed, capacity * 2);
+		// the file is extended with zeros, so the new slots are empty
+		if (hot.capacity() < size(cap))
+			map(size(cap));
+		capacity = cap;
+		hot.putInt(4, capacity);
+	}
+
+	/**
+	 * Copy the hot chunk out and hand it to the sealer.
+	 */
+	private void seal() {
+		while (sealing.size() >= MAX_SEALING) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		final int chunk = hotChunk;
+		final long[] values = new long[capacity * stride];
+		final ByteBuffer b = hot.duplicate();
+		b.position(HEADER);
+		b.asLongBuffer().get(values);
+		sealing.put(chunk, values);
+		sealer.execute(new Runnable() {
+			@Override
+			public void run() {
+				final byte[] compressed = compress(values);
+				synchronized (Column.this) {
+					try {
+						append(chunk, compressed, values.length / stride);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					} finally {
+						sealing.remove(chunk);
+						Column.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write to a chunk which has already been sealed. The write is made to
+	 * the cached copy of the chunk, and reaches the data file in
+	 * {@link #writeBack()}.
+	 */
+	private void update(int chunk, int slot, int t, double v)
+			throws IOException {
+		final long[] values = read(chunk);
+		if (values == null || values.length <= slot * stride) {
+			final long[] grown = new long[(slot + 1) * stride];
+			if (values != null)
+				System.arraycopy(values, 0, grown, 0, values.length);
+			cachedChunk = chunk;
+			cached = grown;
+		}
+		cached[index(slot, t)] = Double.doubleToRawLongBits(v);
+		cached[maskIndex(slot, t)] |= maskBit(t);
+		dirty = true;
+	}
+
+	/**
+	 * Append the cached chunk to the data file if it has been written to.
+	 */
+	private void writeBack() throws IOException {
+		if (!dirty)
+			return;
+		dirty = false;
+		final int chunk = cachedChunk;
+		final long[] values = cached;
+		append(chunk, compress(values), values.length / stride);
+		cachedChunk = chunk;
+		cached = values;
+	}
+
+	/**
+	 * Get the values of a chunk which is not hot, waiting for it to be
+	 * written if it is being sealed.
+	 */
+	private long[] read(int chunk) throws IOException {
+		while (sealing.containsKey(chunk)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (chunk == cachedChunk)
+			return cached;
+		writeBack();
+		final Sealed s = chunk < sealed.size() ? sealed.get(chunk) : null;
+		if (s == null)
+			return null;
+		final byte[] compressed = new byte[s.length];
+		data.seek(s.offset);
+		data.readFully(compressed);
+		cached = decompress(compressed, s.capacity * stride);
+		cachedChunk = chunk;
+		return cached;
+	}
+
+	private void append(int chunk, byte[] compressed, int cap)
+			throws IOException {
+		final long offset = data.length();
+		data.seek(offset);
+		data.write(compressed);
+		writeEntry(indexOut, chunk, offset, compressed.length, cap);
+		indexOut.flush();
+		setSealed(chunk, new Sealed(offset, compressed.length, cap));
+		if (chunk == cachedChunk)
+			cachedChunk = -1;
+		final long garbage = data.length() - live;
+		if (garbage >= minGarbage && garbage > live)
+			compact();
+	}
+
+	private static void writeEntry(DataOutputStream out, int chunk,
+			long offset, int length, int cap) throws IOException {
+		out.writeInt(chunk);
+		out.writeLong(offset);
+		out.writeInt(length);
+		out.writeInt(cap);
+	}
+
+	private void setSealed(int chunk, Sealed s) {
+		while (sealed.size() <= chunk)
+			sealed.add(null);
+		final Sealed old = sealed.set(chunk, s);
+		if (old != null)
+			live -= old.length;
+		live += s.length;
+	}
+
+	/**
+	 * Rewrite the data file with only the current version of each chunk. The
+	 * new data and index files are written beside the old ones, then the index
+	 * and then the data file are moved into place.
+	 */
+	private void compact() throws IOException {
+		final File newData = new File(dataFile.getPath() + COMPACT);
+		final File newIndex = new File(indexFile.getPath() + COMPACT);
+		final List<Sealed> moved = new ArrayList<Sealed>(sealed.size());
+		long offset = 0;
+		final RandomAccessFile out = new RandomAccessFile(newData, "rw");
+		final FileOutputStream idx = new FileOutputStream(newIndex);
+		try {
+			out.setLength(0);
+			final DataOutputStream idxOut = new DataOutputStream(
+					new BufferedOutputStream(idx));
+			byte[] buf = new byte[0];
+			for (int chunk = 0; chunk < sealed.size(); chunk++) {
+				final Sealed s = sealed.get(chunk);
+				if (s == null) {
+					moved.add(null);
+					continue;
+				}
+				if (buf.length < s.length)
+					buf = new byte[s.length];
+				data.seek(s.offset);
+				data.readFully(buf, 0, s.length);
+				out.write(buf, 0, s.length);
+				writeEntry(idxOut, chunk, offset, s.length, s.capacity);
+				moved.add(new Sealed(offset, s.length, s.capacity));
+				offset += s.length;
+			}
+			idxOut.flush();
+			out.getFD().sync();
+			idx.getFD().sync();
+		} finally {
+			out.close();
+			idx.close();
+		}
+		indexOut.close();
+		data.close();
+		move(newIndex, indexFile);
+		move(newData, dataFile);
+		data = new RandomAccessFile(dataFile, "rw");
+		indexOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile, true)));
+		sealed.clear();
+		sealed.addAll(moved);
+		live = offset;
+	}
+
+	/**
+	 * Finish or discard a compaction interrupted by a crash. If the new index
+	 * has not been moved into place the old files are intact; otherwise the
+	 * new data file still has to be.
+	 */
+	private void recoverCompaction() throws IOException {
+		final File newData = new File(dataFile.getPath() + COMPACT);
+		final File newIndex = new File(indexFile.getPath() + COMPACT);
+		if (newIndex.exists()) {
+			newIndex.delete();
+			newData.delete();
+		} else if (newData.exists()) {
+			move(newData, dataFile);
+		}
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void loadIndex() throws IOException {
+		if (!indexFile.exists())
+			return;
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				indexFile));
+		final long dataLength = data.length();
+		try {
+			while (true) {
+				final int chunk = in.readInt();
+				final Sealed s = new Sealed(in.readLong(), in.readInt(),
+						in.readInt());
+				// ignore chunks whose data did not make it to disk
+				if (s.offset + s.length <= dataLength)
+					setSealed(chunk, s);
+			}
+		} catch (EOFException e) {
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Wait for any chunks being sealed, write back late writes, and push the
+	 * hot chunk to disk.
+	 */
+	synchronized void flush() throws IOException {
+		while (!sealing.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		writeBack();
+		if (hot != null)
+			hot.force();
+	}
+
+	synchronized void close() throws IOException {
+		flush();
+		indexOut.close();
+		data.close();
+		hotRaf.close();
+	}
+
+	/**
+	 * XOR-delta code the values of each row along time, and deflate.
+	 */
+	byte[] compress(long[] values) {
+		final long[] delta = values.clone();
+		for (int row = 0; row < delta.length; row += stride) {
+			final int first = row + maskWords;
+			for (int i = row + stride - 1; i > first; i--) {
+				delta[i] ^= delta[i - 1];
+			}
+		}
+		final ByteBuffer b = ByteBuffer.allocate(delta.length * 8);
+		b.asLongBuffer().put(delta);
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(b.array());
+		deflater.finish();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				b.capacity() / 4 + 64);
+		final byte[] buf = new byte[65536];
+		while (!deflater.finished()) {
+			out.write(buf, 0, deflater.deflate(buf));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	long[] decompress(byte[] compressed, int length) throws IOException {
+		final byte[] bytes = new byte[length * 8];
+		final Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		try {
+			int n = 0;
+			while (n < bytes.length && !inflater.finished()) {
+				n += inflater.inflate(bytes, n, bytes.length - n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		final long[] values = new long[length];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(values);
+		for (int row = 0; row < values.length; row += stride) {
+			for (int i = row + maskWords + 1; i < row + stride; i++) {
+				values[i] ^= values[i - 1];
+			}
+		}
+		return values;
+	}
+
+	static class Sealed {
+		final long offset;
+		final int length;
+		final int capacity;
+
+		Sealed(long offset, int length, int capacity) {
+			super();
+			this.offset = offset;
+			this.length = length;
+			this.capacity = capacity;
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.util.Properties;
+
+import uk.ac.imperial.presage2.core.db.DatabaseModule;
+import uk.ac.imperial.presage2.core.db.DatabaseService;
+import uk.ac.imperial.presage2.core.db.StorageService;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+
+public class ColumnarModule extends DatabaseModule {
+
+	static final String STORAGEPATH_KEY = "columnar.storagepath";
+	/**
+	 * Number of timesteps in each compressed column chunk.
+	 */
+	static final String CHUNKSTEPS_KEY = "columnar.chunksteps";
+	/**
+	 * Interval in ms between flushes of pending chunks and metadata.
+	 */
+	static final String FLUSHINTERVAL_KEY = "columnar.flushinterval";
+
+	String baseStoragePath = "data/";
+	int chunkSteps = 16;
+	long flushInterval = 1000;
+
+	public ColumnarModule(Properties p) {
+		super();
+		if (p.containsKey(STORAGEPATH_KEY)) {
+			baseStoragePath = p.getProperty(STORAGEPATH_KEY);
+		}
+		if (p.containsKey(CHUNKSTEPS_KEY)) {
+			chunkSteps = Integer.parseInt(p.getProperty(CHUNKSTEPS_KEY));
+		}
+		if (p.containsKey(FLUSHINTERVAL_KEY)) {
+			flushInterval = Long.parseLong(p.getProperty(FLUSHINTERVAL_KEY));
+		}
+	}
+
+	@Override
+	protected void configure() {
+		bind(String.class).annotatedWith(Names.named(STORAGEPATH_KEY))
+				.toInstance(baseStoragePath);
+		bindConstant().annotatedWith(Names.named(CHUNKSTEPS_KEY)).to(
+				chunkSteps);
+		bindConstant().annotatedWith(Names.named(FLUSHINTERVAL_KEY)).to(
+				flushInterval);
+		bind(ColumnarStorage.class).in(Singleton.class);
+		bind(DatabaseService.class).to(ColumnarStorage.class);
+		bind(StorageService.class).to(ColumnarStorage.class);
+		bind(PersistentSimulation.class).toProvider(StorageService.class);
+	}
+
+}
@@ -0,0 +1,456 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.db.DatabaseService;
+import uk.ac.imperial.presage2.core.db.TupleStorageService;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * <p>
+ * File based storage which keeps numeric per-agent, per-timestep tuples in
+ * binary columns rather than as individual records.
+ * </p>
+ * 
+ * <p>
+ * Each simulation is stored in a directory <code>sim&lt;id&gt;</code> under
+ * the storage path. Integer and double values stored with
+ * {@link #storeTuple(long, String, UUID, int, int)} and
+ * {@link #storeTuple(long, String, UUID, int, double)} go to a {@link Column}
+ * for their key, where they are addressed by the agent's slot and the
+ * timestep. Other timed tuples are appended to a {@link TupleLog}, and
+ * parameters and untimed tuples are kept in a properties file, which is
+ * rewritten when it changes. Pending column chunks, the log and the
+ * properties file are written to disk every <code>flushInterval</code> ms,
+ * and when the service is stopped.
+ * </p>
+ * 
+ * <p>
+ * Column values are stored as doubles, so integers beyond 2<sup>53</sup> lose
+ * precision. Fetching a column value as a String gives the integer form when
+ * the value is integral. When a key has both a String and a numeric value for
+ * the same agent and timestep, String fetches return the former and numeric
+ * fetches the latter.
+ * </p>
+ */
+public class ColumnarStorage extends TupleStorageService implements
+		DatabaseService {
+
+	private final Logger logger = Logger.getLogger(ColumnarStorage.class);
+
+	final File basePath;
+	final int chunkSteps;
+	final long flushInterval;
+	volatile long lastFlush = System.currentTimeMillis();
+
+	boolean started = false;
+	long maxSimId = 0;
+
+	final ConcurrentMap<Long, SimulationData> simulations = new ConcurrentHashMap<Long, SimulationData>();
+	ExecutorService sealer;
+
+	public ColumnarStorage() {
+		this("data/", 16);
+	}
+
+	public ColumnarStorage(String baseStoragePath, int chunkSteps) {
+		this(baseStoragePath, chunkSteps, 1000);
+	}
+
+	@Inject
+	public ColumnarStorage(
+			@Named(ColumnarModule.STORAGEPATH_KEY) String baseStoragePath,
+			@Named(ColumnarModule.CHUNKSTEPS_KEY) int chunkSteps,
+			@Named(ColumnarModule.FLUSHINTERVAL_KEY) long flushInterval) {
+		super();
+		this.basePath = new File(baseStoragePath);
+		this.chunkSteps = chunkSteps;
+		this.flushInterval = flushInterval;
+	}
+
+	@Override
+	public void start() throws Exception {
+		if (!basePath.exists()) {
+			basePath.mkdirs();
+		}
+		if (!basePath.isDirectory()) {
+			throw new RuntimeException("Base path is not a directory.");
+		}
+		sealer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "columnar-sealer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		maxSimId = 0;
+		for (String name : basePath.list()) {
+			if (!name.startsWith("sim"))
+				continue;
+			try {
+				final long id = Long.parseLong(name.substring(3));
+				simulations.put(id, new SimulationData(id, new File(basePath,
+						name), chunkSteps, sealer));
+				maxSimId = Math.max(maxSimId, id);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		started = true;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	@Override
+	public void stop() {
+		if (!isStarted())
+			return;
+		for (SimulationData s : simulations.values()) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				logger.warn("Error closing simulation " + s.id, e);
+			}
+		}
+		simulations.clear();
+		sealer.shutdown();
+		try {
+			sealer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		started = false;
+	}
+
+	/**
+	 * Wait for pending column chunks to be written, and write the
+	 * non-columnar data of all simulations to disk.
+	 */
+	public void flush() {
+		for (SimulationData s : simulations.values()) {
+			try {
+				s.flush();
+			} catch (IOException e) {
+				logger.warn("Error flushing simulation " + s.id, e);
+			}
+		}
+		lastFlush = System.currentTimeMillis();
+	}
+
+	private void checkFlush() {
+		if (System.currentTimeMillis() - lastFlush >= flushInterval)
+			flush();
+	}
+
+	@Override
+	public List<Long> getSimulations() {
+		return Collections.unmodifiableList(new ArrayList<Long>(simulations
+				.keySet()));
+	}
+
+	@Override
+	protected long getNextId() {
+		return ++maxSimId;
+	}
+
+	protected SimulationData getSim(long id) {
+		SimulationData s = simulations.get(id);
+		if (s == null) {
+			synchronized (simulations) {
+				s = simulations.get(id);
+				if (s == null) {
+					try {
+						s = new SimulationData(id, new File(basePath, "sim"
+								+ id), chunkSteps, sealer);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					simulations.put(id, s);
+				}
+			}
+		}
+		return s;
+	}
+
+	private void put(long id, String key, String value) {
+		getSim(id).put(key, value);
+		checkFlush();
+	}
+
+	static String agentKey(UUID agent, String key) {
+		return "a." + agent + "." + key;
+	}
+
+	private void log(long id, String key, UUID agent, int t, String value) {
+		try {
+			getSim(id).log.put(key, agent, t, value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	/**
+	 * @return the logged value for key, agent and t, or null if there is none.
+	 */
+	private static String fetchLogged(SimulationData s, String key,
+			UUID agent, int t) {
+		try {
+			return s.log.get(key, agent, t);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected <T> T returnAsType(String s, Class<T> type) {
+		if (type == String.class)
+			return type.cast(s);
+		else if (type == Integer.class || type == Integer.TYPE)
+			return type.cast(s == null ? 0 : (int) parse(s));
+		else if (type == Double.class || type == Double.TYPE)
+			return type.cast(s == null ? 0.0 : parse(s));
+		else if (type == Boolean.class || type == Boolean.TYPE)
+			return type.cast(Boolean.parseBoolean(s));
+		else if (type == Long.class || type == Long.TYPE)
+			return type.cast(s == null ? 0L : (long) parse(s));
+
+		throw new RuntimeException("Unknown type cast request");
+	}
+
+	protected <T> T returnAsType(double v, Class<T> type) {
+		if (type == String.class) {
+			if (v == Math.rint(v) && !Double.isInfinite(v))
+				return type.cast(Long.toString((long) v));
+			return type.cast(Double.toString(v));
+		} else if (type == Integer.class || type == Integer.TYPE)
+			return type.cast((int) v);
+		else if (type == Double.class || type == Double.TYPE)
+			return type.cast(v);
+		else if (type == Boolean.class || type == Boolean.TYPE)
+			return type.cast(v != 0);
+		else if (type == Long.class || type == Long.TYPE)
+			return type.cast((long) v);
+
+		throw new RuntimeException("Unknown type cast request");
+	}
+
+	private static double parse(String s) {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return Double.parseDouble(s);
+		}
+	}
+
+	private static String toString(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value))
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	@Override
+	protected void storeParameter(long id, String key, String value) {
+		put(id, "p." + key, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, String value) {
+		put(id, "s." + key, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int value) {
+		put(id, "s." + key, Integer.toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, double value) {
+		put(id, "s." + key, toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int t, String value) {
+		log(id, key, null, t, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int t, int value) {
+		log(id, key, null, t, Integer.toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int t, double value) {
+		log(id, key, null, t, toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, String value) {
+		put(id, agentKey(agent, key), value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, int value) {
+		put(id, agentKey(agent, key), Integer.toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, double value) {
+		put(id, agentKey(agent, key), toString(value));
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, int t,
+			String value) {
+		log(id, key, agent, t, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, int t, int value) {
+		storeColumn(id, key, agent, t, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, UUID agent, int t,
+			double value) {
+		storeColumn(id, key, agent, t, value);
+	}
+
+	private void storeColumn(long id, String key, UUID agent, int t,
+			double value) {
+		final SimulationData s = getSim(id);
+		if (t < 0) {
+			log(id, key, agent, t, toString(value));
+			return;
+		}
+		try {
+			s.column(key).put(s.slot(agent), t, value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			int[] values) {
+		checkLength(agents, values.length);
+		final double[] d = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			d[i] = values[i];
+		}
+		storeTuples(id, key, t, agents, d);
+	}
+
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			double[] values) {
+		checkLength(agents, values.length);
+		if (t < 0) {
+			super.storeTuples(id, key, t, agents, values);
+			return;
+		}
+		final SimulationData s = getSim(id);
+		try {
+			final int[] slots = new int[agents.length];
+			for (int i = 0; i < agents.length; i++) {
+				slots[i] = s.slot(agents[i]);
+			}
+			s.column(key).putAll(slots, t, values);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	/**
+	 * @return the column value for agent at t, or null if there is none.
+	 */
+	private Double fetchColumn(SimulationData s, String key, UUID agent, int t) {
+		final int slot = s.getSlot(agent);
+		if (slot < 0 || t < 0)
+			return null;
+		try {
+			final Column c = s.getColumn(key);
+			return c != null ? c.get(slot, t) : null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected Set<String> fetchParameterKeys(long id) {
+		return getSim(id).keys("p.");
+	}
+
+	@Override
+	protected String fetchParameter(long id, String key) {
+		return getSim(id).get("p." + key);
+	}
+
+	@Override
+	protected <T> T fetchTuple(long id, String key, Class<T> type) {
+		return returnAsType(getSim(id).get("s." + key), type);
+	}
+
+	@Override
+	protected <T> T fetchTuple(long id, String key, int t, Class<T> type) {
+		return returnAsType(fetchLogged(getSim(id), key, null, t), type);
+	}
+
+	@Override
+	protected <T> T fetchTuple(long id, String key, UUID agent, Class<T> type) {
+		return returnAsType(getSim(id).get(agentKey(agent, key)), type);
+	}
+
+	@Override
+	protected <T> T fetchTuple(long id, String key, UUID agent, int t,
+			Class<T> type) {
+		final SimulationData s = getSim(id);
+		final String logged = fetchLogged(s, key, agent, t);
+		if (type == String.class && logged != null)
+			return type.cast(logged);
+		final Double v = fetchColumn(s, key, agent, t);
+		if (v != null)
+			return returnAsType(v.doubleValue(), type);
+		return returnAsType(logged, type);
+	}
+
+}
@@ -0,0 +1,252 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * The data of one simulation: a directory holding a properties file of
+ * parameters and untimed tuples, a {@link TupleLog} of the other timed tuples,
+ * the agent slot assignments, and a {@link Column} per key of numeric agent
+ * state.
+ * </p>
+ * 
+ * <p>
+ * Agents are given slots in the order they are first stored against. Slots
+ * are appended to <code>agents.dat</code> as they are assigned so that column
+ * data written before a crash can still be attributed.
+ * </p>
+ * 
+ * <p>
+ * The properties file is rewritten on {@link #flush()} when it has changed,
+ * by replacing it with a complete new copy.
+ * </p>
+ */
+class SimulationData {
+
+	static final String META_FILE = "meta.properties";
+	static final String AGENTS_FILE = "agents.dat";
+	static final String COLUMNS_DIR = "columns";
+
+	final long id;
+	final File dir;
+	final File columnsDir;
+	final int chunkSteps;
+	final Executor sealer;
+
+	final Properties meta = new Properties();
+	/**
+	 * Set when meta has changed since it was last written.
+	 */
+	volatile boolean changed = false;
+	final ConcurrentMap<UUID, Integer> slots = new ConcurrentHashMap<UUID, Integer>();
+	final ConcurrentMap<String, Column> columns = new ConcurrentHashMap<String, Column>();
+	DataOutputStream agentsOut;
+	final TupleLog log;
+
+	SimulationData(long id, File dir, int chunkSteps, Executor sealer)
+			throws IOException {
+		super();
+		this.id = id;
+		this.dir = dir;
+		this.columnsDir = new File(dir, COLUMNS_DIR);
+		this.chunkSteps = chunkSteps;
+		this.sealer = sealer;
+		columnsDir.mkdirs();
+
+		final File metaFile = new File(dir, META_FILE);
+		if (metaFile.exists()) {
+			final InputStream in = new FileInputStream(metaFile);
+			try {
+				meta.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		final File agentsFile = new File(dir, AGENTS_FILE);
+		if (agentsFile.exists()) {
+			final DataInputStream in = new DataInputStream(new FileInputStream(
+					agentsFile));
+			try {
+				while (true) {
+					final UUID agent = new UUID(in.readLong(), in.readLong());
+					slots.put(agent, slots.size());
+				}
+			} catch (EOFException e) {
+			} finally {
+				in.close();
+			}
+		}
+		agentsOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(agentsFile, true)));
+		log = new TupleLog(new File(dir, TupleLog.FILE));
+	}
+
+	String get(String key) {
+		return meta.getProperty(key);
+	}
+
+	void put(String key, String value) {
+		meta.setProperty(key, value);
+		changed = true;
+	}
+
+	Set<String> keys(String prefix) {
+		final Set<String> keys = new HashSet<String>();
+		for (String k : meta.stringPropertyNames()) {
+			if (k.startsWith(prefix))
+				keys.add(k.substring(prefix.length()));
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the slot of agent, or -1 if it does not have one.
+	 */
+	int getSlot(UUID agent) {
+		final Integer slot = slots.get(agent);
+		return slot != null ? slot : -1;
+	}
+
+	/**
+	 * @return the slot of agent, assigning the next free one if needed.
+	 */
+	int slot(UUID agent) throws IOException {
+		final Integer slot = slots.get(agent);
+		if (slot != null)
+			return slot;
+		synchronized (slots) {
+			Integer s = slots.get(agent);
+			if (s == null) {
+				s = slots.size();
+				agentsOut.writeLong(agent.getMostSignificantBits());
+				agentsOut.writeLong(agent.getLeastSignificantBits());
+				agentsOut.flush();
+				slots.put(agent, s);
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * @return the column for key, or null if none has been written.
+	 */
+	Column getColumn(String key) throws IOException {
+		final Column c = columns.get(key);
+		if (c != null || !new File(columnsDir, fileName(key) + ".idx").exists())
+			return c;
+		return column(key);
+	}
+
+	/**
+	 * @return the column for key, creating it if needed.
+	 */
+	Column column(String key) throws IOException {
+		final Column c = columns.get(key);
+		if (c != null)
+			return c;
+		synchronized (columns) {
+			Column col = columns.get(key);
+			if (col == null) {
+				col = new Column(columnsDir, fileName(key), chunkSteps, sealer);
+				columns.put(key, col);
+			}
+			return col;
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			return URLEncoder.encode(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Wait for pending chunks and write the tuple log and metadata to disk.
+	 */
+	synchronized void flush() throws IOException {
+		for (Column c : columns.values()) {
+			c.flush();
+		}
+		log.flush();
+		if (changed) {
+			// clear first so that puts during the write mark it again
+			changed = false;
+			writeMeta();
+		}
+	}
+
+	/**
+	 * Write meta to a temporary file which then replaces the metadata file, so
+	 * a crash part way through leaves the previous version intact.
+	 */
+	private void writeMeta() throws IOException {
+		final File metaFile = new File(dir, META_FILE);
+		final File tmp = new File(dir, META_FILE + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			meta.store(out, null);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), metaFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), metaFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	synchronized void close() throws IOException {
+		flush();
+		for (Column c : columns.values()) {
+			c.close();
+		}
+		columns.clear();
+		log.close();
+		agentsOut.close();
+	}
+
+}
@@ -0,0 +1,314 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Append-only file of the timed tuples of a simulation which do not go to a
+ * {@link Column}: environment tuples, and agent tuples with a String value or
+ * a negative time.
+ * </p>
+ *
+ * <p>
+ * Each record holds the key, time, agent (if any) and value. For each key only
+ * the span of its records in each timestep is kept in memory, so the index
+ * grows with the number of keys and steps rather than the number of tuples. A
+ * lookup reads the spans of the key at that time and takes the last matching
+ * record. A partially written last record is truncated when the file is
+ * opened again.
+ * </p>
+ */
+class TupleLog {
+
+	private final Logger logger = Logger.getLogger(TupleLog.class);
+
+	static final String FILE = "tuples.log";
+
+	final File file;
+	final OutputStream out;
+	final ByteArrayOutputStream record = new ByteArrayOutputStream();
+	final DataOutputStream recordOut = new DataOutputStream(record);
+	RandomAccessFile reader = null;
+	/**
+	 * Bytes written, and bytes which have been pushed to disk.
+	 */
+	long length;
+	long flushed;
+
+	/**
+	 * Where the records of each key are in each timestep.
+	 */
+	final Map<String, TimeIndex> index = new HashMap<String, TimeIndex>();
+	/**
+	 * Number of runs of records with the same time written so far, and the
+	 * time of the last record.
+	 */
+	int steps = 0;
+	int lastT;
+
+	TupleLog(File file) throws IOException {
+		super();
+		this.file = file;
+		this.length = file.exists() ? load() : 0;
+		this.flushed = length;
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true),
+				65536);
+	}
+
+	synchronized void put(String key, UUID agent, int t, String value)
+			throws IOException {
+		record.reset();
+		writeString(recordOut, key);
+		recordOut.writeInt(t);
+		recordOut.writeBoolean(agent != null);
+		if (agent != null) {
+			recordOut.writeLong(agent.getMostSignificantBits());
+			recordOut.writeLong(agent.getLeastSignificantBits());
+		}
+		writeString(recordOut, value);
+		record.writeTo(out);
+		final long from = length;
+		length += record.size();
+		index(key, t, from, length);
+	}
+
+	/**
+	 * @return the last value stored for key, agent and t, or null if there is
+	 *         none.
+	 */
+	synchronized String get(String key, UUID agent, int t) throws IOException {
+		final TimeIndex runs = index.get(key);
+		if (runs == null)
+			return null;
+		String found = null;
+		// later runs of the same step were written later, so take the last
+		// match.
+		for (int i = runs.next(t, 0); i >= 0; i = runs.next(t, i + 1)) {
+			if (runs.ends[i] > flushed)
+				flush();
+			final String v = scan(runs.offsets[i], runs.ends[i], key, agent, t);
+			if (v != null)
+				found = v;
+		}
+		return found;
+	}
+
+	private String scan(long from, long to, String key, UUID agent, int t)
+			throws IOException {
+		if (reader == null)
+			reader = new RandomAccessFile(file, "r");
+		final byte[] b = new byte[(int) (to - from)];
+		reader.seek(from);
+		reader.readFully(b);
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(b));
+		String found = null;
+		while (in.available() > 0) {
+			final Record r = new Record(in);
+			if (r.t == t && r.key.equals(key)
+					&& (agent == null ? r.agent == null : agent.equals(r.agent)))
+				found = new String(r.value, StandardCharsets.UTF_8);
+		}
+		return found;
+	}
+
+	private void index(String key, int t, long from, long to) {
+		if (steps == 0 || t != lastT) {
+			steps++;
+			lastT = t;
+		}
+		TimeIndex i = index.get(key);
+		if (i == null) {
+			i = new TimeIndex();
+			index.put(key, i);
+		}
+		i.put(t, from, to, steps);
+	}
+
+	synchronized void flush() throws IOException {
+		out.flush();
+		flushed = length;
+	}
+
+	synchronized void close() throws IOException {
+		flush();
+		out.close();
+		if (reader != null)
+			reader.close();
+	}
+
+	/**
+	 * Rebuild the index from an existing file. A partially written last record
+	 * is truncated.
+	 *
+	 * @return length of the valid part of the file.
+	 */
+	private long load() throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 65536));
+		long offset = 0;
+		try {
+			while (true) {
+				final Record r = new Record(in);
+				index(r.key, r.t, offset, offset + r.size);
+				offset += r.size;
+			}
+		} catch (EOFException e) {
+		} finally {
+			in.close();
+		}
+		if (offset < file.length()) {
+			logger.warn("Truncating incomplete tuple log " + file + " at "
+					+ offset);
+			final RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				f.setLength(offset);
+			} finally {
+				f.close();
+			}
+		}
+		return offset;
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		final byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return b;
+	}
+
+	/**
+	 * One record read back from the log.
+	 */
+	static class Record {
+
+		final String key;
+		final int t;
+		final UUID agent;
+		final byte[] value;
+		/**
+		 * Length of the record in bytes.
+		 */
+		final int size;
+
+		Record(DataInput in) throws IOException {
+			super();
+			final byte[] k = readBytes(in);
+			this.key = new String(k, StandardCharsets.UTF_8);
+			this.t = in.readInt();
+			this.agent = in.readBoolean() ? new UUID(in.readLong(),
+					in.readLong()) : null;
+			this.value = readBytes(in);
+			this.size = 4 + k.length + 4 + 1 + (agent != null ? 16 : 0) + 4
+					+ value.length;
+		}
+	}
+
+	/**
+	 * File spans of the records of one key, with one run per timestep in
+	 * which the key was written. A run starts at the first record of the key
+	 * in the step and ends after its last. When times are written in
+	 * non-decreasing order, as they are in a running simulation, lookups are
+	 * a binary search.
+	 */
+	static class TimeIndex {
+
+		int[] times = new int[4];
+		long[] offsets = new long[4];
+		long[] ends = new long[4];
+		int size = 0;
+		boolean sorted = true;
+		/**
+		 * The step of the log in which the last run was written.
+		 */
+		int lastStep;
+
+		void put(int t, long from, long to, int step) {
+			if (size > 0 && times[size - 1] == t && lastStep == step) {
+				ends[size - 1] = to;
+				return;
+			}
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			if (size > 0 && t < times[size - 1])
+				sorted = false;
+			times[size] = t;
+			offsets[size] = from;
+			ends[size] = to;
+			size++;
+			lastStep = step;
+		}
+
+		/**
+		 * @return the first run of time t at or after position from, or -1.
+		 */
+		int next(int t, int from) {
+			if (sorted) {
+				int lo = from;
+				int hi = size;
+				while (lo < hi) {
+					final int mid = (lo + hi) >>> 1;
+					if (times[mid] < t)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return lo < size && times[lo] == t ? lo : -1;
+			}
+			for (int i = from; i < size; i++) {
+				if (times[i] == t)
+					return i;
+			}
+			return -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,331 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.columnar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.db.GenericStorageServiceTest;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+public class ColumnarStorageTest extends GenericStorageServiceTest {
+
+	File dir;
+	ColumnarStorage col;
+
+	@Override
+	public void getDatabase() {
+		if (dir == null) {
+			try {
+				dir = File.createTempFile("columnar", "");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			dir.delete();
+		}
+		col = new ColumnarStorage(dir.getPath(), 4);
+		this.db = col;
+		this.sto = col;
+	}
+
+	@After
+	public void cleanUp() {
+		db.stop();
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		if (f.isDirectory()) {
+			for (File c : f.listFiles()) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	private void reopen() throws Exception {
+		db.stop();
+		getDatabase();
+		db.start();
+	}
+
+	@Test
+	public void testColumns() throws Exception {
+		final PersistentSimulation sim = sto.createSimulation("columns",
+				"test", "RUNNING", 10);
+		final long id = sim.getID();
+		final int agents = 100;
+		final int steps = 21;
+		final UUID[] ids = new UUID[agents];
+		for (int a = 0; a < agents; a++) {
+			ids[a] = Random.randomUUID();
+		}
+		// int and double values across several chunks
+		for (int t = 0; t < steps; t++) {
+			for (int a = 0; a < agents; a++) {
+				col.storeTuple(id, "i", ids[a], t, a * t);
+				col.storeTuple(id, "d", ids[a], t, a + t / 10.0);
+			}
+		}
+		checkColumns(id, ids, steps);
+
+		// missing values
+		assertNull(col.fetchTuple(id, "i", ids[0], steps, String.class));
+		assertNull(col.fetchTuple(id, "i", Random.randomUUID(), 0, String.class));
+		assertNull(col.fetchTuple(id, "x", ids[0], 0, String.class));
+
+		// out of order writes to sealed chunks and gaps
+		col.storeTuple(id, "i", ids[5], 1, -1);
+		col.storeTuple(id, "i", ids[6], steps + 10, 7);
+		col.storeTuple(id, "i", ids[7], 2, 1.5);
+		assertEquals(-1, (int) col.fetchTuple(id, "i", ids[5], 1,
+				Integer.class));
+		assertEquals("1.5", col.fetchTuple(id, "i", ids[7], 2, String.class));
+		assertEquals(7, (int) col.fetchTuple(id, "i", ids[6], steps + 10,
+				Integer.class));
+		assertNull(col.fetchTuple(id, "i", ids[6], steps + 9, String.class));
+
+		// string values alongside
+		col.storeTuple(id, "i", ids[8], 3, "eight");
+		assertEquals("eight", col.fetchTuple(id, "i", ids[8], 3, String.class));
+		assertEquals(24, (int) col.fetchTuple(id, "i", ids[8], 3,
+				Integer.class));
+
+		reopen();
+		assertEquals(-1, (int) col.fetchTuple(id, "i", ids[5], 1,
+				Integer.class));
+		assertEquals(1.5, col.fetchTuple(id, "i", ids[7], 2, Double.class),
+				0);
+		assertEquals("eight", col.fetchTuple(id, "i", ids[8], 3, String.class));
+		assertEquals("7", col.fetchTuple(id, "i", ids[6], steps + 10, String.class));
+		assertEquals("RUNNING", sto.getSimulationById(id).getState());
+
+		// new agents and steps after reopening
+		col.storeTuple(id, "i", ids[0], steps + 11, 42);
+		final UUID late = Random.randomUUID();
+		col.storeTuple(id, "i", late, 0, 3);
+		assertEquals("42",
+				col.fetchTuple(id, "i", ids[0], steps + 11, String.class));
+		assertEquals("3", col.fetchTuple(id, "i", late, 0, String.class));
+		assertEquals(String.valueOf(99 * 4),
+				col.fetchTuple(id, "i", ids[99], 4, String.class));
+	}
+
+	@Test
+	public void testStoredNaN() throws Exception {
+		final long id = sto.createSimulation("nan", "test", "RUNNING", 10)
+				.getID();
+		final UUID a = Random.randomUUID();
+		final UUID b = Random.randomUUID();
+		// NaN and zero in the hot chunk
+		col.storeTuple(id, "d", a, 0, Double.NaN);
+		col.storeTuple(id, "d", b, 0, 0.0);
+		assertTrue(Double.isNaN(col.fetchTuple(id, "d", a, 0, Double.class)));
+		assertEquals("NaN", col.fetchTuple(id, "d", a, 0, String.class));
+		assertEquals("0", col.fetchTuple(id, "d", b, 0, String.class));
+		assertNull(col.fetchTuple(id, "d", a, 1, String.class));
+		assertNull(col.fetchTuple(id, "d", b, 1, String.class));
+
+		// sealed, then a late NaN
+		col.storeTuple(id, "d", a, 9, 1.0);
+		col.storeTuple(id, "d", b, 2, Double.NaN);
+		assertEquals("NaN", col.fetchTuple(id, "d", a, 0, String.class));
+		assertEquals("0", col.fetchTuple(id, "d", b, 0, String.class));
+		assertEquals("NaN", col.fetchTuple(id, "d", b, 2, String.class));
+		assertNull(col.fetchTuple(id, "d", b, 1, String.class));
+
+		reopen();
+		assertEquals("NaN", col.fetchTuple(id, "d", a, 0, String.class));
+		assertEquals("0", col.fetchTuple(id, "d", b, 0, String.class));
+		assertEquals("NaN", col.fetchTuple(id, "d", b, 2, String.class));
+		assertEquals("1", col.fetchTuple(id, "d", a, 9, String.class));
+		assertNull(col.fetchTuple(id, "d", a, 8, String.class));
+	}
+
+	@Test
+	public void testPeriodicFlush() throws Exception {
+		final long id = sto.createSimulation("flush", "test", "RUNNING", 10)
+				.getID();
+		final File meta = new File(new File(dir, "sim" + id),
+				SimulationData.META_FILE);
+		col.storeTuple(id, "k", "v");
+		// interval elapsed, the next write flushes without a stop
+		col.lastFlush = 0;
+		col.storeTuple(id, "k2", "v2");
+		final Properties p = new Properties();
+		final InputStream in = new FileInputStream(meta);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		assertEquals("v", p.getProperty("s.k"));
+		assertEquals("v2", p.getProperty("s.k2"));
+		assertTrue(col.lastFlush > 0);
+	}
+
+	@Test
+	public void testLateWrites() throws Exception {
+		final long id = sto.createSimulation("late", "test", "RUNNING", 10)
+				.getID();
+		final UUID[] ids = new UUID[20];
+		for (int a = 0; a < ids.length; a++) {
+			ids[a] = Random.randomUUID();
+		}
+		final int steps = 40;
+		for (int t = 0; t < steps; t++) {
+			for (int a = 0; a < ids.length; a++) {
+				col.storeTuple(id, "i", ids[a], t, a * t);
+			}
+		}
+		col.flush();
+		final Column c = col.getSim(id).getColumn("i");
+		c.minGarbage = 0;
+
+		// late writes to one chunk are buffered until another is read
+		final long length = c.data.length();
+		for (int a = 0; a < ids.length; a++) {
+			col.storeTuple(id, "i", ids[a], 1, -a);
+		}
+		assertEquals(length, c.data.length());
+		assertEquals(-3, (int) col.fetchTuple(id, "i", ids[3], 1,
+				Integer.class));
+
+		// rewrite every sealed chunk several times
+		for (int round = 0; round < 3; round++) {
+			for (int t = 0; t < steps - 4; t++) {
+				for (int a = 0; a < ids.length; a++) {
+					col.storeTuple(id, "i", ids[a], t, a * t + round);
+				}
+			}
+		}
+		col.flush();
+		// old versions are compacted away
+		assertTrue(c.data.length() <= 2 * c.live);
+		for (int t = 0; t < steps; t++) {
+			for (int a = 0; a < ids.length; a++) {
+				assertEquals(t < steps - 4 ? a * t + 2 : a * t,
+						(int) col.fetchTuple(id, "i", ids[a], t, Integer.class));
+			}
+		}
+
+		reopen();
+		for (int t = 0; t < steps; t++) {
+			for (int a = 0; a < ids.length; a++) {
+				assertEquals(t < steps - 4 ? a * t + 2 : a * t,
+						(int) col.fetchTuple(id, "i", ids[a], t, Integer.class));
+			}
+		}
+	}
+
+	@Test
+	public void testTupleLog() throws Exception {
+		final long id = sto.createSimulation("log", "test", "RUNNING", 10)
+				.getID();
+		final UUID[] ids = new UUID[50];
+		for (int a = 0; a < ids.length; a++) {
+			ids[a] = Random.randomUUID();
+		}
+		for (int t = 0; t < 5; t++) {
+			col.storeTuple(id, "e", t, t * 2);
+			for (int a = 0; a < ids.length; a++) {
+				col.storeTuple(id, "s", ids[a], t, a + "_" + t);
+			}
+		}
+		col.storeTuple(id, "s", ids[3], 1, "late");
+		col.storeTuple(id, "n", ids[0], -1, 1.5);
+
+		// one run per key and step, and a run for the late write
+		final TupleLog log = col.getSim(id).log;
+		assertEquals(6, log.index.get("s").size);
+		assertEquals(5, log.index.get("e").size);
+		checkLogged(id, ids);
+		col.flush();
+		final File sim = new File(dir, "sim" + id);
+		final Properties p = new Properties();
+		final InputStream in = new FileInputStream(new File(sim,
+				SimulationData.META_FILE));
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		// timed tuples are not kept in the properties file
+		for (String k : p.stringPropertyNames()) {
+			assertTrue(k, k.startsWith("p.") || k.startsWith("s."));
+		}
+
+		// a partially written last record is dropped when reopened
+		db.stop();
+		final RandomAccessFile f = new RandomAccessFile(new File(sim,
+				TupleLog.FILE), "rw");
+		try {
+			f.seek(f.length());
+			f.writeInt(100);
+			f.write(new byte[10]);
+		} finally {
+			f.close();
+		}
+		getDatabase();
+		db.start();
+		checkLogged(id, ids);
+		col.storeTuple(id, "e", 5, 10);
+		assertEquals(10, (int) col.fetchTuple(id, "e", 5, Integer.class));
+	}
+
+	private void checkLogged(long id, UUID[] ids) {
+		for (int t = 0; t < 5; t++) {
+			assertEquals(t * 2, (int) col.fetchTuple(id, "e", t, Integer.class));
+			for (int a = 0; a < ids.length; a++) {
+				assertEquals(a == 3 && t == 1 ? "late" : a + "_" + t,
+						col.fetchTuple(id, "s", ids[a], t, String.class));
+			}
+		}
+		assertNull(col.fetchTuple(id, "e", 5, String.class));
+		assertNull(col.fetchTuple(id, "s", ids[0], 5, String.class));
+		assertEquals(1.5, col.fetchTuple(id, "n", ids[0], -1, Double.class), 0);
+	}
+
+	private void checkColumns(long id, UUID[] ids, int steps) {
+		for (int t = 0; t < steps; t++) {
+			for (int a = 0; a < ids.length; a++) {
+				assertEquals(a * t, (int) col.fetchTuple(id, "i", ids[a], t,
+						Integer.class));
+				assertEquals(Integer.toString(a * t),
+						col.fetchTuple(id, "i", ids[a], t, String.class));
+				assertEquals(a + t / 10.0,
+						col.fetchTuple(id, "d", ids[a], t, Double.class), 0);
+			}
+		}
+	}
+
+}
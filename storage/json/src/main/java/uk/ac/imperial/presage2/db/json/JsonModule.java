@@ -31,14 +31,28 @@ import com.google.inject.name.Names;
 public class JsonModule extends DatabaseModule {
 
 	static final String STORAGEPATH_KEY = "json.storagepath";
+	/**
+	 * Set to <code>true</code> to use {@link StreamingJsonStorage}.
+	 */
+	static final String STREAMING_KEY = "json.streaming";
+	/**
+	 * Interval in ms between flushes of {@link StreamingJsonStorage}.
+	 */
+	static final String FLUSHINTERVAL_KEY = "json.flushinterval";
 
 	String baseStoragePath = "data/";
+	boolean streaming = false;
+	long flushInterval = 1000;
 
 	public JsonModule(Properties p) {
 		super();
 		if (p.containsKey(STORAGEPATH_KEY)) {
 			baseStoragePath = p.getProperty(STORAGEPATH_KEY);
 		}
+		streaming = Boolean.parseBoolean(p.getProperty(STREAMING_KEY));
+		if (p.containsKey(FLUSHINTERVAL_KEY)) {
+			flushInterval = Long.parseLong(p.getProperty(FLUSHINTERVAL_KEY));
+		}
 	}
 
 	@Override
@@ -46,9 +60,18 @@ public class JsonModule extends DatabaseModule {
 		bind(String.class).annotatedWith(Names.named(STORAGEPATH_KEY))
 				.toInstance(baseStoragePath);
 
-		bind(JsonStorage.class).in(Singleton.class);
-		bind(DatabaseService.class).to(JsonStorage.class);
-		bind(StorageService.class).to(JsonStorage.class);
+		final Class<? extends JsonStorage> impl;
+		if (streaming) {
+			bindConstant().annotatedWith(Names.named(FLUSHINTERVAL_KEY)).to(
+					flushInterval);
+			impl = StreamingJsonStorage.class;
+			bind(JsonStorage.class).to(impl);
+		} else {
+			impl = JsonStorage.class;
+		}
+		bind(impl).in(Singleton.class);
+		bind(DatabaseService.class).to(impl);
+		bind(StorageService.class).to(impl);
 		bind(PersistentSimulation.class).toProvider(StorageService.class);
 	}
 
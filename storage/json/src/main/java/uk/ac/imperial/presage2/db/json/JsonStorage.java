@@ -19,7 +19,11 @@
 package uk.ac.imperial.presage2.db.json;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -128,19 +132,43 @@ public class JsonStorage extends TupleStorageService implements
 	public void stop() {
 		if (isStarted()) {
 			// write files
-			File simulationsFile = new File(baseStoragePath
-					+ simulationsFileName);
+			writeSimulations();
+		}
+		started = false;
+	}
+
+	/**
+	 * Write the simulations tree to the simulations file. The tree is written
+	 * to a temporary file which then replaces the simulations file, so a crash
+	 * part way through leaves the previous version intact.
+	 */
+	protected void writeSimulations() {
+		File simulationsFile = new File(baseStoragePath + simulationsFileName);
+		File tmp = new File(baseStoragePath + simulationsFileName + ".tmp");
+		try {
+			final byte[] content = mapper.writeValueAsBytes(root);
+			final FileOutputStream out = new FileOutputStream(tmp);
 			try {
-				mapper.writeValue(simulationsFile, root);
-			} catch (JsonGenerationException e) {
-				e.printStackTrace();
-			} catch (JsonMappingException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
+				out.write(content);
+				out.getFD().sync();
+			} finally {
+				out.close();
 			}
+			try {
+				Files.move(tmp.toPath(), simulationsFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), simulationsFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (JsonGenerationException e) {
+			e.printStackTrace();
+		} catch (JsonMappingException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		started = false;
 	}
 
 	@Override
@@ -154,7 +182,7 @@ public class JsonStorage extends TupleStorageService implements
 		return ++maxSimId;
 	}
 
-	private ObjectNode getSim(long id) {
+	protected ObjectNode getSim(long id) {
 		ObjectNode s = simulations.get(id);
 		if (s == null) {
 			s = mapper.createObjectNode();
@@ -165,7 +193,7 @@ public class JsonStorage extends TupleStorageService implements
 		return s;
 	}
 
-	private <T> T returnAsType(JsonNode n, Class<T> type) {
+	protected <T> T returnAsType(JsonNode n, Class<T> type) {
 		if (type == String.class)
 			return type.cast(n.textValue());
 		else if (type == Integer.class || type == Integer.TYPE)
@@ -256,6 +284,47 @@ public class JsonStorage extends TupleStorageService implements
 				.with(Integer.toString(t)).put(key, value);
 	}
 
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			int[] values) {
+		checkLength(agents, values.length);
+		final ObjectNode ag = getSim(id).with("agenttransproperties");
+		final String time = Integer.toString(t);
+		for (int i = 0; i < agents.length; i++) {
+			ag.with(agents[i].toString()).with(time).put(key, values[i]);
+		}
+	}
+
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			double[] values) {
+		checkLength(agents, values.length);
+		final ObjectNode ag = getSim(id).with("agenttransproperties");
+		final String time = Integer.toString(t);
+		for (int i = 0; i < agents.length; i++) {
+			ag.with(agents[i].toString()).with(time).put(key, values[i]);
+		}
+	}
+
+	@Override
+	protected void storeTuples(long id, UUID agent, Map<String, String> values) {
+		final ObjectNode n = getSim(id).with("agentproperties").with(
+				agent.toString());
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			n.put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	protected void storeTuples(long id, UUID agent, int t,
+			Map<String, String> values) {
+		final ObjectNode n = getSim(id).with("agenttransproperties")
+				.with(agent.toString()).with(Integer.toString(t));
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			n.put(e.getKey(), e.getValue());
+		}
+	}
+
 	@Override
 	protected Set<String> fetchParameterKeys(long id) {
 		Set<String> keys = new HashSet<String>();
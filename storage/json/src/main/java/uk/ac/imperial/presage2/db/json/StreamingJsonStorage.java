@@ -0,0 +1,681 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.json;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * <p>
+ * {@link JsonStorage} which streams time-indexed tuples to disk instead of
+ * keeping them in memory. Only simulation metadata, parameters and untimed
+ * properties are kept in the simulations tree.
+ * </p>
+ * 
+ * <p>
+ * Tuples with a time are appended, one JSON object per line, to
+ * <code>sim&lt;id&gt;.ndjson</code> in the storage path:
+ * </p>
+ * 
+ * <pre>
+ * {"k":"x","a":"&lt;agent uuid&gt;","t":3,"v":1.5}
+ * </pre>
+ * 
+ * <p>
+ * For each key, only the span of the lines written for it in each time step
+ * is kept in memory, so the index grows with the number of keys and steps
+ * rather than the number of tuples. A fetch by <code>(key, t)</code> or
+ * <code>(key, agent, t)</code> seeks to the spans of that key in step
+ * <code>t</code> and scans them for the latest value. The
+ * streams and the simulations file are flushed every
+ * <code>flushInterval</code> ms. The index is rebuilt from the file when an
+ * existing simulation is opened again, discarding any partially written last
+ * line.
+ * </p>
+ */
+public class StreamingJsonStorage extends JsonStorage {
+
+	private final Logger logger = Logger.getLogger(StreamingJsonStorage.class);
+
+	final long flushInterval;
+	long lastFlush = System.currentTimeMillis();
+
+	final Map<Long, TupleStream> streams = new HashMap<Long, TupleStream>();
+
+	public StreamingJsonStorage() {
+		this("data/", 1000);
+	}
+
+	@Inject
+	public StreamingJsonStorage(
+			@Named(JsonModule.STORAGEPATH_KEY) String baseStoragePath,
+			@Named(JsonModule.FLUSHINTERVAL_KEY) long flushInterval) {
+		super(baseStoragePath);
+		this.flushInterval = flushInterval;
+	}
+
+	@Override
+	public synchronized void stop() {
+		for (TupleStream s : streams.values()) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				logger.warn("Error closing tuple stream " + s.file, e);
+			}
+		}
+		streams.clear();
+		super.stop();
+	}
+
+	/**
+	 * Push buffered tuples for all simulations to disk, and rewrite the
+	 * simulations file.
+	 */
+	public synchronized void flush() {
+		for (TupleStream s : streams.values()) {
+			try {
+				s.flush();
+			} catch (IOException e) {
+				logger.warn("Error flushing tuple stream " + s.file, e);
+			}
+		}
+		writeSimulations();
+		lastFlush = System.currentTimeMillis();
+	}
+
+	@Override
+	protected synchronized long getNextId() {
+		// skip ids with a stream left by a run whose metadata was not saved.
+		long id = super.getNextId();
+		while (streamFile(id).exists())
+			id = super.getNextId();
+		return id;
+	}
+
+	File streamFile(long id) {
+		return new File(baseStoragePath + "sim" + id + ".ndjson");
+	}
+
+	/**
+	 * Get the stream for a simulation, opening it if needed. Returns null if
+	 * <code>create</code> is false and the simulation has no stream on disk.
+	 */
+	TupleStream getStream(long id, boolean create) {
+		TupleStream s = streams.get(id);
+		if (s == null) {
+			final File f = streamFile(id);
+			if (!create && !f.exists())
+				return null;
+			try {
+				s = new TupleStream(f);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			streams.put(id, s);
+		}
+		return s;
+	}
+
+	private void append(long id, String key, String agent, int t, Object value) {
+		try {
+			getStream(id, true).append(key, agent, t, value);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	private void checkFlush() {
+		if (System.currentTimeMillis() - lastFlush >= flushInterval)
+			flush();
+	}
+
+	private JsonNode read(long id, String key, String agent, int t) {
+		final TupleStream s = getStream(id, false);
+		if (s != null) {
+			try {
+				final JsonNode n = s.read(key, agent, t);
+				if (n != null)
+					return n;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return MissingNode.getInstance();
+	}
+
+	/*
+	 * The simulations tree is written out by flush(), so every method of
+	 * JsonStorage which reads or changes it holds the same lock.
+	 */
+
+	@Override
+	public synchronized List<Long> getSimulations() {
+		return super.getSimulations();
+	}
+
+	@Override
+	protected synchronized ObjectNode getSim(long id) {
+		return super.getSim(id);
+	}
+
+	@Override
+	protected synchronized void storeParameter(long id, String key,
+			String value) {
+		super.storeParameter(id, key, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, String value) {
+		super.storeTuple(id, key, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, int value) {
+		super.storeTuple(id, key, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, double value) {
+		super.storeTuple(id, key, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			String value) {
+		super.storeTuple(id, key, agent, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			int value) {
+		super.storeTuple(id, key, agent, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			double value) {
+		super.storeTuple(id, key, agent, value);
+	}
+
+	@Override
+	protected synchronized void storeTuples(long id, UUID agent,
+			Map<String, String> values) {
+		super.storeTuples(id, agent, values);
+	}
+
+	@Override
+	protected synchronized Set<String> fetchParameterKeys(long id) {
+		return super.fetchParameterKeys(id);
+	}
+
+	@Override
+	protected synchronized String fetchParameter(long id, String key) {
+		return super.fetchParameter(id, key);
+	}
+
+	@Override
+	protected synchronized <T> T fetchTuple(long id, String key, Class<T> type) {
+		return super.fetchTuple(id, key, type);
+	}
+
+	@Override
+	protected synchronized <T> T fetchTuple(long id, String key, UUID agent,
+			Class<T> type) {
+		return super.fetchTuple(id, key, agent, type);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, int t,
+			String value) {
+		append(id, key, null, t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, int t,
+			int value) {
+		append(id, key, null, t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, int t,
+			double value) {
+		append(id, key, null, t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			int t, String value) {
+		append(id, key, agent.toString(), t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			int t, int value) {
+		append(id, key, agent.toString(), t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuple(long id, String key, UUID agent,
+			int t, double value) {
+		append(id, key, agent.toString(), t, value);
+	}
+
+	@Override
+	protected synchronized void storeTuples(long id, String key, int t,
+			UUID[] agents, int[] values) {
+		checkLength(agents, values.length);
+		final TupleStream s = getStream(id, true);
+		try {
+			for (int i = 0; i < agents.length; i++) {
+				s.append(key, agents[i].toString(), t, values[i]);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	@Override
+	protected synchronized void storeTuples(long id, String key, int t,
+			UUID[] agents, double[] values) {
+		checkLength(agents, values.length);
+		final TupleStream s = getStream(id, true);
+		try {
+			for (int i = 0; i < agents.length; i++) {
+				s.append(key, agents[i].toString(), t, values[i]);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	@Override
+	protected synchronized void storeTuples(long id, UUID agent, int t,
+			Map<String, String> values) {
+		final TupleStream s = getStream(id, true);
+		final String aid = agent.toString();
+		try {
+			for (Map.Entry<String, String> e : values.entrySet()) {
+				s.append(e.getKey(), aid, t, e.getValue());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		checkFlush();
+	}
+
+	@Override
+	protected synchronized <T> T fetchTuple(long id, String key, int t,
+			Class<T> type) {
+		return returnAsType(read(id, key, null, t), type);
+	}
+
+	@Override
+	protected synchronized <T> T fetchTuple(long id, String key, UUID agent,
+			int t, Class<T> type) {
+		return returnAsType(read(id, key, agent.toString(), t), type);
+	}
+
+	/**
+	 * Append-only tuple file for one simulation, with its index.
+	 */
+	class TupleStream {
+
+		final File file;
+		final CountingOutputStream out;
+		final JsonGenerator gen;
+		RandomAccessFile reader = null;
+		byte[] line = new byte[8192];
+		/**
+		 * Bytes of the file which have been pushed to disk.
+		 */
+		long flushed;
+
+		/**
+		 * Where the lines of each key are in each time step.
+		 */
+		final Map<String, TimeIndex> index = new HashMap<String, TimeIndex>();
+		/**
+		 * Number of runs of lines with the same time written so far, and the
+		 * time of the last line.
+		 */
+		int steps = 0;
+		int lastT;
+
+		TupleStream(File file) throws IOException {
+			super();
+			this.file = file;
+			final long length = file.exists() ? loadIndex() : 0;
+			this.flushed = length;
+			this.out = new CountingOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file, true), 65536), length);
+			this.gen = mapper.getFactory().createGenerator(out,
+					JsonEncoding.UTF8);
+			gen.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+			gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			gen.setRootValueSeparator(null);
+		}
+
+		void append(String key, String agent, int t, Object value)
+				throws IOException {
+			final long offset = out.count;
+			gen.writeStartObject();
+			gen.writeStringField("k", key);
+			if (agent != null)
+				gen.writeStringField("a", agent);
+			gen.writeNumberField("t", t);
+			gen.writeFieldName("v");
+			if (value instanceof Integer)
+				gen.writeNumber((Integer) value);
+			else if (value instanceof Double)
+				gen.writeNumber((Double) value);
+			else
+				gen.writeString((String) value);
+			gen.writeEndObject();
+			gen.writeRaw('\n');
+			// push the generator's buffer so that out.count is exact
+			gen.flush();
+			index(key, t, offset, out.count);
+		}
+
+		private void index(String key, int t, long from, long to) {
+			if (steps == 0 || t != lastT) {
+				steps++;
+				lastT = t;
+			}
+			TimeIndex i = index.get(key);
+			if (i == null) {
+				i = new TimeIndex();
+				index.put(key, i);
+			}
+			i.put(t, from, to, steps);
+		}
+
+		JsonNode read(String key, String agent, int t) throws IOException {
+			final TimeIndex runs = index.get(key);
+			if (runs == null)
+				return null;
+			byte[] prefix = null;
+			JsonNode found = null;
+			// later runs of the same step were written later, so take the
+			// last match.
+			for (int i = runs.next(t, 0); i >= 0; i = runs.next(t, i + 1)) {
+				if (runs.ends[i] > flushed)
+					flush();
+				if (prefix == null)
+					prefix = prefix(key, agent);
+				final JsonNode n = scan(runs.offsets[i], runs.ends[i], prefix);
+				if (n != null)
+					found = n;
+			}
+			return found;
+		}
+
+		/**
+		 * The start of the lines written for key and agent, up to the field
+		 * after them.
+		 */
+		private byte[] prefix(String key, String agent) throws IOException {
+			final StringBuilder p = new StringBuilder("{\"k\":");
+			p.append(mapper.writeValueAsString(key));
+			if (agent == null)
+				p.append(",\"t\":");
+			else
+				p.append(",\"a\":").append(mapper.writeValueAsString(agent))
+						.append(',');
+			return p.toString().getBytes("UTF-8");
+		}
+
+		/**
+		 * Find the value of the last line in <code>[from, to)</code> which
+		 * starts with <code>prefix</code>.
+		 */
+		private JsonNode scan(long from, long to, byte[] prefix)
+				throws IOException {
+			if (reader == null)
+				reader = new RandomAccessFile(file, "r");
+			reader.seek(from);
+			JsonNode found = null;
+			long pos = from;
+			int len = 0;
+			while (pos < to) {
+				if (len == line.length)
+					line = Arrays.copyOf(line, line.length * 2);
+				final int read = reader.read(line, len,
+						(int) Math.min(line.length - len, to - pos));
+				if (read < 0)
+					break;
+				pos += read;
+				int start = 0;
+				int end;
+				// only look for line ends in the bytes just read
+				int search = len;
+				len += read;
+				while ((end = indexOf(line, search, len, (byte) '\n')) >= 0) {
+					if (startsWith(line, start, end, prefix))
+						found = mapper.readTree(
+								Arrays.copyOfRange(line, start, end)).get("v");
+					start = end + 1;
+					search = start;
+				}
+				// keep the incomplete line for the next read
+				System.arraycopy(line, start, line, 0, len - start);
+				len -= start;
+			}
+			return found;
+		}
+
+		void flush() throws IOException {
+			gen.flush();
+			out.flush();
+			flushed = out.count;
+		}
+
+		void close() throws IOException {
+			flush();
+			gen.close();
+			out.close();
+			if (reader != null)
+				reader.close();
+		}
+
+		/**
+		 * Rebuild the index from an existing file. A partially written last
+		 * line is truncated.
+		 * 
+		 * @return length of the valid part of the file.
+		 */
+		private long loadIndex() throws IOException {
+			final InputStream in = new BufferedInputStream(new FileInputStream(
+					file), 65536);
+			long offset = 0;
+			try {
+				int len = 0;
+				int b;
+				while ((b = in.read()) >= 0) {
+					if (b != '\n') {
+						if (len == line.length)
+							line = Arrays.copyOf(line, line.length * 2);
+						line[len++] = (byte) b;
+						continue;
+					}
+					final JsonNode n;
+					try {
+						n = mapper.readTree(Arrays.copyOf(line, len));
+					} catch (IOException e) {
+						break;
+					}
+					index(n.get("k").textValue(), n.get("t").intValue(), offset,
+							offset + len + 1);
+					offset += len + 1;
+					len = 0;
+				}
+			} finally {
+				in.close();
+			}
+			if (offset < file.length()) {
+				logger.warn("Truncating incomplete tuple stream " + file
+						+ " at " + offset);
+				final RandomAccessFile f = new RandomAccessFile(file, "rw");
+				try {
+					f.setLength(offset);
+				} finally {
+					f.close();
+				}
+			}
+			return offset;
+		}
+
+	}
+
+	private static int indexOf(byte[] b, int from, int to, byte c) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] b, int from, int to, byte[] prefix) {
+		if (to - from < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (b[from + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * File spans of the lines of one key, with one run per time step in which
+	 * the key was written. A run starts at the first line of the key in the
+	 * step and ends after its last, so lines of other keys written in between
+	 * are skipped by the scan. When times are written in non-decreasing
+	 * order, as they are in a running simulation, lookups are a binary search.
+	 */
+	static class TimeIndex {
+
+		int[] times = new int[4];
+		long[] offsets = new long[4];
+		long[] ends = new long[4];
+		int size = 0;
+		boolean sorted = true;
+		/**
+		 * The step of the stream in which the last run was written.
+		 */
+		int lastStep;
+
+		void put(int t, long from, long to, int step) {
+			if (size > 0 && times[size - 1] == t && lastStep == step) {
+				ends[size - 1] = to;
+				return;
+			}
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			if (size > 0 && t < times[size - 1])
+				sorted = false;
+			times[size] = t;
+			offsets[size] = from;
+			ends[size] = to;
+			size++;
+			lastStep = step;
+		}
+
+		/**
+		 * @return the first run of time t at or after position from, or -1.
+		 */
+		int next(int t, int from) {
+			if (sorted) {
+				int lo = from;
+				int hi = size;
+				while (lo < hi) {
+					final int mid = (lo + hi) >>> 1;
+					if (times[mid] < t)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return lo < size && times[lo] == t ? lo : -1;
+			}
+			for (int i = from; i < size; i++) {
+				if (times[i] == t)
+					return i;
+			}
+			return -1;
+		}
+
+	}
+
+	/**
+	 * Counts the bytes written through it, starting from the initial length
+	 * of the file being appended to.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out, long count) {
+			super(out);
+			this.count = count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+	}
+
+}
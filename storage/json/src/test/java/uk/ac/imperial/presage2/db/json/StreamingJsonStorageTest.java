@@ -0,0 +1,184 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.db.GenericStorageServiceTest;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentEnvironment;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+
+public class StreamingJsonStorageTest extends GenericStorageServiceTest {
+
+	@Override
+	public void getDatabase() {
+		StreamingJsonStorage json = new StreamingJsonStorage();
+		this.db = json;
+		this.sto = json;
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		PersistentSimulation sim = sto.createSimulation("reopen", "test",
+				"RUNNING", 10);
+		final long id = sim.getID();
+		PersistentEnvironment env = sim.getEnvironment();
+		for (int t = 0; t < 10; t++) {
+			env.setProperty("a", t, Integer.toString(t));
+		}
+		// out of order write and overwrite
+		env.setProperty("a", 3, "three");
+		env.setProperty("b", 7, "b7");
+		env.setProperty("b", 2, "b2");
+		assertEquals("three", env.getProperty("a", 3));
+		assertEquals("b2", env.getProperty("b", 2));
+		db.stop();
+
+		// simulate a crash part way through a line
+		FileOutputStream out = new FileOutputStream(
+				((StreamingJsonStorage) db).streamFile(id), true);
+		try {
+			out.write("{\"k\":\"a\",\"t\":".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		getDatabase();
+		db.start();
+		env = sto.getSimulationById(id).getEnvironment();
+		assertEquals("0", env.getProperty("a", 0));
+		assertEquals("three", env.getProperty("a", 3));
+		assertEquals("9", env.getProperty("a", 9));
+		assertEquals("b7", env.getProperty("b", 7));
+		assertEquals("b2", env.getProperty("b", 2));
+		assertNull(env.getProperty("a", 10));
+		assertNull(env.getProperty("c", 0));
+
+		// appends after the truncated line are readable
+		env.setProperty("a", 10, "ten");
+		assertEquals("ten", env.getProperty("a", 10));
+	}
+
+	@Test
+	public void testScanWithinStep() throws Exception {
+		PersistentSimulation sim = sto.createSimulation("scan", "test",
+				"RUNNING", 10);
+		sto.setSimulation(sim);
+		final UUID[] ids = new UUID[500];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = UUID.randomUUID();
+			sto.createAgent(ids[i], "a" + i);
+		}
+		// a value longer than the read buffer between other tuples
+		final char[] big = new char[20000];
+		Arrays.fill(big, 'x');
+		for (int t = 0; t < 3; t++) {
+			for (int i = 0; i < ids.length; i++) {
+				sto.getAgent(ids[i]).getState(t)
+						.setProperty("p", i == 250 ? new String(big) : t + "_" + i);
+			}
+		}
+		for (int t = 0; t < 3; t++) {
+			for (int i = 0; i < ids.length; i += 49) {
+				final PersistentAgent a = sto.getAgent(ids[i]);
+				assertEquals(i == 250 ? new String(big) : t + "_" + i, a
+						.getState(t).getProperty("p"));
+			}
+			assertEquals(new String(big), sto.getAgent(ids[250])
+					.getState(t).getProperty("p"));
+		}
+		assertNull(sto.getAgent(ids[0]).getState(3).getProperty("p"));
+	}
+
+	@Test
+	public void testFlushWhileStoring() throws Exception {
+		final StreamingJsonStorage json = (StreamingJsonStorage) db;
+		final long id = sto.createSimulation("flush", "test", "RUNNING", 10)
+				.getID();
+		final UUID agent = UUID.randomUUID();
+		final Throwable[] error = new Throwable[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 5000; i++) {
+						json.storeParameter(id, "p" + i, "v");
+						json.storeTuple(id, "k" + i, agent, i);
+					}
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+		};
+		writer.start();
+		while (writer.isAlive()) {
+			json.flush();
+		}
+		writer.join();
+		assertNull(error[0]);
+		assertEquals("v", json.fetchParameter(id, "p4999"));
+		assertEquals(4999,
+				json.fetchTuple(id, "k4999", agent, Integer.class).intValue());
+	}
+
+	@Test
+	public void testIndexSpansOneKey() throws Exception {
+		final StreamingJsonStorage json = (StreamingJsonStorage) db;
+		final long id = sto.createSimulation("index", "test", "RUNNING", 10)
+				.getID();
+		final UUID[] agents = new UUID[100];
+		final int[] values = new int[agents.length];
+		for (int i = 0; i < agents.length; i++) {
+			agents[i] = UUID.randomUUID();
+			values[i] = i;
+		}
+		for (int t = 0; t < 3; t++) {
+			json.storeTuples(id, "p", t, agents, values);
+			json.storeTuples(id, "q", t, agents, values);
+			json.storeTuple(id, "e", t, t);
+		}
+		// a later write to an earlier step adds a run
+		json.storeTuple(id, "p", agents[5], 0, -1);
+
+		final StreamingJsonStorage.TupleStream s = json.getStream(id, false);
+		final StreamingJsonStorage.TimeIndex p = s.index.get("p");
+		final StreamingJsonStorage.TimeIndex q = s.index.get("q");
+		assertEquals(4, p.size);
+		assertEquals(3, q.size);
+		assertEquals(3, s.index.get("e").size);
+		for (int i = 0; i < 3; i++) {
+			// runs of p end where q's lines in the same step start
+			assertEquals(p.ends[i], q.offsets[i]);
+		}
+		assertEquals(-1, json.fetchTuple(id, "p", agents[5], 0, Integer.class)
+				.intValue());
+		assertEquals(7, json.fetchTuple(id, "q", agents[7], 2, Integer.class)
+				.intValue());
+		assertEquals(2, json.fetchTuple(id, "e", 2, Integer.class).intValue());
+	}
+
+}
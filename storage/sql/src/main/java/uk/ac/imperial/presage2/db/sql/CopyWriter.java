@@ -0,0 +1,278 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.sql;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import uk.ac.imperial.presage2.db.sql.SqlStorage.PendingTuple;
+import uk.ac.imperial.presage2.db.sql.SqlStorage.TupleBatch;
+
+/**
+ * <p>
+ * Writes batches of tuples to PostgreSQL with <code>COPY ... FROM STDIN</code>
+ * .
+ * </p>
+ * 
+ * <p>
+ * Each tuple table has a temporary staging table on the writer's connection,
+ * with the same columns plus the row's position in its batch
+ * (<code>seq</code>) and its value type (<code>typ</code>). Rows are streamed
+ * into the staging tables in COPY text format, then merged into the tuple
+ * tables in the same transaction: for each value type the latest staged row
+ * of each tuple updates the existing row's value column, or is inserted if
+ * there is none. This gives the same result as MySQL's
+ * <code>ON DUPLICATE KEY UPDATE</code>. The staging tables are created
+ * <code>ON COMMIT DELETE ROWS</code> so they are empty after every flush.
+ * </p>
+ * 
+ * <p>
+ * Tuples are sharded across writers by simulation, table and key, so no two
+ * writers merge the same tuple concurrently.
+ * </p>
+ */
+class CopyWriter {
+
+	/**
+	 * Encoded rows are sent to the server in chunks of about this many chars.
+	 */
+	static final int CHUNK = 65536;
+
+	final Connection conn;
+	final CopyManager copy;
+	final String[] copySql = new String[SqlStorage.TABLES.length];
+	final String[][] updateSql = new String[SqlStorage.TABLES.length][SqlStorage.VALUE_COLUMNS.length];
+	final String[][] insertSql = new String[SqlStorage.TABLES.length][SqlStorage.VALUE_COLUMNS.length];
+	final PreparedStatement[][] update = new PreparedStatement[SqlStorage.TABLES.length][SqlStorage.VALUE_COLUMNS.length];
+	final PreparedStatement[][] insert = new PreparedStatement[SqlStorage.TABLES.length][SqlStorage.VALUE_COLUMNS.length];
+	final StringBuilder buffer = new StringBuilder(CHUNK + 1024);
+
+	/**
+	 * Create the staging tables on <code>conn</code>, which must be in
+	 * auto-commit mode.
+	 */
+	CopyWriter(Connection conn) throws SQLException {
+		super();
+		this.conn = conn;
+		final PGConnection pg = conn instanceof PGConnection ? (PGConnection) conn
+				: conn.unwrap(PGConnection.class);
+		this.copy = pg.getCopyAPI();
+		final Statement create = conn.createStatement();
+		try {
+			for (int table = 0; table < SqlStorage.TABLES.length; table++) {
+				final boolean hasAgent = hasAgent(table);
+				final boolean hasTime = hasTime(table);
+				final String stage = stagingTable(table);
+				String key = "\"sid\", \"key\"";
+				String columns = "\"sid\" bigint, \"key\" varchar(255)";
+				if (hasAgent) {
+					key += ", \"aid\"";
+					columns += ", \"aid\" varchar(36)";
+				}
+				if (hasTime) {
+					key += ", \"t\"";
+					columns += ", \"t\" int";
+				}
+				create.execute("CREATE TEMP TABLE IF NOT EXISTS " + stage
+						+ " (\"seq\" int, " + columns + ", \"typ\" smallint, "
+						+ "\"val_str\" varchar(512), \"val_int\" int, "
+						+ "\"val_dbl\" float) ON COMMIT DELETE ROWS");
+				copySql[table] = "COPY " + stage + " (\"seq\", " + key
+						+ ", \"typ\", \"val_str\", \"val_int\", \"val_dbl\") "
+						+ "FROM STDIN";
+
+				String match = "d.\"sid\" = s.\"sid\" AND d.\"key\" = s.\"key\"";
+				if (hasAgent)
+					match += " AND d.\"aid\" = s.\"aid\"";
+				if (hasTime)
+					match += " AND d.\"t\" = s.\"t\"";
+				final String target = "\"" + SqlStorage.TABLES[table] + "\"";
+				for (int type = 0; type < SqlStorage.VALUE_COLUMNS.length; type++) {
+					final String value = "\""
+							+ SqlStorage.VALUE_COLUMNS[type] + "\"";
+					// latest staged row of each tuple with this value type
+					final String latest = "(SELECT DISTINCT ON (" + key
+							+ ") * FROM " + stage + " WHERE \"typ\" = " + type
+							+ " ORDER BY " + key + ", \"seq\" DESC) AS s";
+					updateSql[table][type] = "UPDATE " + target + " AS d SET "
+							+ value + " = s." + value + " FROM " + latest
+							+ " WHERE " + match;
+					insertSql[table][type] = "INSERT INTO " + target + " ("
+							+ key + ", " + value + ") SELECT s."
+							+ key.replace(", ", ", s.") + ", s." + value
+							+ " FROM " + latest + " WHERE NOT EXISTS "
+							+ "(SELECT 1 FROM " + target + " AS d WHERE "
+							+ match + ")";
+				}
+			}
+		} finally {
+			create.close();
+		}
+	}
+
+	static boolean hasAgent(int table) {
+		return table == SqlStorage.TUPLES_AG || table == SqlStorage.TUPLES_AG_T;
+	}
+
+	static boolean hasTime(int table) {
+		return table == SqlStorage.TUPLES_T || table == SqlStorage.TUPLES_AG_T;
+	}
+
+	static String stagingTable(int table) {
+		return "\"stage_" + SqlStorage.TABLES[table] + "\"";
+	}
+
+	/**
+	 * Stage and merge the rows swapped into {@link TupleBatch#writing} of each
+	 * batch. Must be called inside a transaction.
+	 */
+	void write(List<TupleBatch> work) throws SQLException {
+		for (int table = 0; table < SqlStorage.TABLES.length; table++) {
+			final boolean[] types = new boolean[SqlStorage.VALUE_COLUMNS.length];
+			boolean any = false;
+			for (TupleBatch b : work) {
+				if (b.table == table && !b.writing.isEmpty()) {
+					types[b.type] = true;
+					any = true;
+				}
+			}
+			if (!any)
+				continue;
+
+			final CopyIn in = copy.copyIn(copySql[table]);
+			try {
+				buffer.setLength(0);
+				for (TupleBatch b : work) {
+					if (b.table != table)
+						continue;
+					int seq = 0;
+					for (PendingTuple p : b.writing) {
+						encode(buffer, seq++, p, b.type);
+						if (buffer.length() >= CHUNK)
+							send(in);
+					}
+				}
+				send(in);
+				in.endCopy();
+			} finally {
+				if (in.isActive())
+					in.cancelCopy();
+			}
+
+			for (int type = 0; type < types.length; type++) {
+				if (!types[type])
+					continue;
+				if (update[table][type] == null) {
+					update[table][type] = conn
+							.prepareStatement(updateSql[table][type]);
+					insert[table][type] = conn
+							.prepareStatement(insertSql[table][type]);
+				}
+				update[table][type].executeUpdate();
+				insert[table][type].executeUpdate();
+			}
+		}
+	}
+
+	private void send(CopyIn in) throws SQLException {
+		if (buffer.length() == 0)
+			return;
+		final byte[] bytes;
+		try {
+			bytes = buffer.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		in.writeToCopy(bytes, 0, bytes.length);
+		buffer.setLength(0);
+	}
+
+	/**
+	 * Append a row for tuple p in COPY text format to sb.
+	 */
+	static void encode(StringBuilder sb, int seq, PendingTuple p, int type) {
+		sb.append(seq).append('\t').append(p.tuple.sid).append('\t');
+		escape(sb, p.tuple.key);
+		if (hasAgent(p.tuple.table)) {
+			sb.append('\t');
+			escape(sb, p.tuple.agent);
+		}
+		if (hasTime(p.tuple.table))
+			sb.append('\t').append(p.tuple.t);
+		sb.append('\t').append(type);
+		for (int col = 0; col < SqlStorage.VALUE_COLUMNS.length; col++) {
+			sb.append('\t');
+			if (col != type || p.value == null)
+				sb.append("\\N");
+			else if (type == SqlStorage.VAL_STR)
+				escape(sb, p.value.toString());
+			else
+				sb.append(p.value);
+		}
+		sb.append('\n');
+	}
+
+	static void escape(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	void close() {
+		for (PreparedStatement[][] stmts : new PreparedStatement[][][] {
+				update, insert }) {
+			for (PreparedStatement[] table : stmts) {
+				for (int type = 0; type < table.length; type++) {
+					if (table[type] != null) {
+						try {
+							table[type].close();
+						} catch (SQLException e) {
+						}
+						table[type] = null;
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -27,15 +27,18 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
 
@@ -46,12 +49,72 @@ import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+/**
+ * {@link TupleStorageService} backed by a JDBC database.
+ * 
+ * <p>
+ * Tuple writes are batched in the background by a pool of
+ * {@link QueryExecutor}s, each with its own connection. Rows are sharded
+ * between writers by simulation, table and key, so writes to the same tuple
+ * stay in order. The following properties in <code>sql.info</code> tune the
+ * pool:
+ * </p>
+ * <ul>
+ * <li><code>writers</code>: number of writer connections (default 2).</li>
+ * <li><code>batchSize</code>: rows per batch (default 1000).</li>
+ * <li><code>flushInterval</code>: maximum time in ms a row waits before being
+ * written (default 1000).</li>
+ * <li><code>queueDepth</code>: rows a writer may have pending before producers
+ * block (default 4 x <code>batchSize</code>).</li>
+ * <li><code>readConnections</code>: maximum number of connections used for
+ * reads (default 4).</li>
+ * </ul>
+ * <p>
+ * Reads borrow a connection from a {@link ReadPool} for their duration, so
+ * reads from several threads run concurrently with each other and with the
+ * writers. Each read connection keeps its prepared statements for reuse.
+ * Connections come from the {@link DataSource} if one is injected, so a
+ * pooling data source can be used.
+ * </p>
+ * <p>
+ * The queue depth, flush latency and time producers spent blocked are exposed
+ * so that a slow database can be spotted.
+ * </p>
+ * <p>
+ * Queued writes are kept in a write-behind cache until committed, so a fetch
+ * of a tuple with a pending write is answered from memory and other fetches go
+ * straight to the database without waiting for the queue to drain.
+ * </p>
+ * <p>
+ * With the PostgreSQL driver each batch is streamed with
+ * <code>COPY ... FROM STDIN</code> into staging tables and merged into the
+ * tuple tables at commit, see {@link CopyWriter}.
+ * </p>
+ */
 public class SqlStorage extends TupleStorageService implements DatabaseService {
 
+	static final int TUPLES = 0;
+	static final int TUPLES_T = 1;
+	static final int TUPLES_AG = 2;
+	static final int TUPLES_AG_T = 3;
+	static final String[] TABLES = { "tuples", "tuples_t", "tuples_ag",
+			"tuples_ag_t" };
+
+	static final int VAL_STR = 0;
+	static final int VAL_INT = 1;
+	static final int VAL_DBL = 2;
+	static final String[] VALUE_COLUMNS = { "val_str", "val_int", "val_dbl" };
+
 	protected final Logger logger = Logger.getLogger(SqlStorage.class);
 	protected Properties jdbcInfo;
 	protected Connection conn = null;
-	QueryExecutor exec;
+	protected DataSource dataSource = null;
+	QueryExecutor[] writers;
+	ReadPool readers;
+	/**
+	 * Write-behind cache: the latest queued, uncommitted write to each tuple.
+	 */
+	final ConcurrentMap<TupleKey, PendingTuple> writeBehind = new ConcurrentHashMap<TupleKey, PendingTuple>();
 	Set<String> simKeys = new HashSet<String>();
 
 	@Inject
@@ -63,17 +126,34 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 			Sql.dialect = Dialect.POSTGRESQL;
 		else
 			Sql.dialect = Dialect.MYSQL;
+		// let Connector/J send each batch as a multi-row INSERT
+		if (jdbcInfo.getProperty("driver", "com.mysql.jdbc.Driver").equals(
+				"com.mysql.jdbc.Driver")
+				&& !jdbcInfo.containsKey("rewriteBatchedStatements"))
+			jdbcInfo.setProperty("rewriteBatchedStatements", "true");
 		simKeys.addAll(Arrays.asList(reservedKeys));
 	}
 
+	/**
+	 * Take connections from <code>dataSource</code> instead of the
+	 * <code>url</code> in <code>sql.info</code>. The <code>driver</code>
+	 * property still selects the SQL dialect.
+	 * 
+	 * @param dataSource
+	 */
+	@Inject(optional = true)
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
 	@Override
 	public void start() throws Exception {
 		if (conn == null) {
 			try {
-				Class.forName(jdbcInfo.getProperty("driver",
-						"com.mysql.jdbc.Driver"));
-				this.conn = DriverManager.getConnection(
-						jdbcInfo.getProperty("url"), jdbcInfo);
+				if (dataSource == null)
+					Class.forName(jdbcInfo.getProperty("driver",
+							"com.mysql.jdbc.Driver"));
+				this.conn = openConnection();
 			} catch (SQLException e) {
 				logger.fatal(
 						"Exception while attempting to connect to jdbc db.", e);
@@ -83,12 +163,35 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				throw e;
 			}
 			initTables();
-			// start batch thread
-			exec = new QueryExecutor(10);
-			exec.start();
+			readers = new ReadPool(Integer.parseInt(jdbcInfo.getProperty(
+					"readConnections", "4")));
+			// start batch threads
+			final int batchSize = Integer.parseInt(jdbcInfo.getProperty(
+					"batchSize", "1000"));
+			final long flushInterval = Long.parseLong(jdbcInfo.getProperty(
+					"flushInterval", "1000"));
+			final int queueDepth = Integer.parseInt(jdbcInfo.getProperty(
+					"queueDepth", Integer.toString(4 * batchSize)));
+			writers = new QueryExecutor[Math.max(1,
+					Integer.parseInt(jdbcInfo.getProperty("writers", "2")))];
+			final boolean copy = Sql.dialect == Dialect.POSTGRESQL
+					|| Sql.dialect == Dialect.POSTGRESQL_HSTORE;
+			for (int i = 0; i < writers.length; i++) {
+				final Connection c = openConnection();
+				writers[i] = new QueryExecutor(i, c, copy ? new CopyWriter(c)
+						: null, batchSize, queueDepth, flushInterval);
+				writers[i].start();
+			}
 		}
 	}
 
+	protected Connection openConnection() throws SQLException {
+		if (dataSource != null)
+			return dataSource.getConnection();
+		return DriverManager.getConnection(jdbcInfo.getProperty("url"),
+				jdbcInfo);
+	}
+
 	@Override
 	public boolean isStarted() {
 		return conn != null;
@@ -97,7 +200,10 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 	@Override
 	public void stop() {
 		if (conn != null) {
-			exec.stop();
+			for (QueryExecutor writer : writers) {
+				writer.stop();
+			}
+			readers.close();
 			try {
 				conn.close();
 				conn = null;
@@ -200,30 +306,27 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 
 	@Override
 	public List<Long> getSimulations() {
-		PreparedStatement getSimulations = null;
+		ReadConnection r = null;
 		ResultSet simRow = null;
 		List<Long> simIds = new LinkedList<Long>();
 		try {
-			getSimulations = conn.prepareStatement(Sql.getSimulations());
-			simRow = getSimulations.executeQuery();
+			r = readers.borrow();
+			simRow = r.prepare(Sql.getSimulations()).executeQuery();
 			while (simRow.next()) {
 				simIds.add(simRow.getLong(1));
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
-			if (getSimulations != null) {
-				try {
-					getSimulations.close();
-				} catch (SQLException e) {
-				}
-			}
 			if (simRow != null) {
 				try {
 					simRow.close();
 				} catch (SQLException e) {
 				}
 			}
+			readers.release(r);
 		}
 		return simIds;
 	}
@@ -266,253 +369,328 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 		}
 	}
 
-	@Override
-	protected void storeTuple(long id, String key, String value) {
-		PreparedStatement stmt = null;
-		try {
-			if (simKeys.contains(key)) {
-				stmt = conn.prepareStatement(Sql
-						.formatQuery("UPDATE simulations " + "SET `" + key
-								+ "` = ? WHERE `id` = ?"));
-				stmt.setString(1, value);
-				stmt.setLong(2, id);
-				stmt.executeUpdate();
-			} else {
-				stmt = conn
-						.prepareStatement(Sql
-								.formatQuery("INSERT INTO tuples (`sid`,`key`,`val_str`) VALUE (?, ?, ?) ON DUPLICATE KEY UPDATE `val_str` = VALUES(`val_str`)"));
-				stmt.setLong(1, id);
-				stmt.setString(2, key);
-				stmt.setString(3, value);
-				exec.submit(stmt);
+	/**
+	 * Queue a write of a value to the given tuple. The write is visible to
+	 * fetches through {@link #writeBehind} until its batch has been committed.
+	 */
+	void queue(TupleKey tuple, int type, Object value) {
+		final PendingTuple p = new PendingTuple(tuple, type, value);
+		writeBehind.put(tuple, p);
+		writerFor(tuple).add(p);
+	}
+
+	/**
+	 * Queue several writes, handing each writer its share of them at once.
+	 */
+	void queueAll(List<PendingTuple> ps) {
+		final Map<QueryExecutor, List<PendingTuple>> shards = new HashMap<QueryExecutor, List<PendingTuple>>();
+		for (PendingTuple p : ps) {
+			writeBehind.put(p.tuple, p);
+			final QueryExecutor w = writerFor(p.tuple);
+			List<PendingTuple> shard = shards.get(w);
+			if (shard == null) {
+				shard = new ArrayList<PendingTuple>();
+				shards.put(w, shard);
 			}
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+			shard.add(p);
+		}
+		for (Map.Entry<QueryExecutor, List<PendingTuple>> e : shards
+				.entrySet()) {
+			e.getKey().addAll(e.getValue());
 		}
 	}
 
-	@Override
-	protected void storeTuple(long id, String key, int value) {
-		PreparedStatement stmt = null;
-		try {
-			if (simKeys.contains(key)) {
-				stmt = conn.prepareStatement(Sql
-						.formatQuery("UPDATE simulations " + "SET `" + key
-								+ "` = ? WHERE `id` = ?"));
-				stmt.setInt(1, value);
-				stmt.setLong(2, id);
-				stmt.executeUpdate();
-			} else {
-				stmt = conn
-						.prepareStatement(Sql
-								.formatQuery("INSERT INTO tuples (`sid`,`key`,`val_int`) VALUE (?, ?, ?) ON DUPLICATE KEY UPDATE `val_int` = VALUES(`val_int`)"));
-				stmt.setLong(1, id);
-				stmt.setString(2, key);
-				stmt.setInt(3, value);
-				exec.submit(stmt);
+	/**
+	 * The writer which owns a tuple. Tuples are sharded by simulation, table
+	 * and key so writes to the same tuple are always committed in order.
+	 */
+	QueryExecutor writerFor(TupleKey tuple) {
+		int h = ((int) (tuple.sid ^ (tuple.sid >>> 32)) * 31 + tuple.table)
+				* 31 + tuple.key.hashCode();
+		return writers[(h & Integer.MAX_VALUE) % writers.length];
+	}
+
+	/**
+	 * Read-your-writes for queued tuples. If the latest pending write to the
+	 * tuple holds a value of the requested type it is returned without going
+	 * to the db. If the pending write is of a different type, we wait only for
+	 * it to be committed, so that the db read which follows sees it. Returns
+	 * null when the tuple should be read from the db.
+	 */
+	PendingTuple readPending(TupleKey tuple, Class<?> type) {
+		PendingTuple p;
+		while ((p = writeBehind.get(tuple)) != null) {
+			if (p.type == valueColumn(type))
+				return p;
+			writerFor(tuple).waitFor(p);
+		}
+		return null;
+	}
+
+	private static int valueColumn(Class<?> type) {
+		if (type == String.class || type == Boolean.class
+				|| type == Boolean.TYPE)
+			return VAL_STR;
+		else if (type == Integer.class || type == Integer.TYPE)
+			return VAL_INT;
+		else if (type == Double.class || type == Double.TYPE)
+			return VAL_DBL;
+		return -1;
+	}
+
+	/**
+	 * @return number of rows queued but not yet written.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				depth += writer.pending;
 			}
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
 		}
+		return depth;
 	}
 
-	@Override
-	protected void storeTuple(long id, String key, double value) {
-		PreparedStatement stmt = null;
-		try {
-			if (simKeys.contains(key)) {
-				stmt = conn.prepareStatement(Sql
-						.formatQuery("UPDATE simulations " + "SET `" + key
-								+ "` = ? WHERE `id` = ?"));
-				stmt.setDouble(1, value);
-				stmt.setLong(2, id);
-				stmt.executeUpdate();
-			} else {
-				stmt = conn
-						.prepareStatement(Sql
-								.formatQuery("INSERT INTO tuples (`sid`,`key`,`val_dbl`) VALUE (?, ?, ?) ON DUPLICATE KEY UPDATE `val_dbl` = VALUES(`val_dbl`)"));
-				stmt.setLong(1, id);
-				stmt.setString(2, key);
-				stmt.setDouble(3, value);
-				exec.submit(stmt);
+	/**
+	 * @return number of rows written since the storage was started.
+	 */
+	public long getRowsWritten() {
+		long rows = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				rows += writer.rowsWritten;
 			}
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
 		}
+		return rows;
 	}
 
-	@Override
-	protected void storeTuple(long id, String key, int t, String value) {
+	/**
+	 * @return number of batches written since the storage was started.
+	 */
+	public long getFlushCount() {
+		long flushes = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				flushes += writer.flushes;
+			}
+		}
+		return flushes;
+	}
+
+	/**
+	 * @return mean time in ms taken to write a batch.
+	 */
+	public double getMeanFlushLatency() {
+		long flushes = 0;
+		long time = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				flushes += writer.flushes;
+				time += writer.flushTime;
+			}
+		}
+		return flushes == 0 ? 0 : time / 1e6 / flushes;
+	}
+
+	/**
+	 * @return longest time in ms taken to write a batch.
+	 */
+	public double getMaxFlushLatency() {
+		long max = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				max = Math.max(max, writer.maxFlushTime);
+			}
+		}
+		return max / 1e6;
+	}
+
+	/**
+	 * @return total time in ms that tuple producers have spent blocked waiting
+	 *         for a writer with a full queue.
+	 */
+	public double getBlockedTime() {
+		long time = 0;
+		for (QueryExecutor writer : writers) {
+			synchronized (writer) {
+				time += writer.blockedTime;
+			}
+		}
+		return time / 1e6;
+	}
+
+	/**
+	 * Update a column of the simulations table directly.
+	 */
+	private void updateSimulation(long id, String key, Object value) {
 		PreparedStatement stmt = null;
 		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_t (`sid`,`key`,`t`,`val_str`) VALUE (?, ?, ?, ?) ON DUPLICATE KEY UPDATE `val_str` = VALUES(`val_str`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setInt(3, t);
-			stmt.setString(4, value);
-			exec.submit(stmt);
+			stmt = conn.prepareStatement(Sql.formatQuery("UPDATE simulations "
+					+ "SET `" + key + "` = ? WHERE `id` = ?"));
+			stmt.setObject(1, value);
+			stmt.setLong(2, id);
+			stmt.executeUpdate();
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+				}
+			}
 		}
 	}
 
+	@Override
+	protected void storeTuple(long id, String key, String value) {
+		if (simKeys.contains(key))
+			updateSimulation(id, key, value);
+		else
+			queue(new TupleKey(TUPLES, id, key, null, 0), VAL_STR, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int value) {
+		if (simKeys.contains(key))
+			updateSimulation(id, key, value);
+		else
+			queue(new TupleKey(TUPLES, id, key, null, 0), VAL_INT, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, double value) {
+		if (simKeys.contains(key))
+			updateSimulation(id, key, value);
+		else
+			queue(new TupleKey(TUPLES, id, key, null, 0), VAL_DBL, value);
+	}
+
+	@Override
+	protected void storeTuple(long id, String key, int t, String value) {
+		queue(new TupleKey(TUPLES_T, id, key, null, t), VAL_STR, value);
+	}
+
 	@Override
 	protected void storeTuple(long id, String key, int t, int value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_t (`sid`,`key`,`t`,`val_int`) VALUE (?,?,?,?) ON DUPLICATE KEY UPDATE `val_int` = VALUES(`val_int`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setInt(3, t);
-			stmt.setInt(4, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_T, id, key, null, t), VAL_INT, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, int t, double value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_t (`sid`,`key`,`t`,`val_dbl`) VALUE (?,?,?,?) ON DUPLICATE KEY UPDATE `val_dbl` = VALUES(`val_dbl`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setInt(3, t);
-			stmt.setDouble(4, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_T, id, key, null, t), VAL_DBL, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, String value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag (`sid`,`key`,`aid`,`val_str`) VALUE (?, ?, ?, ?) ON DUPLICATE KEY UPDATE `val_str` = VALUES(`val_str`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setString(4, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_AG, id, key, agent.toString(), 0),
+				VAL_STR, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, int value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag (`sid`,`key`,`aid`,`val_int`) VALUE (?,?,?,?) ON DUPLICATE KEY UPDATE `val_int` = VALUES(`val_int`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setInt(4, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_AG, id, key, agent.toString(), 0),
+				VAL_INT, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, double value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag (`sid`,`key`,`aid`,`val_dbl`) VALUE (?,?,?,?) ON DUPLICATE KEY UPDATE `val_dbl` = VALUES(`val_dbl`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setDouble(4, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_AG, id, key, agent.toString(), 0),
+				VAL_DBL, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, int t,
 			String value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag_t (`sid`,`key`,`aid`,`t`,`val_str`) VALUE (?,?,?,?,?) ON DUPLICATE KEY UPDATE `val_str` = VALUES(`val_str`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setInt(4, t);
-			stmt.setString(5, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_AG_T, id, key, agent.toString(), t),
+				VAL_STR, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, int t, int value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag_t (`sid`,`key`,`aid`,`t`,`val_int`) VALUE (?,?,?,?,?) ON DUPLICATE KEY UPDATE `val_int` = VALUES(`val_int`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setInt(4, t);
-			stmt.setInt(5, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
+		queue(new TupleKey(TUPLES_AG_T, id, key, agent.toString(), t),
+				VAL_INT, value);
 	}
 
 	@Override
 	protected void storeTuple(long id, String key, UUID agent, int t,
 			double value) {
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("INSERT INTO tuples_ag (`sid`,`key`,`aid`,`t`,`val_dbl`) VALUE (?,?,?,?,?) ON DUPLICATE KEY UPDATE `val_dbl` = VALUES(`val_dbl`)"));
-			stmt.setLong(1, id);
-			stmt.setString(2, key);
-			stmt.setString(3, agent.toString());
-			stmt.setInt(4, t);
-			stmt.setDouble(5, value);
-			exec.submit(stmt);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+		queue(new TupleKey(TUPLES_AG_T, id, key, agent.toString(), t),
+				VAL_DBL, value);
+	}
+
+	/**
+	 * All rows of a column share a simulation, table and key, so they are
+	 * queued on one writer with a single lock acquisition.
+	 */
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			int[] values) {
+		checkLength(agents, values.length);
+		final List<PendingTuple> ps = new ArrayList<PendingTuple>(
+				agents.length);
+		for (int i = 0; i < agents.length; i++) {
+			ps.add(new PendingTuple(new TupleKey(TUPLES_AG_T, id, key,
+					agents[i].toString(), t), VAL_INT, values[i]));
+		}
+		queueAll(ps);
+	}
+
+	@Override
+	protected void storeTuples(long id, String key, int t, UUID[] agents,
+			double[] values) {
+		checkLength(agents, values.length);
+		final List<PendingTuple> ps = new ArrayList<PendingTuple>(
+				agents.length);
+		for (int i = 0; i < agents.length; i++) {
+			ps.add(new PendingTuple(new TupleKey(TUPLES_AG_T, id, key,
+					agents[i].toString(), t), VAL_DBL, values[i]));
+		}
+		queueAll(ps);
+	}
+
+	@Override
+	protected void storeTuples(long id, UUID agent, Map<String, String> values) {
+		final String aid = agent.toString();
+		final List<PendingTuple> ps = new ArrayList<PendingTuple>(
+				values.size());
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			ps.add(new PendingTuple(new TupleKey(TUPLES_AG, id, e.getKey(),
+					aid, 0), VAL_STR, e.getValue()));
 		}
+		queueAll(ps);
+	}
+
+	@Override
+	protected void storeTuples(long id, UUID agent, int t,
+			Map<String, String> values) {
+		final String aid = agent.toString();
+		final List<PendingTuple> ps = new ArrayList<PendingTuple>(
+				values.size());
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			ps.add(new PendingTuple(new TupleKey(TUPLES_AG_T, id, e.getKey(),
+					aid, t), VAL_STR, e.getValue()));
+		}
+		queueAll(ps);
 	}
 
 	@Override
 	protected Set<String> fetchParameterKeys(long id) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		Set<String> keys = new HashSet<String>();
 		try {
-			stmt = conn.prepareStatement(Sql.getParametersById());
+			r = readers.borrow();
+			stmt = r.prepare(Sql.getParametersById());
 			stmt.setLong(1, id);
 			rs = stmt.executeQuery();
 			while (rs.next()) {
 				keys.add(rs.getString(1));
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
 			if (rs != null) {
@@ -522,26 +700,20 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			readers.release(r);
 		}
 		return keys;
 	}
 
 	@Override
 	protected String fetchParameter(long id, String key) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("SELECT value FROM parameters WHERE `simId` = ? AND `name` = ?"));
+			r = readers.borrow();
+			stmt = r.prepare(Sql
+					.formatQuery("SELECT value FROM parameters WHERE `simId` = ? AND `name` = ?"));
 			stmt.setLong(1, id);
 			stmt.setString(2, key);
 			rs = stmt.executeQuery();
@@ -549,6 +721,8 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				return rs.getString(1);
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			e.printStackTrace();
 		} finally {
 			if (rs != null) {
@@ -558,13 +732,7 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			readers.release(r);
 		}
 		return null;
 	}
@@ -599,12 +767,13 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 
 	@Override
 	protected <T> T fetchTuple(long id, String key, Class<T> type) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
 			if (simKeys.contains(key)) {
-				stmt = conn.prepareStatement(Sql.formatQuery("SELECT `" + key
+				r = readers.borrow();
+				stmt = r.prepare(Sql.formatQuery("SELECT `" + key
 						+ "` FROM simulations WHERE id = ?"));
 				stmt.setLong(1, id);
 				rs = stmt.executeQuery();
@@ -612,9 +781,13 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					return returnAsType(rs, type, 1);
 				}
 			} else {
-				stmt = conn
-						.prepareStatement(Sql
-								.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples` WHERE `sid` = ? AND `key` = ?"));
+				final PendingTuple p = readPending(new TupleKey(TUPLES, id,
+						key, null, 0), type);
+				if (p != null)
+					return type.cast(p.value);
+				r = readers.borrow();
+				stmt = r.prepare(Sql
+						.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples` WHERE `sid` = ? AND `key` = ?"));
 				stmt.setLong(1, id);
 				stmt.setString(2, key);
 				rs = stmt.executeQuery();
@@ -623,6 +796,8 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				}
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
 			if (rs != null) {
@@ -632,26 +807,24 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			readers.release(r);
 		}
 		return null;
 	}
 
 	@Override
 	protected <T> T fetchTuple(long id, String key, int t, Class<T> type) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_t` WHERE `sid` = ? AND `key` = ? AND `t` = ?"));
+			final PendingTuple p = readPending(new TupleKey(TUPLES_T, id, key,
+					null, t), type);
+			if (p != null)
+				return type.cast(p.value);
+			r = readers.borrow();
+			stmt = r.prepare(Sql
+					.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_t` WHERE `sid` = ? AND `key` = ? AND `t` = ?"));
 			stmt.setLong(1, id);
 			stmt.setString(2, key);
 			stmt.setInt(3, t);
@@ -660,6 +833,8 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				return returnTupleAsType(rs, type);
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
 			if (rs != null) {
@@ -669,26 +844,24 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			readers.release(r);
 		}
 		return null;
 	}
 
 	@Override
 	protected <T> T fetchTuple(long id, String key, UUID agent, Class<T> type) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_ag` WHERE `sid` = ? AND `key` = ? AND `aid` = ?"));
+			final PendingTuple p = readPending(new TupleKey(TUPLES_AG, id, key,
+					agent.toString(), 0), type);
+			if (p != null)
+				return type.cast(p.value);
+			r = readers.borrow();
+			stmt = r.prepare(Sql
+					.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_ag` WHERE `sid` = ? AND `key` = ? AND `aid` = ?"));
 			stmt.setLong(1, id);
 			stmt.setString(2, key);
 			stmt.setString(3, agent.toString());
@@ -697,6 +870,8 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				return returnTupleAsType(rs, type);
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
 			if (rs != null) {
@@ -706,13 +881,7 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
-			if (stmt != null) {
-				try {
-					stmt.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-			}
+			readers.release(r);
 		}
 		return null;
 	}
@@ -720,13 +889,17 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 	@Override
 	protected <T> T fetchTuple(long id, String key, UUID agent, int t,
 			Class<T> type) {
-		exec.waitForEmptyQueue();
+		ReadConnection r = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		try {
-			stmt = conn
-					.prepareStatement(Sql
-							.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_ag_t` WHERE `sid` = ? AND `key` = ? AND `aid` = ? AND `t` = ?"));
+			final PendingTuple p = readPending(new TupleKey(TUPLES_AG_T, id,
+					key, agent.toString(), t), type);
+			if (p != null)
+				return type.cast(p.value);
+			r = readers.borrow();
+			stmt = r.prepare(Sql
+					.formatQuery("SELECT `val_str`, `val_int`, `val_dbl` FROM `tuples_ag_t` WHERE `sid` = ? AND `key` = ? AND `aid` = ? AND `t` = ?"));
 			stmt.setLong(1, id);
 			stmt.setString(2, key);
 			stmt.setString(3, agent.toString());
@@ -736,6 +909,8 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 				return returnTupleAsType(rs, type);
 			}
 		} catch (SQLException e) {
+			readers.discard(r);
+			r = null;
 			throw new RuntimeException(e);
 		} finally {
 			if (rs != null) {
@@ -745,106 +920,502 @@ public class SqlStorage extends TupleStorageService implements DatabaseService {
 					e.printStackTrace();
 				}
 			}
+			readers.release(r);
+		}
+		return null;
+	}
+
+	/**
+	 * A connection used for reads, which keeps a {@link PreparedStatement} for
+	 * each query it has run.
+	 */
+	static class ReadConnection {
+
+		final Connection conn;
+		final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+		ReadConnection(Connection conn) {
+			super();
+			this.conn = conn;
+		}
+
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = statements.get(sql);
+			if (stmt == null) {
+				stmt = conn.prepareStatement(sql);
+				statements.put(sql, stmt);
+			}
+			return stmt;
+		}
+
+		void close() {
+			for (PreparedStatement stmt : statements.values()) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+				}
+			}
+			statements.clear();
+			try {
+				conn.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	/**
+	 * Up to <code>max</code> {@link ReadConnection}s, opened on demand. A read
+	 * borrows one for its duration, waiting if they are all in use. Idle
+	 * connections are reused most recently used first, so a few connections
+	 * with warm statement caches serve most reads.
+	 */
+	class ReadPool {
+
+		final int max;
+		final LinkedList<ReadConnection> idle = new LinkedList<ReadConnection>();
+		int open = 0;
+		boolean closed = false;
+
+		ReadPool(int max) {
+			super();
+			this.max = Math.max(1, max);
+		}
+
+		ReadConnection borrow() throws SQLException {
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						throw new SQLException("Storage has been stopped.");
+					if (!idle.isEmpty())
+						return idle.removeLast();
+					if (open < max)
+						break;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				open++;
+			}
+			try {
+				return new ReadConnection(openConnection());
+			} catch (SQLException e) {
+				synchronized (this) {
+					open--;
+					notify();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Return a connection to the pool. Does nothing if r is null.
+		 */
+		synchronized void release(ReadConnection r) {
+			if (r == null)
+				return;
+			if (closed) {
+				open--;
+				r.close();
+			} else {
+				idle.addLast(r);
+			}
+			notify();
+		}
+
+		/**
+		 * Close a connection which may be broken instead of returning it to
+		 * the pool. Does nothing if r is null.
+		 */
+		synchronized void discard(ReadConnection r) {
+			if (r == null)
+				return;
+			open--;
+			r.close();
+			notify();
+		}
+
+		synchronized void close() {
+			closed = true;
+			for (ReadConnection r : idle) {
+				r.close();
+			}
+			open -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+
+		synchronized int getOpenConnections() {
+			return open;
+		}
+
+	}
+
+	/**
+	 * Identifies a single tuple: the primary key of a row in one of the tuple
+	 * tables. <code>agent</code> and <code>t</code> are unused (null and 0)
+	 * for tables without those columns.
+	 */
+	static class TupleKey {
+
+		final int table;
+		final long sid;
+		final String key;
+		final String agent;
+		final int t;
+
+		TupleKey(int table, long sid, String key, String agent, int t) {
+			super();
+			this.table = table;
+			this.sid = sid;
+			this.key = key;
+			this.agent = agent;
+			this.t = t;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = (int) (sid ^ (sid >>> 32));
+			h = h * 31 + table;
+			h = h * 31 + key.hashCode();
+			h = h * 31 + (agent == null ? 0 : agent.hashCode());
+			return h * 31 + t;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TupleKey))
+				return false;
+			final TupleKey other = (TupleKey) obj;
+			return table == other.table && sid == other.sid && t == other.t
+					&& key.equals(other.key)
+					&& (agent == null ? other.agent == null : agent
+							.equals(other.agent));
+		}
+
+	}
+
+	/**
+	 * A queued write of a value to a tuple. Compared by identity, so a newer
+	 * write to the same tuple is not removed from the write-behind cache when
+	 * an older one is committed.
+	 */
+	static class PendingTuple {
+
+		final TupleKey tuple;
+		final int type;
+		final Object value;
+
+		PendingTuple(TupleKey tuple, int type, Object value) {
+			super();
+			this.tuple = tuple;
+			this.type = type;
+			this.value = storedValue(type, value);
+		}
+
+		/**
+		 * The value as it will be read back from the db. On MySQL
+		 * <code>val_dbl</code> is a single precision <code>float</code>, so
+		 * doubles are rounded now and a fetch gives the same result before
+		 * and after the write is committed.
+		 */
+		static Object storedValue(int type, Object value) {
+			if (type == VAL_DBL && Sql.dialect == Dialect.MYSQL
+					&& value instanceof Double)
+				return (double) ((Double) value).floatValue();
+			return value;
+		}
+
+	}
+
+	/**
+	 * Rows waiting to be written to one tuple table and value column. All rows
+	 * share a single {@link PreparedStatement} which is prepared on first use
+	 * and kept open until the storage is stopped.
+	 */
+	class TupleBatch {
+
+		final int table;
+		final int type;
+		final String sql;
+		final boolean hasAgent;
+		final boolean hasTime;
+		PreparedStatement stmt = null;
+		List<PendingTuple> rows = new ArrayList<PendingTuple>();
+		List<PendingTuple> writing = new ArrayList<PendingTuple>();
+
+		TupleBatch(int table, int type) {
+			super();
+			this.table = table;
+			this.type = type;
+			this.hasAgent = table == TUPLES_AG || table == TUPLES_AG_T;
+			this.hasTime = table == TUPLES_T || table == TUPLES_AG_T;
+			StringBuilder columns = new StringBuilder("`sid`,`key`");
+			StringBuilder params = new StringBuilder("?,?");
+			if (hasAgent) {
+				columns.append(",`aid`");
+				params.append(",?");
+			}
+			if (hasTime) {
+				columns.append(",`t`");
+				params.append(",?");
+			}
+			final String value = VALUE_COLUMNS[type];
+			this.sql = Sql.formatQuery("INSERT INTO " + TABLES[table] + " ("
+					+ columns + ",`" + value + "`) VALUES (" + params
+					+ ",?) ON DUPLICATE KEY UPDATE `" + value + "` = VALUES(`"
+					+ value + "`)");
+		}
+
+		/**
+		 * Bind the rows swapped into {@link #writing} and send them to the db
+		 * as one batch.
+		 */
+		void write(Connection c) throws SQLException {
+			if (stmt == null)
+				stmt = c.prepareStatement(sql);
+			for (PendingTuple p : writing) {
+				int i = 1;
+				stmt.setLong(i++, p.tuple.sid);
+				stmt.setString(i++, p.tuple.key);
+				if (hasAgent)
+					stmt.setString(i++, p.tuple.agent);
+				if (hasTime)
+					stmt.setInt(i++, p.tuple.t);
+				stmt.setObject(i, p.value);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+
+		void close() {
 			if (stmt != null) {
 				try {
 					stmt.close();
 				} catch (SQLException e) {
-					e.printStackTrace();
 				}
+				stmt = null;
 			}
 		}
-		return null;
 	}
 
+	/**
+	 * Writes tuples in the background on its own connection. Rows are
+	 * accumulated per table and value type, and written with one
+	 * {@link PreparedStatement#executeBatch()} per {@link TupleBatch} inside a
+	 * single transaction. A write is triggered when <code>batchSize</code> rows
+	 * are pending, when a reader needs the data to be up to date, or after
+	 * <code>flushInterval</code> ms. Producers block once
+	 * <code>queueDepth</code> rows are pending. On PostgreSQL the rows are
+	 * written with COPY by a {@link CopyWriter} instead.
+	 */
 	class QueryExecutor implements Runnable {
 
-		final protected BlockingQueue<PreparedStatement> queryQ;
+		final Connection writeConn;
+		final CopyWriter copyWriter;
+		final TupleBatch[][] batches;
+		final int batchSize;
+		final int queueDepth;
+		final long flushInterval;
 		final Thread execThread;
-		AtomicBoolean inTransaction = new AtomicBoolean();
+		int pending = 0;
+		boolean flushRequested = false;
+		boolean stopped = false;
 
-		QueryExecutor(int capacity) {
+		// metrics, times in ns
+		long rowsWritten = 0;
+		long flushes = 0;
+		long flushTime = 0;
+		long maxFlushTime = 0;
+		long blockedTime = 0;
+
+		QueryExecutor(int id, Connection writeConn, CopyWriter copyWriter,
+				int batchSize, int queueDepth, long flushInterval) {
 			super();
-			queryQ = new LinkedBlockingQueue<PreparedStatement>(capacity);
-			execThread = new Thread(this, "Query executor");
+			this.writeConn = writeConn;
+			this.copyWriter = copyWriter;
+			this.batchSize = Math.max(1, batchSize);
+			this.queueDepth = Math.max(1, queueDepth);
+			this.flushInterval = Math.max(1, flushInterval);
+			batches = new TupleBatch[TABLES.length][VALUE_COLUMNS.length];
+			for (int table = 0; table < TABLES.length; table++) {
+				for (int type = 0; type < VALUE_COLUMNS.length; type++) {
+					batches[table][type] = new TupleBatch(table, type);
+				}
+			}
+			execThread = new Thread(this, "Query executor " + id);
 		}
 
 		public void start() {
 			execThread.start();
 		}
 
-		public synchronized void stop() {
+		public void stop() {
+			synchronized (this) {
+				stopped = true;
+				notifyAll();
+			}
 			try {
-				PreparedStatement queuePoison = conn
-						.prepareStatement("SELECT 1");
-				queuePoison.close();
-				submit(queuePoison);
 				execThread.join();
-			} catch (SQLException e2) {
-				throw new RuntimeException(e2);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
+			try {
+				writeConn.close();
+			} catch (SQLException e) {
+				logger.warn("Exception when closing db.", e);
+			}
 		}
 
-		public synchronized void submit(PreparedStatement stmt) {
-			try {
-				queryQ.put(stmt);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+		public synchronized void add(PendingTuple p) {
+			awaitCapacity();
+			batches[p.tuple.table][p.type].rows.add(p);
+			if (++pending == batchSize)
+				notifyAll();
+		}
+
+		/**
+		 * Add several rows while holding the queue lock once. The queue depth
+		 * is still respected between rows.
+		 */
+		public synchronized void addAll(List<PendingTuple> ps) {
+			for (PendingTuple p : ps) {
+				awaitCapacity();
+				batches[p.tuple.table][p.type].rows.add(p);
+				if (++pending == batchSize)
+					notifyAll();
 			}
 		}
 
-		public synchronized void waitForEmptyQueue() {
-			synchronized (queryQ) {
-				logger.trace("Check exec...");
-				while (inTransaction.get() || !queryQ.isEmpty()) {
-					logger.trace("Exec in transaction");
+		private void awaitCapacity() {
+			if (pending >= queueDepth && !stopped) {
+				final long blockStart = System.nanoTime();
+				logger.debug(execThread.getName() + " queue full, blocking");
+				while (pending >= queueDepth && !stopped) {
+					flushRequested = true;
+					notifyAll();
 					try {
-						queryQ.wait();
+						wait();
 					} catch (InterruptedException e) {
-						e.printStackTrace();
+						throw new RuntimeException(e);
 					}
 				}
+				blockedTime += System.nanoTime() - blockStart;
+			}
+		}
+
+		/**
+		 * Block until the given write has been committed, or replaced in the
+		 * write-behind cache by a newer write to the same tuple.
+		 */
+		public synchronized void waitFor(PendingTuple p) {
+			while (!stopped && writeBehind.get(p.tuple) == p) {
+				flushRequested = true;
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
 			}
 		}
 
 		@Override
 		public void run() {
-			while (true) {
-				List<PreparedStatement> tx = new ArrayList<PreparedStatement>();
-				boolean breakOnFinish = false;
-				try {
-					tx.add(queryQ.take());
-					inTransaction.set(true);
-					queryQ.drainTo(tx);
-					conn.setAutoCommit(false);
-					for (PreparedStatement stmt : tx) {
-						if (stmt.isClosed())
-							breakOnFinish = true;
-						else {
-							logger.debug("Execute: " + stmt);
-							stmt.execute();
+			final List<TupleBatch> work = new ArrayList<TupleBatch>();
+			boolean finish = false;
+			int rows;
+			while (!finish) {
+				synchronized (this) {
+					if (!stopped && !flushRequested && pending < batchSize) {
+						try {
+							wait(flushInterval);
+						} catch (InterruptedException e) {
 						}
 					}
-					conn.commit();
-					conn.setAutoCommit(true);
-					if (breakOnFinish)
-						break;
-				} catch (SQLException e) {
-					logger.warn("Error executing batch query", e);
-					logger.warn("Next exception was: ", e.getNextException());
-				} catch (InterruptedException e1) {
-				} finally {
-					inTransaction.set(false);
-					for (PreparedStatement stmt : tx) {
+					finish = stopped;
+					flushRequested = false;
+					if (pending == 0)
+						continue;
+					// swap pending rows out so producers can carry on while we
+					// write.
+					for (TupleBatch[] table : batches) {
+						for (TupleBatch b : table) {
+							if (!b.rows.isEmpty()) {
+								List<PendingTuple> tmp = b.writing;
+								b.writing = b.rows;
+								b.rows = tmp;
+								work.add(b);
+							}
+						}
+					}
+					rows = pending;
+					pending = 0;
+					notifyAll();
+				}
+				final long flushStart = System.nanoTime();
+				final boolean written = write(work);
+				final long latency = System.nanoTime() - flushStart;
+				work.clear();
+				synchronized (this) {
+					if (written)
+						rowsWritten += rows;
+					flushes++;
+					flushTime += latency;
+					maxFlushTime = Math.max(maxFlushTime, latency);
+					notifyAll();
+				}
+			}
+			for (TupleBatch[] table : batches) {
+				for (TupleBatch b : table) {
+					b.close();
+				}
+			}
+			if (copyWriter != null)
+				copyWriter.close();
+		}
+
+		private boolean write(List<TupleBatch> work) {
+			try {
+				writeConn.setAutoCommit(false);
+				if (copyWriter != null) {
+					copyWriter.write(work);
+				} else {
+					for (TupleBatch b : work) {
+						logger.debug("Execute: " + b.writing.size() + " x "
+								+ b.sql);
+						b.write(writeConn);
+					}
+				}
+				writeConn.commit();
+				return true;
+			} catch (SQLException e) {
+				logger.warn("Error executing batch query", e);
+				logger.warn("Next exception was: ", e.getNextException());
+				try {
+					writeConn.rollback();
+				} catch (SQLException e1) {
+				}
+				return false;
+			} finally {
+				for (TupleBatch b : work) {
+					for (PendingTuple p : b.writing) {
+						writeBehind.remove(p.tuple, p);
+					}
+					b.writing.clear();
+					if (b.stmt != null) {
 						try {
-							stmt.close();
+							b.stmt.clearBatch();
 						} catch (SQLException e) {
 						}
 					}
-					synchronized (queryQ) {
-						queryQ.notify();
-					}
+				}
+				try {
+					writeConn.setAutoCommit(true);
+				} catch (SQLException e) {
 				}
 			}
 		}
@@ -0,0 +1,59 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.sql;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.db.sql.SqlStorage.PendingTuple;
+import uk.ac.imperial.presage2.db.sql.SqlStorage.TupleKey;
+
+public class CopyWriterTest {
+
+	@Test
+	public void testEncode() {
+		final StringBuilder sb = new StringBuilder();
+		CopyWriter.encode(sb, 0, new PendingTuple(new TupleKey(
+				SqlStorage.TUPLES, 3, "k", null, 0), SqlStorage.VAL_INT, 42),
+				SqlStorage.VAL_INT);
+		assertEquals("0\t3\tk\t1\t\\N\t42\t\\N\n", sb.toString());
+
+		sb.setLength(0);
+		CopyWriter.encode(sb, 7, new PendingTuple(new TupleKey(
+				SqlStorage.TUPLES_AG_T, 1, "a\tb", "agent", 5),
+				SqlStorage.VAL_DBL, 1.5), SqlStorage.VAL_DBL);
+		assertEquals("7\t1\ta\\tb\tagent\t5\t2\t\\N\t\\N\t1.5\n",
+				sb.toString());
+
+		sb.setLength(0);
+		CopyWriter.encode(sb, 1, new PendingTuple(new TupleKey(
+				SqlStorage.TUPLES_T, 1, "s", null, 9), SqlStorage.VAL_STR,
+				"x\\y\nz\r"), SqlStorage.VAL_STR);
+		assertEquals("1\t1\ts\t9\t0\tx\\\\y\\nz\\r\t\\N\t\\N\n", sb.toString());
+
+		// null values are written as NULL
+		sb.setLength(0);
+		CopyWriter.encode(sb, 2, new PendingTuple(new TupleKey(
+				SqlStorage.TUPLES_AG, 1, "s", "agent", 0), SqlStorage.VAL_STR,
+				null), SqlStorage.VAL_STR);
+		assertEquals("2\t1\ts\tagent\t0\t\\N\t\\N\t\\N\n", sb.toString());
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.db.sql.SqlStorage.PendingTuple;
+import uk.ac.imperial.presage2.db.sql.SqlStorage.QueryExecutor;
+import uk.ac.imperial.presage2.db.sql.SqlStorage.TupleKey;
+
+public class QueryExecutorTest {
+
+	final AtomicInteger rows = new AtomicInteger();
+	final AtomicInteger batches = new AtomicInteger();
+	final AtomicInteger commits = new AtomicInteger();
+	final AtomicInteger rollbacks = new AtomicInteger();
+	volatile boolean fail = false;
+
+	final SqlStorage sto = new SqlStorage(new Properties());
+
+	QueryExecutor writer = null;
+
+	/**
+	 * Connection which counts batched rows, commits and rollbacks.
+	 * executeBatch throws while {@link #fail} is set.
+	 */
+	final Connection conn = (Connection) Proxy.newProxyInstance(getClass()
+			.getClassLoader(), new Class<?>[] { Connection.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("prepareStatement")) {
+						return statement();
+					} else if (method.getName().equals("commit")) {
+						commits.incrementAndGet();
+					} else if (method.getName().equals("rollback")) {
+						rollbacks.incrementAndGet();
+					}
+					return null;
+				}
+			});
+
+	PreparedStatement statement() {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws SQLException {
+						if (method.getName().equals("addBatch")) {
+							rows.incrementAndGet();
+						} else if (method.getName().equals("executeBatch")) {
+							batches.incrementAndGet();
+							if (fail)
+								throw new SQLException("test failure");
+							return new int[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	QueryExecutor start(int batchSize, long flushInterval) {
+		writer = sto.new QueryExecutor(0, conn, null, batchSize, 1000,
+				flushInterval);
+		writer.start();
+		return writer;
+	}
+
+	@After
+	public void stop() {
+		if (writer != null)
+			writer.stop();
+	}
+
+	PendingTuple queue(String key, int value) {
+		final PendingTuple p = new PendingTuple(new TupleKey(
+				SqlStorage.TUPLES_T, 1, key, null, 0), SqlStorage.VAL_INT,
+				value);
+		sto.writeBehind.put(p.tuple, p);
+		writer.add(p);
+		return p;
+	}
+
+	static void waitUntil(AtomicInteger counter, int value)
+			throws InterruptedException {
+		for (int i = 0; i < 500 && counter.get() < value; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(value, counter.get());
+	}
+
+	@Test
+	public void testSizeTriggeredFlush() throws Exception {
+		start(10, 60000);
+		for (int i = 0; i < 9; i++) {
+			queue("k" + i, i);
+		}
+		Thread.sleep(200);
+		assertEquals(0, commits.get());
+		queue("k9", 9);
+		waitUntil(commits, 1);
+		assertEquals(10, rows.get());
+		assertTrue(sto.writeBehind.isEmpty());
+		synchronized (writer) {
+			assertEquals(10, writer.rowsWritten);
+		}
+	}
+
+	@Test
+	public void testTimeTriggeredFlush() throws Exception {
+		start(1000, 50);
+		queue("a", 1);
+		queue("b", 2);
+		waitUntil(commits, 1);
+		assertEquals(2, rows.get());
+		assertEquals(1, batches.get());
+		assertTrue(sto.writeBehind.isEmpty());
+	}
+
+	@Test
+	public void testRollback() throws Exception {
+		fail = true;
+		start(2, 60000);
+		queue("a", 1);
+		queue("b", 2);
+		waitUntil(rollbacks, 1);
+		assertEquals(0, commits.get());
+		// failed rows leave the cache, so reads go to the db
+		assertTrue(sto.writeBehind.isEmpty());
+		synchronized (writer) {
+			assertEquals(0, writer.rowsWritten);
+		}
+
+		fail = false;
+		queue("c", 3);
+		queue("d", 4);
+		waitUntil(commits, 1);
+		assertEquals(1, rollbacks.get());
+	}
+
+	@Test
+	public void testWriteBehindRemovedByIdentity() throws Exception {
+		start(2, 60000);
+		final PendingTuple older = queue("a", 1);
+		// a newer write to the same tuple replaces the queued one in the
+		// cache before it is committed
+		final PendingTuple newer = new PendingTuple(older.tuple,
+				SqlStorage.VAL_INT, 2);
+		sto.writeBehind.put(newer.tuple, newer);
+		queue("b", 3);
+		waitUntil(commits, 1);
+		assertSame(newer, sto.writeBehind.get(older.tuple));
+		assertEquals(1, sto.writeBehind.size());
+	}
+
+	@Test
+	public void testPendingDoublesMatchColumnPrecision() {
+		final TupleKey tuple = new TupleKey(SqlStorage.TUPLES, 1, "d", null, 0);
+		final Dialect dialect = Sql.dialect;
+		try {
+			// MySQL float is single precision
+			Sql.dialect = Dialect.MYSQL;
+			assertEquals((double) 0.1f, new PendingTuple(tuple,
+					SqlStorage.VAL_DBL, 0.1).value);
+			// PostgreSQL float is double precision
+			Sql.dialect = Dialect.POSTGRESQL;
+			assertEquals(0.1,
+					new PendingTuple(tuple, SqlStorage.VAL_DBL, 0.1).value);
+		} finally {
+			Sql.dialect = dialect;
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.db.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.db.sql.SqlStorage.ReadConnection;
+import uk.ac.imperial.presage2.db.sql.SqlStorage.ReadPool;
+
+public class ReadPoolTest {
+
+	final AtomicInteger opened = new AtomicInteger();
+	final AtomicInteger closed = new AtomicInteger();
+	final AtomicInteger prepared = new AtomicInteger();
+
+	/**
+	 * Connections which only support prepareStatement and close.
+	 */
+	final SqlStorage sto = new SqlStorage(new Properties()) {
+		@Override
+		protected Connection openConnection() throws SQLException {
+			opened.incrementAndGet();
+			return (Connection) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Connection.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (method.getName().equals("prepareStatement")) {
+								prepared.incrementAndGet();
+								return Proxy.newProxyInstance(getClass()
+										.getClassLoader(),
+										new Class<?>[] { PreparedStatement.class },
+										new InvocationHandler() {
+											@Override
+											public Object invoke(Object proxy,
+													Method method, Object[] args) {
+												return null;
+											}
+										});
+							} else if (method.getName().equals("close")) {
+								closed.incrementAndGet();
+							}
+							return null;
+						}
+					});
+		}
+	};
+
+	@Test
+	public void testPool() throws Exception {
+		final ReadPool pool = sto.new ReadPool(2);
+		final ReadConnection r1 = pool.borrow();
+		final ReadConnection r2 = pool.borrow();
+		assertNotSame(r1, r2);
+		assertEquals(2, opened.get());
+
+		// statements are cached per query
+		final PreparedStatement s = r1.prepare("a");
+		assertSame(s, r1.prepare("a"));
+		assertNotSame(s, r1.prepare("b"));
+		assertEquals(2, prepared.get());
+
+		// a third reader waits for a connection to be returned
+		final AtomicReference<ReadConnection> r3 = new AtomicReference<ReadConnection>();
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					r3.set(pool.borrow());
+				} catch (SQLException e) {
+				}
+			}
+		};
+		t.start();
+		t.join(200);
+		assertTrue(t.isAlive());
+		pool.release(r1);
+		t.join(1000);
+		assertSame(r1, r3.get());
+		assertSame(s, r3.get().prepare("a"));
+		assertEquals(2, opened.get());
+
+		// broken connections are replaced
+		pool.discard(r2);
+		assertEquals(1, closed.get());
+		final ReadConnection r4 = pool.borrow();
+		assertNotSame(r2, r4);
+		assertEquals(3, opened.get());
+
+		pool.release(r4);
+		pool.close();
+		assertEquals(2, closed.get());
+		pool.release(r1);
+		assertEquals(3, closed.get());
+		assertEquals(0, pool.getOpenConnections());
+		try {
+			pool.borrow();
+			fail();
+		} catch (SQLException e) {
+		}
+	}
+
+}
@@ -93,6 +93,11 @@ public class AbstractEnvironment implements EnvironmentConnector,
 
 	protected SharedStateStorage sharedState;
 
+	/**
+	 * Dense integer slots of registered participants.
+	 */
+	protected ParticipantSlots participantSlots;
+
 	/**
 	 * {@link EnvironmentService} classes to instantiate and send to agents when
 	 * they {@link #register(EnvironmentRegistrationRequest)} with the
@@ -175,6 +180,27 @@ public class AbstractEnvironment implements EnvironmentConnector,
 
 		this.deferActions = false;
 		this.deferedActions = new LinkedList<DeferedAction>();
+
+		// use the same slots as the shared state where possible.
+		if (sharedState instanceof MappedSharedState)
+			participantSlots = ((MappedSharedState) sharedState)
+					.getParticipantSlots();
+		else
+			participantSlots = new ParticipantSlots();
+	}
+
+	@Inject(optional = true)
+	public void setParticipantSlots(ParticipantSlots participantSlots) {
+		this.participantSlots = participantSlots;
+	}
+
+	/**
+	 * Get the registry of participant slots used by this environment.
+	 * 
+	 * @return {@link ParticipantSlots}
+	 */
+	public ParticipantSlots getParticipantSlots() {
+		return participantSlots;
 	}
 
 	@Inject(optional = true)
@@ -284,6 +310,7 @@ public class AbstractEnvironment implements EnvironmentConnector,
 			this.logger.info("Registering participant " + participantUUID + "");
 		}
 		registeredParticipants.put(participantUUID, request.getParticipant());
+		final int slot = participantSlots.getSlot(participantUUID);
 		// generate authkey
 		synchronized (authkeys) {
 			authkeys.put(participantUUID, Random.randomUUID());
@@ -310,7 +337,7 @@ public class AbstractEnvironment implements EnvironmentConnector,
 
 		// Create response
 		EnvironmentRegistrationResponse response = new EnvironmentRegistrationResponse(
-				authkeys.get(participantUUID), services);
+				authkeys.get(participantUUID), services, slot);
 		if (this.logger.isDebugEnabled()) {
 			this.logger
 					.debug("Responding to environment registration request from "
@@ -550,6 +577,10 @@ public class AbstractEnvironment implements EnvironmentConnector,
 		synchronized (authkeys) {
 			authkeys.remove(participantID);
 		}
+		// notify global environment services of the deregistration.
+		for (EnvironmentService ges : globalEnvironmentServices) {
+			ges.deregisterParticipant(participantID);
+		}
 	}
 
 	@Override
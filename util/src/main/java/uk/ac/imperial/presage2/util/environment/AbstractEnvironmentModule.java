@@ -260,6 +260,9 @@ public class AbstractEnvironmentModule extends AbstractModule {
 		bind(SharedStateStorage.class).to(storage).in(Singleton.class);
 		bind(EnvironmentSharedStateAccess.class).to(storage);
 		bind(MappedSharedState.class).in(Singleton.class);
+		bind(ParticipantSlots.class).in(Singleton.class);
+		if (storage != MappedSharedState.class)
+			bind(storage).in(Singleton.class);
 
 		// bind Singleton implementation to AbstractEnvironment
 		bind(AbstractEnvironment.class).in(Singleton.class);
@@ -22,9 +22,12 @@ import java.util.UUID;
 
 import com.google.inject.Inject;
 
+import uk.ac.imperial.presage2.core.environment.DoubleStateKey;
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
+import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
+import uk.ac.imperial.presage2.core.environment.TypedSharedStateAccess;
 import uk.ac.imperial.presage2.util.participant.HasCommunicationRange;
 
 /**
@@ -44,15 +47,31 @@ import uk.ac.imperial.presage2.util.participant.HasCommunicationRange;
  */
 public class CommunicationRangeService extends EnvironmentService {
 
+	/**
+	 * Typed key of the <code>network.commrange</code> shared state.
+	 */
+	public static final DoubleStateKey COMM_RANGE = new DoubleStateKey("network.commrange");
+
+	final TypedSharedStateAccess typedState;
+
 	/**
 	 * @param sharedState
 	 */
 	@Inject
 	public CommunicationRangeService(EnvironmentSharedStateAccess sharedState) {
 		super(sharedState);
+		this.typedState = sharedState instanceof TypedSharedStateAccess ? (TypedSharedStateAccess) sharedState
+				: null;
 	}
 
 	public double getAgentCommunicationRange(UUID participantID) {
+		if (typedState != null) {
+			final int slot = typedState.lookupSlot(participantID);
+			if (slot < 0)
+				throw new SharedStateAccessException("No communication range for participant "
+						+ participantID);
+			return typedState.getDouble(COMM_RANGE, slot);
+		}
 		return (Double) this.sharedState.get("network.commrange", participantID);
 	}
 
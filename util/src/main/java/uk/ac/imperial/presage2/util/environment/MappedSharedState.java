@@ -20,24 +20,46 @@ package uk.ac.imperial.presage2.util.environment;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.environment.DoubleStateKey;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.environment.IntStateKey;
 import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
 import uk.ac.imperial.presage2.core.environment.SharedState;
 import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
 import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
+import uk.ac.imperial.presage2.core.environment.StateKey;
 import uk.ac.imperial.presage2.core.environment.StateTransformer;
+import uk.ac.imperial.presage2.core.environment.TypedSharedStateAccess;
 import uk.ac.imperial.presage2.core.event.EventBus;
 
 import com.google.inject.Inject;
 
-public class MappedSharedState implements SharedStateStorage {
+/**
+ * <p>
+ * {@link SharedStateStorage} which keeps state in maps keyed by name and
+ * participant {@link UUID}.
+ * </p>
+ * <p>
+ * Participant state which is accessed through a {@link StateKey} is instead
+ * kept in a {@link StateColumn}: an array of values indexed by participant
+ * slot. Once a key has been used its state is moved into the column, and
+ * access by name is redirected to the column, so both views stay consistent.
+ * Changes to a key are applied in the order they were made, whether typed,
+ * by name or by {@link StateTransformer}.
+ * </p>
+ */
+public class MappedSharedState implements SharedStateStorage,
+		TypedSharedStateAccess {
 
 	private final Logger logger = Logger.getLogger(MappedSharedState.class);
 
@@ -47,9 +69,30 @@ public class MappedSharedState implements SharedStateStorage {
 
 	Queue<StateChange> stateChange;
 
+	/**
+	 * Participant slots, assigned on first use.
+	 */
+	ParticipantSlots participantSlots = new ParticipantSlots();
+
+	/**
+	 * Columns of typed state by name.
+	 */
+	final Map<String, StateColumn> columns = new ConcurrentHashMap<String, StateColumn>();
+
+	/**
+	 * Columns by {@link StateKey#getId()}, to avoid hashing key names.
+	 */
+	private volatile StateColumn[] columnsByKey = new StateColumn[0];
+
+	private final List<StateCommitListener> commitListeners = new CopyOnWriteArrayList<StateCommitListener>();
+
 	class StateChange {
 		private final String key;
 		private UUID participantId = null;
+		/**
+		 * Column slot of a typed change, or -1.
+		 */
+		private int slot = -1;
 		private StateTransformer transformer = null;
 		private Serializable value = null;
 
@@ -79,6 +122,13 @@ public class MappedSharedState implements SharedStateStorage {
 			this.value = value;
 		}
 
+		StateChange(String key, int slot, Serializable value) {
+			super();
+			this.key = key;
+			this.slot = slot;
+			this.value = value;
+		}
+
 		public String getKey() {
 			return key;
 		}
@@ -111,6 +161,17 @@ public class MappedSharedState implements SharedStateStorage {
 		e.subscribe(this);
 	}
 
+	/**
+	 * Share the slot registry of the environment. Must be called before any
+	 * slots are assigned.
+	 * 
+	 * @param participantSlots
+	 */
+	@Inject(optional = true)
+	public void setParticipantSlots(ParticipantSlots participantSlots) {
+		this.participantSlots = participantSlots;
+	}
+
 	protected Map<String, Serializable> initGlobalStateMap() {
 		return new HashMap<String, Serializable>();
 	}
@@ -168,6 +229,14 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public Serializable get(String name, UUID participantID) {
+		if (!columns.isEmpty()) {
+			StateColumn col = columns.get(name);
+			if (col != null) {
+				// don't assign a slot just to read from it
+				int slot = participantSlots.lookup(participantID);
+				return slot < 0 ? null : col.getBoxed(slot);
+			}
+		}
 		Map<String, Serializable> state = agentState.get(participantID);
 		if (state != null) {
 			return state.get(name);
@@ -178,11 +247,27 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public void change(String name, UUID participantID, StateTransformer change) {
+		if (!columns.isEmpty()) {
+			StateColumn col = columns.get(name);
+			// keep later changes to the column behind this one
+			if (col != null && !col.ordered)
+				col.ordered = true;
+		}
 		stateChange.add(new StateChange(name, participantID, change));
 	}
 
 	@Override
 	public void change(String name, UUID participantID, final Serializable value) {
+		if (!columns.isEmpty()) {
+			StateColumn col = columns.get(name);
+			if (col != null) {
+				if (col.ordered)
+					stateChange.add(new StateChange(name, getSlot(participantID), value));
+				else
+					col.stageBoxed(getSlot(participantID), value);
+				return;
+			}
+		}
 		stateChange.add(new StateChange(name, participantID, value));
 	}
 
@@ -193,7 +278,20 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public synchronized void create(String name, UUID participantID, Serializable value) {
+		StateColumn col = columns.get(name);
+		if (col != null) {
+			int slot = getSlot(participantID);
+			if (col.has(slot))
+				throw new SharedStateAccessException("Cannot create state '" + name
+						+ "' for agent '" + participantID + "': already exists");
+			col.setBoxed(slot, value);
+			return;
+		}
 		Map<String, Serializable> agent = agentState.get(participantID);
+		if (agent == null) {
+			agent = new HashMap<String, Serializable>();
+			agentState.put(participantID, agent);
+		}
 		if (!agent.containsKey(name)) {
 			agent.put(name, value);
 		} else {
@@ -204,29 +302,192 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public void delete(String name, UUID participantID) {
-		agentState.get(participantID).remove(name);
+		StateColumn col = columns.get(name);
+		if (col != null) {
+			int slot = participantSlots.lookup(participantID);
+			if (slot >= 0)
+				col.remove(slot);
+		} else {
+			Map<String, Serializable> agent = agentState.get(participantID);
+			if (agent != null)
+				agent.remove(name);
+		}
 	}
 
 	@Override
 	public void incrementTime() {
 		updateState();
+		for (StateCommitListener l : commitListeners) {
+			l.stateCommitted();
+		}
+	}
+
+	/**
+	 * Add a listener to be notified each time state changes are committed.
+	 * 
+	 * @param l
+	 */
+	public void addCommitListener(StateCommitListener l) {
+		commitListeners.add(l);
 	}
 
 	protected void updateState() {
 		logger.info("Updating state.");
+		// staged changes were all made before any queued change to the same
+		// column, so they are committed first.
+		for (StateColumn col : columns.values()) {
+			col.commit();
+		}
 		while (this.stateChange.peek() != null) {
-			StateChange c = stateChange.poll();
-			if (c.getParticipantId() == null)
-				globalState.put(c.getKey(), c.getChange(this));
-			else {
-				Map<String, Serializable> agent = agentState.get(c.getParticipantId());
-				if (agent == null) {
-					agent = new HashMap<String, Serializable>();
-					agentState.put(c.getParticipantId(), agent);
+			applyChange(stateChange.poll());
+		}
+		for (StateColumn col : columns.values()) {
+			if (col.ordered)
+				col.ordered = false;
+		}
+	}
+
+	/**
+	 * Write a single {@link StateChange} to the state maps.
+	 * 
+	 * @param c
+	 */
+	void applyChange(StateChange c) {
+		if (c.slot >= 0)
+			columns.get(c.getKey()).setBoxed(c.slot, c.value);
+		else if (c.getParticipantId() == null)
+			globalState.put(c.getKey(), c.getChange(this));
+		else if (!columns.isEmpty() && columns.containsKey(c.getKey())) {
+			columns.get(c.getKey()).setBoxed(getSlot(c.getParticipantId()),
+					c.getChange(this));
+		} else {
+			Map<String, Serializable> agent = agentState.get(c.getParticipantId());
+			if (agent == null) {
+				agent = new HashMap<String, Serializable>();
+				agentState.put(c.getParticipantId(), agent);
+			}
+			agent.put(c.getKey(), c.getChange(this));
+		}
+	}
+
+	@Override
+	public int getSlot(UUID participantID) {
+		return participantSlots.getSlot(participantID);
+	}
+
+	@Override
+	public int lookupSlot(UUID participantID) {
+		return participantSlots.lookup(participantID);
+	}
+
+	public ParticipantSlots getParticipantSlots() {
+		return participantSlots;
+	}
+
+	/**
+	 * Get the column for key, creating it if this is the first use of the
+	 * key's state.
+	 */
+	final StateColumn column(StateKey<?> key) {
+		final int id = key.getId();
+		final StateColumn[] byKey = columnsByKey;
+		if (id < byKey.length && byKey[id] != null)
+			return byKey[id];
+		return addColumn(key);
+	}
+
+	/**
+	 * Store the participant state of key in a column from now on, as if it
+	 * had been accessed with the key. Any state already created by name is
+	 * moved into the column.
+	 * 
+	 * @param key
+	 */
+	public void createColumn(StateKey<?> key) {
+		column(key);
+	}
+
+	private synchronized StateColumn addColumn(StateKey<?> key) {
+		StateColumn col = columns.get(key.getName());
+		if (col == null) {
+			if (key instanceof IntStateKey)
+				col = new StateColumn.IntColumn(key.getName());
+			else if (key instanceof DoubleStateKey)
+				col = new StateColumn.DoubleColumn(key.getName());
+			else
+				col = new StateColumn.ObjectColumn(key.getName());
+			// move any state already created by name into the column
+			for (Map.Entry<UUID, Map<String, Serializable>> agent : agentState
+					.entrySet()) {
+				if (agent.getValue().containsKey(key.getName())) {
+					col.setBoxed(getSlot(agent.getKey()), agent.getValue()
+							.remove(key.getName()));
 				}
-				agent.put(c.getKey(), c.getChange(this));
 			}
+			columns.put(key.getName(), col);
+		} else if ((key instanceof IntStateKey && !(col instanceof StateColumn.IntColumn))
+				|| (key instanceof DoubleStateKey && !(col instanceof StateColumn.DoubleColumn))) {
+			throw new SharedStateAccessException("Cannot use " + key
+					+ ": state is already stored with a different type.");
 		}
+		StateColumn[] byKey = columnsByKey;
+		if (key.getId() >= byKey.length) {
+			StateColumn[] grown = new StateColumn[key.getId() + 1];
+			System.arraycopy(byKey, 0, grown, 0, byKey.length);
+			byKey = grown;
+		}
+		byKey[key.getId()] = col;
+		columnsByKey = byKey;
+		return col;
+	}
+
+	@Override
+	public boolean has(StateKey<?> key, int slot) {
+		return column(key).has(slot);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends Serializable> T get(StateKey<T> key, int slot) {
+		return (T) column(key).getBoxed(slot);
+	}
+
+	@Override
+	public <T extends Serializable> void change(StateKey<T> key, int slot,
+			T value) {
+		final StateColumn col = column(key);
+		if (col.ordered)
+			stateChange.add(new StateChange(key.getName(), slot, value));
+		else
+			col.stageBoxed(slot, value);
+	}
+
+	@Override
+	public int getInt(IntStateKey key, int slot) {
+		return ((StateColumn.IntColumn) column(key)).get(slot);
+	}
+
+	@Override
+	public void changeInt(IntStateKey key, int slot, int value) {
+		final StateColumn.IntColumn col = (StateColumn.IntColumn) column(key);
+		if (col.ordered)
+			stateChange.add(new StateChange(key.getName(), slot, value));
+		else
+			col.stage(slot, value);
+	}
+
+	@Override
+	public double getDouble(DoubleStateKey key, int slot) {
+		return ((StateColumn.DoubleColumn) column(key)).get(slot);
+	}
+
+	@Override
+	public void changeDouble(DoubleStateKey key, int slot, double value) {
+		final StateColumn.DoubleColumn col = (StateColumn.DoubleColumn) column(key);
+		if (col.ordered)
+			stateChange.add(new StateChange(key.getName(), slot, value));
+		else
+			col.stage(slot, value);
 	}
 
 }
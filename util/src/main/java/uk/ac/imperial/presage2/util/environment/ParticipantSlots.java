@@ -0,0 +1,118 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Registry of dense integer slots for participants.
+ * </p>
+ * <p>
+ * Each participant is given the next free slot the first time it is seen, and
+ * keeps it for the rest of the simulation. Slots are not reused after a
+ * participant deregisters, so data indexed by slot never has to be moved.
+ * Services can use slots to keep per-participant data in arrays and bitsets
+ * rather than maps keyed by {@link UUID}.
+ * </p>
+ * <p>
+ * A single instance is shared by the environment and the
+ * {@link MappedSharedState}, so that a participant's slot is the same in
+ * both.
+ * </p>
+ */
+@Singleton
+public class ParticipantSlots {
+
+	private final ConcurrentMap<UUID, Integer> slots = new ConcurrentHashMap<UUID, Integer>();
+
+	private volatile UUID[] participants = new UUID[64];
+
+	private volatile int size = 0;
+
+	/**
+	 * Get the slot of a participant, assigning one if it does not have one
+	 * yet.
+	 * 
+	 * @param participantID
+	 * @return slot of the participant.
+	 */
+	public int getSlot(UUID participantID) {
+		Integer slot = slots.get(participantID);
+		return slot != null ? slot : assign(participantID);
+	}
+
+	/**
+	 * Get the slot of a participant without assigning one.
+	 * 
+	 * @param participantID
+	 * @return slot of the participant, or -1 if it does not have one.
+	 */
+	public int lookup(UUID participantID) {
+		Integer slot = slots.get(participantID);
+		return slot != null ? slot : -1;
+	}
+
+	private synchronized int assign(UUID participantID) {
+		Integer existing = slots.get(participantID);
+		if (existing != null)
+			return existing;
+		final int slot = size;
+		UUID[] p = participants;
+		if (slot >= p.length) {
+			UUID[] grown = new UUID[p.length * 2];
+			System.arraycopy(p, 0, grown, 0, p.length);
+			p = grown;
+		}
+		p[slot] = participantID;
+		participants = p;
+		// publish the size first so a slot seen in the map is always in range
+		size = slot + 1;
+		slots.put(participantID, slot);
+		return slot;
+	}
+
+	/**
+	 * Get the participant in a slot.
+	 * 
+	 * @param slot
+	 * @return {@link UUID} of the participant, or null if the slot is not
+	 *         assigned.
+	 */
+	public UUID getParticipant(int slot) {
+		if (slot < 0 || slot >= size)
+			return null;
+		return participants[slot];
+	}
+
+	/**
+	 * Get the number of slots which have been assigned. All slots are in the
+	 * range <code>[0, size())</code>.
+	 * 
+	 * @return number of assigned slots.
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,332 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import java.io.Serializable;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
+
+/**
+ * <p>
+ * Values of a single participant state, indexed by participant slot.
+ * </p>
+ * <p>
+ * Values are held in fixed size pages which are never moved once allocated,
+ * so a slot can be written by one thread while another is adding pages.
+ * Each slot has a current value, which is what is read, and a staged value,
+ * which is written by changes and copied to the current value by
+ * {@link #commit()} at the end of the time slice. Different slots may be read
+ * and staged concurrently; commit must not run concurrently with staging.
+ * </p>
+ */
+abstract class StateColumn {
+
+	static final int PAGE_BITS = 10;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	final String name;
+
+	private volatile Page[] pages = new Page[0];
+
+	/**
+	 * Set when any slot has been staged since the last commit.
+	 */
+	volatile boolean staged = false;
+
+	/**
+	 * Set when a transformer has been queued for this column in the current
+	 * time slice. Later changes are then queued behind it rather than staged,
+	 * so that they are applied in the order they were made.
+	 */
+	volatile boolean ordered = false;
+
+	StateColumn(String name) {
+		super();
+		this.name = name;
+	}
+
+	abstract Page newPage();
+
+	/**
+	 * Get the page holding slot, or null if it has not been allocated.
+	 */
+	final Page pageIfPresent(int slot) {
+		final int p = slot >>> PAGE_BITS;
+		final Page[] ps = pages;
+		return p < ps.length ? ps[p] : null;
+	}
+
+	/**
+	 * Get the page holding slot, allocating it if required.
+	 */
+	final Page page(int slot) {
+		Page pg = pageIfPresent(slot);
+		return pg != null ? pg : allocate(slot >>> PAGE_BITS);
+	}
+
+	private synchronized Page allocate(int p) {
+		Page[] ps = pages;
+		if (p >= ps.length) {
+			Page[] grown = new Page[Math.max(p + 1, ps.length * 2)];
+			System.arraycopy(ps, 0, grown, 0, ps.length);
+			ps = grown;
+		}
+		if (ps[p] == null) {
+			ps[p] = newPage();
+		}
+		pages = ps;
+		return ps[p];
+	}
+
+	final SharedStateAccessException missing(int slot) {
+		return new SharedStateAccessException("No value of '" + name
+				+ "' for participant slot " + slot);
+	}
+
+	final boolean has(int slot) {
+		final Page pg = pageIfPresent(slot);
+		return pg != null && pg.present[slot & PAGE_MASK];
+	}
+
+	final void remove(int slot) {
+		final Page pg = pageIfPresent(slot);
+		if (pg != null)
+			pg.present[slot & PAGE_MASK] = false;
+	}
+
+	/**
+	 * Get the current value of slot, boxed.
+	 * 
+	 * @return the value, or null if there is none.
+	 */
+	final Serializable getBoxed(int slot) {
+		final Page pg = pageIfPresent(slot);
+		final int i = slot & PAGE_MASK;
+		if (pg == null || !pg.present[i])
+			return null;
+		return pg.getBoxed(i);
+	}
+
+	/**
+	 * Set the current value of slot immediately.
+	 */
+	final void setBoxed(int slot, Serializable value) {
+		final Page pg = page(slot);
+		final int i = slot & PAGE_MASK;
+		pg.setBoxed(i, value);
+		pg.present[i] = true;
+	}
+
+	/**
+	 * Stage a new value for slot, to be applied at the next {@link #commit()}.
+	 */
+	final void stageBoxed(int slot, Serializable value) {
+		final Page pg = page(slot);
+		final int i = slot & PAGE_MASK;
+		pg.stageBoxed(i, value);
+		markStaged(pg, i);
+	}
+
+	final void markStaged(Page pg, int i) {
+		pg.staged[i] = true;
+		if (!pg.dirty)
+			pg.dirty = true;
+		if (!staged)
+			staged = true;
+	}
+
+	/**
+	 * Copy all staged values to the current values.
+	 */
+	final void commit() {
+		if (!staged)
+			return;
+		staged = false;
+		for (Page pg : pages) {
+			if (pg == null || !pg.dirty)
+				continue;
+			pg.dirty = false;
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				if (pg.staged[i]) {
+					pg.staged[i] = false;
+					pg.commit(i);
+					pg.present[i] = true;
+				}
+			}
+		}
+	}
+
+	abstract static class Page {
+		final boolean[] present = new boolean[PAGE_SIZE];
+		final boolean[] staged = new boolean[PAGE_SIZE];
+		volatile boolean dirty = false;
+
+		abstract Serializable getBoxed(int i);
+
+		abstract void setBoxed(int i, Serializable value);
+
+		abstract void stageBoxed(int i, Serializable value);
+
+		abstract void commit(int i);
+	}
+
+	static class ObjectColumn extends StateColumn {
+
+		ObjectColumn(String name) {
+			super(name);
+		}
+
+		@Override
+		Page newPage() {
+			return new ObjectPage();
+		}
+
+		static class ObjectPage extends Page {
+			final Serializable[] current = new Serializable[PAGE_SIZE];
+			final Serializable[] next = new Serializable[PAGE_SIZE];
+
+			@Override
+			Serializable getBoxed(int i) {
+				return current[i];
+			}
+
+			@Override
+			void setBoxed(int i, Serializable value) {
+				current[i] = value;
+			}
+
+			@Override
+			void stageBoxed(int i, Serializable value) {
+				next[i] = value;
+			}
+
+			@Override
+			void commit(int i) {
+				current[i] = next[i];
+				next[i] = null;
+			}
+		}
+	}
+
+	static class IntColumn extends StateColumn {
+
+		IntColumn(String name) {
+			super(name);
+		}
+
+		@Override
+		Page newPage() {
+			return new IntPage();
+		}
+
+		final int get(int slot) {
+			final IntPage pg = (IntPage) pageIfPresent(slot);
+			final int i = slot & PAGE_MASK;
+			if (pg == null || !pg.present[i])
+				throw missing(slot);
+			return pg.current[i];
+		}
+
+		final void stage(int slot, int value) {
+			final IntPage pg = (IntPage) page(slot);
+			final int i = slot & PAGE_MASK;
+			pg.next[i] = value;
+			markStaged(pg, i);
+		}
+
+		static class IntPage extends Page {
+			final int[] current = new int[PAGE_SIZE];
+			final int[] next = new int[PAGE_SIZE];
+
+			@Override
+			Serializable getBoxed(int i) {
+				return current[i];
+			}
+
+			@Override
+			void setBoxed(int i, Serializable value) {
+				current[i] = ((Number) value).intValue();
+			}
+
+			@Override
+			void stageBoxed(int i, Serializable value) {
+				next[i] = ((Number) value).intValue();
+			}
+
+			@Override
+			void commit(int i) {
+				current[i] = next[i];
+			}
+		}
+	}
+
+	static class DoubleColumn extends StateColumn {
+
+		DoubleColumn(String name) {
+			super(name);
+		}
+
+		@Override
+		Page newPage() {
+			return new DoublePage();
+		}
+
+		final double get(int slot) {
+			final DoublePage pg = (DoublePage) pageIfPresent(slot);
+			final int i = slot & PAGE_MASK;
+			if (pg == null || !pg.present[i])
+				throw missing(slot);
+			return pg.current[i];
+		}
+
+		final void stage(int slot, double value) {
+			final DoublePage pg = (DoublePage) page(slot);
+			final int i = slot & PAGE_MASK;
+			pg.next[i] = value;
+			markStaged(pg, i);
+		}
+
+		static class DoublePage extends Page {
+			final double[] current = new double[PAGE_SIZE];
+			final double[] next = new double[PAGE_SIZE];
+
+			@Override
+			Serializable getBoxed(int i) {
+				return current[i];
+			}
+
+			@Override
+			void setBoxed(int i, Serializable value) {
+				current[i] = ((Number) value).doubleValue();
+			}
+
+			@Override
+			void stageBoxed(int i, Serializable value) {
+				next[i] = ((Number) value).doubleValue();
+			}
+
+			@Override
+			void commit(int i) {
+				current[i] = next[i];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+/**
+ * Listener which is notified by {@link MappedSharedState} when the state
+ * changes of a time slice have been committed. Services which keep derived
+ * data, such as indexes over participant state, can use this to update it
+ * once per time slice.
+ */
+public interface StateCommitListener {
+
+	/**
+	 * Called after all state changes for the time slice have been applied,
+	 * and before the next time slice begins.
+	 */
+	public void stateCommitted();
+
+}
@@ -0,0 +1,204 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
+import uk.ac.imperial.presage2.core.environment.StateTransformer;
+
+/**
+ * <p>
+ * {@link MappedSharedState} which commits participant state changes in
+ * parallel.
+ * </p>
+ * <p>
+ * Participant keyed changes are queued into one of a number of stripes chosen
+ * by the participant's ID, so all changes for a participant go to the same
+ * stripe in the order they were made. At the end of the timestep global
+ * changes are applied first, serially and in order, then each stripe is
+ * applied by its own worker. Stripes never share a participant so they can be
+ * applied without locking. The workers come from a pool shared by all
+ * instances, whose threads are daemons, so it is never shut down.
+ * </p>
+ * <p>
+ * Use by setting it as the {@link SharedStateStorage} of the environment:
+ * </p>
+ *
+ * <pre>
+ * new AbstractEnvironmentModule().setStorage(StripedSharedState.class)
+ * </pre>
+ */
+public class StripedSharedState extends MappedSharedState {
+
+	/**
+	 * Below this number of participant changes the commit is done on the
+	 * calling thread, as the pool's overhead would outweigh the gain.
+	 */
+	static final int PARALLEL_THRESHOLD = 1024;
+
+	final List<Queue<StateChange>> stripes;
+
+	public StripedSharedState() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public StripedSharedState(int stripeCount) {
+		super();
+		if (stripeCount < 1)
+			throw new IllegalArgumentException("stripeCount must be positive");
+		this.stripes = new ArrayList<Queue<StateChange>>(stripeCount);
+		for (int i = 0; i < stripeCount; i++) {
+			this.stripes.add(new ConcurrentLinkedQueue<StateChange>());
+		}
+	}
+
+	/**
+	 * Holder of the shared pool, created on first parallel commit.
+	 */
+	private static class Pool {
+		static final ForkJoinPool INSTANCE = new ForkJoinPool();
+	}
+
+	@Override
+	protected Map<UUID, Map<String, Serializable>> initAgentStateMap() {
+		// agents may be added from several stripes at once, see applyChange.
+		return new ConcurrentHashMap<UUID, Map<String, Serializable>>();
+	}
+
+	int stripeOf(UUID participantID) {
+		int h = participantID.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % stripes.size();
+	}
+
+	@Override
+	public void change(String name, UUID participantID, StateTransformer change) {
+		if (columns.containsKey(name)) {
+			super.change(name, participantID, change);
+			return;
+		}
+		stripes.get(stripeOf(participantID)).add(new StateChange(name,
+				participantID, change));
+	}
+
+	@Override
+	public void change(String name, UUID participantID, Serializable value) {
+		if (columns.containsKey(name)) {
+			// staged in the column with any typed changes
+			super.change(name, participantID, value);
+			return;
+		}
+		stripes.get(stripeOf(participantID)).add(new StateChange(name,
+				participantID, value));
+	}
+
+	@Override
+	protected void updateState() {
+		// global changes, in the order they were made.
+		super.updateState();
+
+		List<StripeCommit> commits = new ArrayList<StripeCommit>(
+				stripes.size());
+		int total = 0;
+		for (Queue<StateChange> stripe : stripes) {
+			if (stripe.isEmpty())
+				continue;
+			StripeCommit commit = new StripeCommit(stripe);
+			total += commit.changes.size();
+			commits.add(commit);
+		}
+		if (commits.size() <= 1 || total < PARALLEL_THRESHOLD) {
+			for (StripeCommit commit : commits) {
+				commit.call();
+			}
+			return;
+		}
+		for (Future<Void> f : Pool.INSTANCE.invokeAll(commits)) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during state commit", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	@Override
+	void applyChange(StateChange c) {
+		if (c.getParticipantId() == null || columns.containsKey(c.getKey())) {
+			super.applyChange(c);
+			return;
+		}
+		ConcurrentMap<UUID, Map<String, Serializable>> states = (ConcurrentMap<UUID, Map<String, Serializable>>) agentState;
+		Map<String, Serializable> agent = states.get(c.getParticipantId());
+		if (agent == null) {
+			agent = new HashMap<String, Serializable>();
+			Map<String, Serializable> existing = states.putIfAbsent(
+					c.getParticipantId(), agent);
+			if (existing != null)
+				agent = existing;
+		}
+		agent.put(c.getKey(), c.getChange(this));
+	}
+
+	/**
+	 * Applies the changes queued in a single stripe.
+	 */
+	class StripeCommit implements Callable<Void> {
+
+		final List<StateChange> changes = new ArrayList<StateChange>();
+
+		StripeCommit(Queue<StateChange> stripe) {
+			super();
+			// take a snapshot of the stripe now, anything added after this
+			// belongs to the next timestep.
+			StateChange c;
+			while ((c = stripe.poll()) != null) {
+				changes.add(c);
+			}
+		}
+
+		@Override
+		public Void call() {
+			for (StateChange c : changes) {
+				applyChange(c);
+			}
+			return null;
+		}
+	}
+
+}
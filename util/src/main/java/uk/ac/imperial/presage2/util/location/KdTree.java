@@ -0,0 +1,365 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Immutable 3D k-d tree of participant {@link Location}s, bulk loaded from a
+ * snapshot of all locations.
+ * </p>
+ * <p>
+ * The tree is implicit: points are stored in flat arrays, permuted so that
+ * the node covering <code>[lo, hi)</code> has its split point at
+ * <code>(lo + hi) / 2</code>, with the points before it on the low side of the
+ * split axis and those after it on the high side. Each node splits on the
+ * axis of widest spread. Small nodes are scanned linearly.
+ * </p>
+ */
+class KdTree {
+
+	static final int LEAF_SIZE = 8;
+
+	final int size;
+	final UUID[] ids;
+	final Location[] locations;
+	final double[][] coords;
+	final byte[] axis;
+
+	/**
+	 * Build a tree of the given points. The arrays are taken by the tree and
+	 * reordered.
+	 * 
+	 * @param ids
+	 * @param locations
+	 * @param size
+	 *            number of points in the arrays.
+	 */
+	KdTree(UUID[] ids, Location[] locations, int size) {
+		super();
+		this.size = size;
+		this.ids = ids;
+		this.locations = locations;
+		this.coords = new double[3][size];
+		for (int i = 0; i < size; i++) {
+			coords[0][i] = locations[i].getX();
+			coords[1][i] = locations[i].getY();
+			coords[2][i] = locations[i].getZ();
+		}
+		this.axis = new byte[size];
+		build(0, size);
+	}
+
+	private void build(int lo, int hi) {
+		if (hi - lo <= LEAF_SIZE)
+			return;
+		// split on the axis of widest spread
+		int best = 0;
+		double bestSpread = -1;
+		for (int a = 0; a < 3; a++) {
+			final double[] c = coords[a];
+			double min = c[lo], max = c[lo];
+			for (int i = lo + 1; i < hi; i++) {
+				if (c[i] < min)
+					min = c[i];
+				else if (c[i] > max)
+					max = c[i];
+			}
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				best = a;
+			}
+		}
+		final int mid = (lo + hi) >>> 1;
+		select(best, lo, hi - 1, mid);
+		axis[mid] = (byte) best;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	/**
+	 * Partially sort [lo, hi] on axis a so that index k holds the k-th
+	 * smallest value, with smaller values before it and larger after.
+	 */
+	private void select(int a, int lo, int hi, int k) {
+		final double[] c = coords[a];
+		while (hi > lo) {
+			final double pivot = c[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (c[i] < pivot)
+					i++;
+				while (c[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		for (int a = 0; a < 3; a++) {
+			final double t = coords[a][i];
+			coords[a][i] = coords[a][j];
+			coords[a][j] = t;
+		}
+		final UUID id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		final Location l = locations[i];
+		locations[i] = locations[j];
+		locations[j] = l;
+	}
+
+	private double dist2(int i, double[] p) {
+		final double dx = coords[0][i] - p[0];
+		final double dy = coords[1][i] - p[1];
+		final double dz = coords[2][i] - p[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Find all points within radius of centre.
+	 */
+	Map<UUID, Location> radius(double[] centre, double radius) {
+		final Map<UUID, Location> result = new HashMap<UUID, Location>();
+		radius(0, size, centre, radius, radius * radius, result);
+		return result;
+	}
+
+	private void radius(int lo, int hi, double[] p, double r, double r2,
+			Map<UUID, Location> result) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				if (dist2(i, p) <= r2)
+					result.put(ids[i], locations[i]);
+			}
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int a = axis[mid];
+		final double split = coords[a][mid];
+		if (dist2(mid, p) <= r2)
+			result.put(ids[mid], locations[mid]);
+		if (p[a] - r <= split)
+			radius(lo, mid, p, r, r2, result);
+		if (p[a] + r >= split)
+			radius(mid + 1, hi, p, r, r2, result);
+	}
+
+	/**
+	 * Find all points in the axis-aligned box [min, max], optionally also
+	 * within radius of centre.
+	 * 
+	 * @param centre
+	 *            centre of the radius filter, or null for no filter.
+	 */
+	Map<UUID, Location> box(double[] min, double[] max, double[] centre,
+			double radius) {
+		final Map<UUID, Location> result = new HashMap<UUID, Location>();
+		box(0, size, min, max, centre, radius * radius, result);
+		return result;
+	}
+
+	private boolean inBox(int i, double[] min, double[] max) {
+		for (int a = 0; a < 3; a++) {
+			final double v = coords[a][i];
+			if (v < min[a] || v > max[a])
+				return false;
+		}
+		return true;
+	}
+
+	private void box(int lo, int hi, double[] min, double[] max,
+			double[] centre, double r2, Map<UUID, Location> result) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				if (inBox(i, min, max)
+						&& (centre == null || dist2(i, centre) <= r2))
+					result.put(ids[i], locations[i]);
+			}
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int a = axis[mid];
+		final double split = coords[a][mid];
+		if (inBox(mid, min, max)
+				&& (centre == null || dist2(mid, centre) <= r2))
+			result.put(ids[mid], locations[mid]);
+		if (min[a] <= split)
+			box(lo, mid, min, max, centre, r2, result);
+		if (max[a] >= split)
+			box(mid + 1, hi, min, max, centre, r2, result);
+	}
+
+	/**
+	 * Find the k nearest points to centre, within maxRadius, ignoring
+	 * exclude.
+	 * 
+	 * @return points ordered nearest first.
+	 */
+	Map<UUID, Location> nearest(double[] centre, int k, double maxRadius,
+			UUID exclude) {
+		final Map<UUID, Location> result = new LinkedHashMap<UUID, Location>();
+		if (k <= 0 || size == 0)
+			return result;
+		// there can't be more than size results
+		final Neighbours n = new Neighbours(Math.min(k, size), maxRadius
+				* maxRadius);
+		nearest(0, size, centre, exclude, n);
+		for (int i : n.drain()) {
+			result.put(ids[i], locations[i]);
+		}
+		return result;
+	}
+
+	private void nearest(int lo, int hi, double[] p, UUID exclude,
+			Neighbours n) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				if (exclude == null || !exclude.equals(ids[i]))
+					n.offer(i, dist2(i, p));
+			}
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int a = axis[mid];
+		final double diff = p[a] - coords[a][mid];
+		if (exclude == null || !exclude.equals(ids[mid]))
+			n.offer(mid, dist2(mid, p));
+		// search the side containing p first
+		if (diff <= 0) {
+			nearest(lo, mid, p, exclude, n);
+			if (diff * diff <= n.bound())
+				nearest(mid + 1, hi, p, exclude, n);
+		} else {
+			nearest(mid + 1, hi, p, exclude, n);
+			if (diff * diff <= n.bound())
+				nearest(lo, mid, p, exclude, n);
+		}
+	}
+
+	/**
+	 * Bounded max-heap of the best k candidates found so far.
+	 */
+	static class Neighbours {
+		final int k;
+		final double maxDist2;
+		final int[] index;
+		final double[] dist;
+		int count = 0;
+
+		Neighbours(int k, double maxDist2) {
+			super();
+			this.k = k;
+			this.maxDist2 = maxDist2;
+			this.index = new int[k];
+			this.dist = new double[k];
+		}
+
+		/**
+		 * Squared distance a candidate must be within to be accepted.
+		 */
+		double bound() {
+			return count < k ? maxDist2 : dist[0];
+		}
+
+		void offer(int i, double d) {
+			if (d > bound())
+				return;
+			if (count < k) {
+				// sift up
+				int c = count++;
+				while (c > 0) {
+					int parent = (c - 1) >>> 1;
+					if (dist[parent] >= d)
+						break;
+					index[c] = index[parent];
+					dist[c] = dist[parent];
+					c = parent;
+				}
+				index[c] = i;
+				dist[c] = d;
+			} else {
+				if (d >= dist[0])
+					return;
+				// replace root and sift down
+				int c = 0;
+				while (true) {
+					int child = 2 * c + 1;
+					if (child >= count)
+						break;
+					if (child + 1 < count && dist[child + 1] > dist[child])
+						child++;
+					if (dist[child] <= d)
+						break;
+					index[c] = index[child];
+					dist[c] = dist[child];
+					c = child;
+				}
+				index[c] = i;
+				dist[c] = d;
+			}
+		}
+
+		/**
+		 * Remove all candidates from the heap, returning their indices in
+		 * ascending order of distance.
+		 */
+		int[] drain() {
+			final int[] out = new int[count];
+			while (count > 0) {
+				out[count - 1] = index[0];
+				// move the last element to the root and sift it down
+				final int i = index[--count];
+				final double d = dist[count];
+				int c = 0;
+				while (true) {
+					int child = 2 * c + 1;
+					if (child >= count)
+						break;
+					if (child + 1 < count && dist[child + 1] > dist[child])
+						child++;
+					if (dist[child] <= d)
+						break;
+					index[c] = index[child];
+					dist[c] = dist[child];
+					c = child;
+				}
+				index[c] = i;
+				dist[c] = d;
+			}
+			return out;
+		}
+	}
+
+}
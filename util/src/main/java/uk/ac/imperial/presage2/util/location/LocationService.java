@@ -26,6 +26,8 @@ import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
 import uk.ac.imperial.presage2.core.environment.ServiceDependencies;
+import uk.ac.imperial.presage2.core.environment.StateKey;
+import uk.ac.imperial.presage2.core.environment.TypedSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.util.location.area.AreaService;
 
@@ -47,14 +49,32 @@ import com.google.inject.Inject;
 @ServiceDependencies({ AreaService.class })
 public class LocationService extends EnvironmentService {
 
+	/**
+	 * Typed key of the <code>util.location</code> shared state.
+	 */
+	public static final StateKey<Location> LOCATION = new StateKey<Location>(
+			"util.location", Location.class);
+
 	EnvironmentServiceProvider serviceProvider;
 	private AreaService areaService;
+	private SpatialIndexService spatialIndex;
+	private boolean spatialIndexChecked = false;
+	private SpatialQueryService spatialQuery;
+	private boolean spatialQueryChecked = false;
+
+	/**
+	 * Typed view of the shared state, or null if the storage does not
+	 * support it.
+	 */
+	final TypedSharedStateAccess typedState;
 
 	@Inject
 	public LocationService(EnvironmentSharedStateAccess sharedState,
 			EnvironmentServiceProvider serviceProvider) {
 		super(sharedState);
 		this.serviceProvider = serviceProvider;
+		this.typedState = sharedState instanceof TypedSharedStateAccess ? (TypedSharedStateAccess) sharedState
+				: null;
 	}
 
 	protected AreaService getAreaService() {
@@ -68,6 +88,42 @@ public class LocationService extends EnvironmentService {
 		return areaService;
 	}
 
+	/**
+	 * Get the {@link SpatialIndexService} if the environment provides one.
+	 * 
+	 * @return {@link SpatialIndexService} or null if it is not available.
+	 */
+	protected SpatialIndexService getSpatialIndex() {
+		if (!spatialIndexChecked) {
+			try {
+				spatialIndex = serviceProvider
+						.getEnvironmentService(SpatialIndexService.class);
+			} catch (UnavailableServiceException e) {
+				spatialIndex = null;
+			}
+			spatialIndexChecked = true;
+		}
+		return spatialIndex;
+	}
+
+	/**
+	 * Get the {@link SpatialQueryService} if the environment provides one.
+	 * 
+	 * @return {@link SpatialQueryService} or null if it is not available.
+	 */
+	protected SpatialQueryService getSpatialQueryService() {
+		if (!spatialQueryChecked) {
+			try {
+				spatialQuery = serviceProvider
+						.getEnvironmentService(SpatialQueryService.class);
+			} catch (UnavailableServiceException e) {
+				spatialQuery = null;
+			}
+			spatialQueryChecked = true;
+		}
+		return spatialQuery;
+	}
+
 	/**
 	 * If any participant's location shared state is a 'Cell', we insert it into
 	 * the global shared state via {@link AreaService}.
@@ -91,6 +147,10 @@ public class LocationService extends EnvironmentService {
 	 * @return {@link Location} of participants
 	 */
 	public Location getAgentLocation(UUID participantID) {
+		if (typedState != null) {
+			final int slot = typedState.lookupSlot(participantID);
+			return slot < 0 ? null : typedState.get(LOCATION, slot);
+		}
 		return (Location) this.sharedState.get("util.location", participantID);
 	}
 
@@ -104,7 +164,13 @@ public class LocationService extends EnvironmentService {
 	 * @param l
 	 */
 	public void setAgentLocation(final UUID participantID, final Location l) {
-		this.sharedState.change("util.location", participantID, l);
+		if (typedState != null)
+			typedState.change(LOCATION, typedState.getSlot(participantID), l);
+		else
+			this.sharedState.change("util.location", participantID, l);
+		final SpatialIndexService index = getSpatialIndex();
+		if (index != null)
+			index.update(participantID, l);
 		if (l instanceof Cell) {
 			Location oldLoc = getAgentLocation(participantID);
 			getAreaService().removeFromCell((int) oldLoc.getX(), (int) oldLoc.getY(),
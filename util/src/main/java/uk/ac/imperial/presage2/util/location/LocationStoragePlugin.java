@@ -18,6 +18,8 @@
  */
 package uk.ac.imperial.presage2.util.location;
 
+import java.util.Arrays;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -64,7 +66,13 @@ public class LocationStoragePlugin {
 	@Step
 	public void incrementTime(int t) {
 		if (this.storage != null) {
-			for (UUID pid : this.membersService.getParticipants()) {
+			final Set<UUID> pids = this.membersService.getParticipants();
+			UUID[] ids = new UUID[pids.size()];
+			double[] x = new double[ids.length];
+			double[] y = new double[ids.length];
+			double[] z = new double[ids.length];
+			int n = 0;
+			for (UUID pid : pids) {
 				Location l;
 				try {
 					l = this.locService.getAgentLocation(pid);
@@ -75,10 +83,21 @@ public class LocationStoragePlugin {
 				if (l == null)
 					continue;
 
-				this.storage.storeTuple("x", pid, t, l.getX());
-				this.storage.storeTuple("y", pid, t, l.getY());
-				this.storage.storeTuple("z", pid, t, l.getZ());
+				ids[n] = pid;
+				x[n] = l.getX();
+				y[n] = l.getY();
+				z[n] = l.getZ();
+				n++;
 			}
+			if (n < ids.length) {
+				ids = Arrays.copyOf(ids, n);
+				x = Arrays.copyOf(x, n);
+				y = Arrays.copyOf(y, n);
+				z = Arrays.copyOf(z, n);
+			}
+			this.storage.storeTuples("x", t, ids, x);
+			this.storage.storeTuples("y", t, ids, y);
+			this.storage.storeTuples("z", t, ids, z);
 		}
 	}
 }
@@ -110,8 +110,8 @@ public class MoveHandler implements ActionHandler {
 			getAreaService();
 			final Move m = (CellMove) action;
 			synchronized (areaService) {
-				if (areaService.getCell((int) m.getX(), (int) m.getY(),
-						(int) m.getZ()).size() == 0) {
+				if (areaService.getCellCount((int) m.getX(), (int) m.getY(),
+						(int) m.getZ()) == 0) {
 					Location target = new Cell((int) m.getX(), (int) m.getY(),
 							(int) m.getZ());
 					if (!target.in(environment.getArea())) {
@@ -36,6 +36,7 @@ import uk.ac.imperial.presage2.core.participant.Participant;
 import uk.ac.imperial.presage2.util.environment.EnvironmentMembersService;
 import uk.ac.imperial.presage2.util.participant.HasPerceptionRange;
 import uk.ac.imperial.presage2.util.participant.StateAccessor;
+import uk.ac.imperial.presage2.util.location.area.AreaService;
 
 /**
  * <p>
@@ -186,8 +187,9 @@ public class ParticipantLocationService extends LocationService {
 	 * Get the agents who are visible to me at this time and their
 	 * {@link Location}s.
 	 * 
-	 * If we are using {@link Cell}s we do a cell lookup, otherwise we go
-	 * through the full agent list.
+	 * If we are using {@link Cell}s we do a cell lookup, if a
+	 * {@link SpatialQueryService} or {@link SpatialIndexService} is available
+	 * we query it, otherwise we go through the full agent list.
 	 * 
 	 * @return {@link HashMap} of agent's {@link UUID} to {@link Location}
 	 */
@@ -197,26 +199,28 @@ public class ParticipantLocationService extends LocationService {
 		} else if (this.getAreaService() != null
 				&& this.getAreaService().isCellArea()
 				&& this.rangeProvider != null) {
-			final Map<UUID, Location> agents = new HashMap<UUID, Location>();
 			Cell myLoc = (Cell) super.getAgentLocation(myID);
 			double range = this.rangeProvider.getPerceptionRange();
-
-			for (int x = Math.max(0, (int) (myLoc.getX() - range)); x < Math
-					.min(getAreaService().getSizeX(),
-							(int) (myLoc.getX() + range)); x++) {
-				for (int y = Math.max(0, (int) (myLoc.getY() - range)); y < Math
-						.min(getAreaService().getSizeY(),
-								(int) (myLoc.getY() + range)); y++) {
-					for (int z = Math.max(0, (int) (myLoc.getZ() - range)); z < Math
-							.min(getAreaService().getSizeZ(),
-									(int) (myLoc.getZ() + range)); z++) {
-						Cell c = new Cell(x, y, z);
-						for (UUID a : getAreaService().getCell(x, y, z)) {
-							agents.put(a, c);
-						}
-					}
-				}
-			}
+			final AreaService area = getAreaService();
+			final Map<UUID, Location> agents = area.getAgentsInCells(
+					(int) (myLoc.getX() - range), (int) (myLoc.getY() - range),
+					(int) (myLoc.getZ() - range),
+					Math.min(area.getSizeX(), (int) (myLoc.getX() + range)),
+					Math.min(area.getSizeY(), (int) (myLoc.getY() + range)),
+					Math.min(area.getSizeZ(), (int) (myLoc.getZ() + range)));
+			agents.remove(this.myID);
+			return agents;
+		} else if (this.rangeProvider != null
+				&& this.getSpatialQueryService() != null) {
+			final Map<UUID, Location> agents = this.getSpatialQueryService()
+					.getAgentsWithin(super.getAgentLocation(myID),
+							this.rangeProvider.getPerceptionRange());
+			agents.remove(this.myID);
+			return agents;
+		} else if (this.rangeProvider != null && this.getSpatialIndex() != null) {
+			final Map<UUID, Location> agents = this.getSpatialIndex()
+					.getAgentsWithin(super.getAgentLocation(myID),
+							this.rangeProvider.getPerceptionRange());
 			agents.remove(this.myID);
 			return agents;
 		} else {
@@ -240,6 +244,55 @@ public class ParticipantLocationService extends LocationService {
 		}
 	}
 
+	/**
+	 * Get up to <code>k</code> of the agents visible to me, nearest first.
+	 * Requires a {@link SpatialQueryService}.
+	 * 
+	 * @param k
+	 *            maximum number of agents to return.
+	 * @return {@link Map} of agent's {@link UUID} to {@link Location},
+	 *         iterating from nearest to furthest.
+	 * @throws UnavailableServiceException
+	 *             if there is no {@link SpatialQueryService}.
+	 */
+	public Map<UUID, Location> getNearestAgents(int k)
+			throws UnavailableServiceException {
+		final SpatialQueryService query = getSpatialQueryService();
+		if (query == null)
+			throw new UnavailableServiceException(SpatialQueryService.class);
+		final double range = this.rangeProvider != null ? this.rangeProvider
+				.getPerceptionRange() : Double.POSITIVE_INFINITY;
+		return query.getNearest(super.getAgentLocation(myID), k, range,
+				this.myID);
+	}
+
+	/**
+	 * Get the agents visible to me which are within the axis-aligned box with
+	 * corners <code>min</code> and <code>max</code>. Requires a
+	 * {@link SpatialQueryService}.
+	 * 
+	 * @param min
+	 * @param max
+	 * @return {@link Map} of agent's {@link UUID} to {@link Location}
+	 * @throws UnavailableServiceException
+	 *             if there is no {@link SpatialQueryService}.
+	 */
+	public Map<UUID, Location> getAgentsInBox(Location min, Location max)
+			throws UnavailableServiceException {
+		final SpatialQueryService query = getSpatialQueryService();
+		if (query == null)
+			throw new UnavailableServiceException(SpatialQueryService.class);
+		final Map<UUID, Location> agents;
+		if (this.rangeProvider != null)
+			agents = query.getAgentsInBox(min, max,
+					super.getAgentLocation(myID),
+					this.rangeProvider.getPerceptionRange());
+		else
+			agents = query.getAgentsInBox(min, max);
+		agents.remove(this.myID);
+		return agents;
+	}
+
 	/**
 	 * Create the {@link ParticipantSharedState} required for this service.
 	 * 
@@ -0,0 +1,347 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
+import uk.ac.imperial.presage2.core.environment.EnvironmentService;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.environment.ParticipantSlots;
+import uk.ac.imperial.presage2.util.environment.StateCommitListener;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Global {@link EnvironmentService} which indexes participant locations in a
+ * uniform grid so that agents within a radius can be found without checking
+ * every participant.
+ * </p>
+ * <p>
+ * The index is kept up to date by {@link LocationService#setAgentLocation}
+ * and by participant registration and deregistration. Updates are applied
+ * when the shared state commits, so queries always see the same locations as
+ * {@link LocationService#getAgentLocation(UUID)}. If the shared state storage
+ * is not a {@link MappedSharedState} updates are applied at the next query
+ * instead.
+ * </p>
+ * 
+ * <h3>Usage</h3>
+ * 
+ * <p>
+ * Add as a global environment service in the environment. When it is
+ * available {@link ParticipantLocationService#getNearbyAgents()} and
+ * {@link uk.ac.imperial.presage2.util.network.NetworkRangeConstraint} will use
+ * it.
+ * </p>
+ */
+@Singleton
+public class SpatialIndexService extends EnvironmentService implements
+		StateCommitListener {
+
+	/**
+	 * Default width of a grid cell.
+	 */
+	public static final double DEFAULT_CELL_SIZE = 10.0;
+
+	private static final int COORD_BITS = 21;
+	private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+	final double cellSize;
+
+	final ParticipantSlots slots;
+
+	/**
+	 * Whether updates are applied when the shared state commits.
+	 */
+	final boolean onCommit;
+
+	private final Queue<Update> pending = new ConcurrentLinkedQueue<Update>();
+
+	private final Map<Long, Bucket> cells = new HashMap<Long, Bucket>();
+
+	// per slot state of the index
+	private Location[] locations = new Location[64];
+	private long[] cellOf = new long[64];
+	private int[] positionInCell = new int[64];
+
+	private volatile int version = 0;
+
+	@Inject
+	public SpatialIndexService(EnvironmentSharedStateAccess sharedState) {
+		this(sharedState, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param sharedState
+	 * @param cellSize
+	 *            width of a grid cell. Queries are fastest when this is
+	 *            similar to the typical query radius.
+	 */
+	public SpatialIndexService(EnvironmentSharedStateAccess sharedState,
+			double cellSize) {
+		super(sharedState);
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("cellSize must be positive");
+		this.cellSize = cellSize;
+		if (sharedState instanceof MappedSharedState) {
+			MappedSharedState mss = (MappedSharedState) sharedState;
+			this.slots = mss.getParticipantSlots();
+			mss.addCommitListener(this);
+			this.onCommit = true;
+		} else {
+			this.slots = new ParticipantSlots();
+			this.onCommit = false;
+		}
+	}
+
+	@Override
+	public void registerParticipant(EnvironmentRegistrationRequest req) {
+		if (req.getSharedState() == null)
+			return;
+		for (ParticipantSharedState s : req.getSharedState()) {
+			if (s.getName().equals(LocationService.LOCATION.getName())
+					&& s.getValue() instanceof Location) {
+				update(req.getParticipantID(), (Location) s.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void deregisterParticipant(UUID participantID) {
+		remove(participantID);
+	}
+
+	/**
+	 * Set the location of a participant in the index. The change is visible
+	 * from the next time slice.
+	 * 
+	 * @param participantID
+	 * @param l
+	 */
+	public void update(UUID participantID, Location l) {
+		pending.add(new Update(participantID, l));
+	}
+
+	/**
+	 * Remove a participant from the index. The change is visible from the
+	 * next time slice.
+	 * 
+	 * @param participantID
+	 */
+	public void remove(UUID participantID) {
+		pending.add(new Update(participantID, null));
+	}
+
+	@Override
+	public void stateCommitted() {
+		applyUpdates();
+	}
+
+	/**
+	 * Get the number of times the index has been changed. This can be used
+	 * to invalidate results derived from the index.
+	 * 
+	 * @return version of the index.
+	 */
+	public int getVersion() {
+		if (!onCommit)
+			applyUpdates();
+		return version;
+	}
+
+	/**
+	 * Get the indexed location of a participant.
+	 * 
+	 * @param participantID
+	 * @return the {@link Location}, or null if the participant is not
+	 *         indexed.
+	 */
+	public Location getLocation(UUID participantID) {
+		if (!onCommit)
+			applyUpdates();
+		final int slot = slots.lookup(participantID);
+		final Location[] locs = locations;
+		return slot >= 0 && slot < locs.length ? locs[slot] : null;
+	}
+
+	/**
+	 * Get all participants within <code>radius</code> of <code>centre</code>
+	 * (inclusive).
+	 * 
+	 * @param centre
+	 * @param radius
+	 * @return {@link Map} of participant {@link UUID} to {@link Location}.
+	 */
+	public Map<UUID, Location> getAgentsWithin(Location centre, double radius) {
+		if (!onCommit)
+			applyUpdates();
+		final Map<UUID, Location> result = new HashMap<UUID, Location>();
+		if (onCommit) {
+			collect(centre, radius, result);
+		} else {
+			synchronized (this) {
+				collect(centre, radius, result);
+			}
+		}
+		return result;
+	}
+
+	private void collect(Location centre, double radius,
+			Map<UUID, Location> result) {
+		final double cx = centre.getX(), cy = centre.getY(), cz = centre.getZ();
+		final double r2 = radius * radius;
+		final long x0 = cellIndex(cx - radius), x1 = cellIndex(cx + radius);
+		final long y0 = cellIndex(cy - radius), y1 = cellIndex(cy + radius);
+		final long z0 = cellIndex(cz - radius), z1 = cellIndex(cz + radius);
+		final long span = (x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+		if (span > cells.size()) {
+			// cheaper to look at every occupied cell
+			for (Bucket b : cells.values()) {
+				collect(b, cx, cy, cz, r2, result);
+			}
+			return;
+		}
+		for (long x = x0; x <= x1; x++) {
+			for (long y = y0; y <= y1; y++) {
+				for (long z = z0; z <= z1; z++) {
+					Bucket b = cells.get(cellKey(x, y, z));
+					if (b != null)
+						collect(b, cx, cy, cz, r2, result);
+				}
+			}
+		}
+	}
+
+	private void collect(Bucket b, double cx, double cy, double cz,
+			double r2, Map<UUID, Location> result) {
+		for (int i = 0; i < b.size; i++) {
+			final int slot = b.slots[i];
+			final Location l = locations[slot];
+			final double dx = l.getX() - cx, dy = l.getY() - cy, dz = l.getZ()
+					- cz;
+			if (dx * dx + dy * dy + dz * dz <= r2)
+				result.put(slots.getParticipant(slot), l);
+		}
+	}
+
+	long cellIndex(double coord) {
+		return (long) Math.floor(coord / cellSize);
+	}
+
+	static long cellKey(long x, long y, long z) {
+		return ((x & COORD_MASK) << (2 * COORD_BITS))
+				| ((y & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+	}
+
+	synchronized void applyUpdates() {
+		if (pending.isEmpty())
+			return;
+		Update u;
+		while ((u = pending.poll()) != null) {
+			final int slot = u.location != null ? slots
+					.getSlot(u.participantID) : slots.lookup(u.participantID);
+			if (slot < 0)
+				continue;
+			ensureCapacity(slot);
+			if (locations[slot] != null) {
+				cells.get(cellOf[slot]).remove(positionInCell[slot]);
+				locations[slot] = null;
+			}
+			if (u.location != null) {
+				final long key = cellKey(cellIndex(u.location.getX()),
+						cellIndex(u.location.getY()),
+						cellIndex(u.location.getZ()));
+				Bucket b = cells.get(key);
+				if (b == null) {
+					b = new Bucket();
+					cells.put(key, b);
+				}
+				locations[slot] = u.location;
+				cellOf[slot] = key;
+				positionInCell[slot] = b.add(slot);
+			}
+		}
+		version++;
+	}
+
+	private void ensureCapacity(int slot) {
+		if (slot < locations.length)
+			return;
+		int n = locations.length;
+		while (n <= slot)
+			n *= 2;
+		Location[] l = new Location[n];
+		System.arraycopy(locations, 0, l, 0, locations.length);
+		long[] c = new long[n];
+		System.arraycopy(cellOf, 0, c, 0, cellOf.length);
+		int[] p = new int[n];
+		System.arraycopy(positionInCell, 0, p, 0, positionInCell.length);
+		locations = l;
+		cellOf = c;
+		positionInCell = p;
+	}
+
+	static class Update {
+		final UUID participantID;
+		final Location location;
+
+		Update(UUID participantID, Location location) {
+			super();
+			this.participantID = participantID;
+			this.location = location;
+		}
+	}
+
+	/**
+	 * Slots of the participants in a grid cell.
+	 */
+	class Bucket {
+		int[] slots = new int[4];
+		int size = 0;
+
+		int add(int slot) {
+			if (size == slots.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(slots, 0, grown, 0, size);
+				slots = grown;
+			}
+			slots[size] = slot;
+			return size++;
+		}
+
+		void remove(int position) {
+			final int last = --size;
+			if (position != last) {
+				final int moved = slots[last];
+				slots[position] = moved;
+				positionInCell[moved] = position;
+			}
+		}
+	}
+
+}
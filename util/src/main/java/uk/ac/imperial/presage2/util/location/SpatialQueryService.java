@@ -0,0 +1,262 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
+import uk.ac.imperial.presage2.core.environment.EnvironmentService;
+import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
+import uk.ac.imperial.presage2.util.environment.EnvironmentMembersService;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.environment.ParticipantSlots;
+import uk.ac.imperial.presage2.util.environment.StateCommitListener;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Global {@link EnvironmentService} for 3D spatial queries over participant
+ * {@link Location}s: all agents within a radius, all agents in an
+ * axis-aligned box, and the k nearest agents to a point.
+ * </p>
+ * <p>
+ * Queries are answered from a k-d tree which is bulk loaded from the
+ * committed locations once per time slice, after {@link MappedSharedState}
+ * has committed the state changes. Participants which have deregistered are
+ * left out. The tree is immutable so queries from any number of threads need
+ * no locking. With other shared state storage the tree must be rebuilt
+ * explicitly with {@link #rebuild()}.
+ * </p>
+ * 
+ * <h3>Usage</h3>
+ * 
+ * <p>
+ * Add as a global environment service in the environment. Participants can
+ * then use the perception range limited queries of
+ * {@link ParticipantLocationService}.
+ * </p>
+ */
+@Singleton
+public class SpatialQueryService extends EnvironmentService implements
+		StateCommitListener {
+
+	private final Logger logger = Logger.getLogger(SpatialQueryService.class);
+
+	private final EnvironmentServiceProvider serviceProvider;
+
+	/**
+	 * Slots of participants which have deregistered. Their locations stay in
+	 * the shared state but are left out of the tree.
+	 */
+	private final BitSet departed = new BitSet();
+
+	private volatile KdTree tree = new KdTree(new UUID[0], new Location[0], 0);
+
+	@Inject
+	public SpatialQueryService(EnvironmentSharedStateAccess sharedState,
+			EnvironmentServiceProvider serviceProvider) {
+		super(sharedState);
+		this.serviceProvider = serviceProvider;
+		if (sharedState instanceof MappedSharedState) {
+			final MappedSharedState mapped = (MappedSharedState) sharedState;
+			// locations created by name are stored by slot from now on.
+			mapped.createColumn(LocationService.LOCATION);
+			mapped.addCommitListener(this);
+		}
+	}
+
+	@Override
+	public void registerParticipant(EnvironmentRegistrationRequest req) {
+		if (sharedState instanceof MappedSharedState) {
+			final int slot = ((MappedSharedState) sharedState)
+					.getParticipantSlots().lookup(req.getParticipantID());
+			if (slot >= 0) {
+				synchronized (departed) {
+					departed.clear(slot);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void deregisterParticipant(UUID participantID) {
+		if (sharedState instanceof MappedSharedState) {
+			final int slot = ((MappedSharedState) sharedState)
+					.getParticipantSlots().lookup(participantID);
+			if (slot >= 0) {
+				synchronized (departed) {
+					departed.set(slot);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void stateCommitted() {
+		rebuild();
+	}
+
+	/**
+	 * Rebuild the tree from the current locations in the shared state.
+	 */
+	public void rebuild() {
+		UUID[] ids;
+		Location[] locs;
+		int n = 0;
+		if (sharedState instanceof MappedSharedState) {
+			// read locations by slot, straight from the typed state
+			final MappedSharedState typed = (MappedSharedState) sharedState;
+			final ParticipantSlots slots = typed.getParticipantSlots();
+			final int count = slots.size();
+			final BitSet gone;
+			synchronized (departed) {
+				gone = (BitSet) departed.clone();
+			}
+			ids = new UUID[count];
+			locs = new Location[count];
+			for (int slot = 0; slot < count; slot++) {
+				if (gone.get(slot))
+					continue;
+				final Location l = typed.get(LocationService.LOCATION, slot);
+				if (l != null) {
+					ids[n] = slots.getParticipant(slot);
+					locs[n++] = l;
+				}
+			}
+		} else {
+			final Set<UUID> participants = getMembersService()
+					.getParticipants();
+			ids = new UUID[participants.size()];
+			locs = new Location[participants.size()];
+			for (UUID pid : participants) {
+				final Location l = (Location) sharedState.get(
+						LocationService.LOCATION.getName(), pid);
+				if (l != null) {
+					ids[n] = pid;
+					locs[n++] = l;
+				}
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Rebuilding spatial index of " + n + " locations.");
+		tree = new KdTree(ids, locs, n);
+	}
+
+	private EnvironmentMembersService getMembersService() {
+		try {
+			return serviceProvider
+					.getEnvironmentService(EnvironmentMembersService.class);
+		} catch (UnavailableServiceException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static double[] coords(Location l) {
+		return new double[] { l.getX(), l.getY(), l.getZ() };
+	}
+
+	/**
+	 * Get the number of locations in the index.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return tree.size;
+	}
+
+	/**
+	 * Get all agents within <code>radius</code> of <code>centre</code>
+	 * (inclusive).
+	 * 
+	 * @param centre
+	 * @param radius
+	 * @return {@link Map} of participant {@link UUID} to {@link Location}.
+	 */
+	public Map<UUID, Location> getAgentsWithin(Location centre, double radius) {
+		return tree.radius(coords(centre), radius);
+	}
+
+	/**
+	 * Get all agents in the axis-aligned box with corners <code>min</code> and
+	 * <code>max</code> (inclusive).
+	 * 
+	 * @param min
+	 * @param max
+	 * @return {@link Map} of participant {@link UUID} to {@link Location}.
+	 */
+	public Map<UUID, Location> getAgentsInBox(Location min, Location max) {
+		return tree.box(coords(min), coords(max), null, 0);
+	}
+
+	/**
+	 * Get all agents in the axis-aligned box with corners <code>min</code> and
+	 * <code>max</code> which are also within <code>radius</code> of
+	 * <code>centre</code>.
+	 * 
+	 * @param min
+	 * @param max
+	 * @param centre
+	 * @param radius
+	 * @return {@link Map} of participant {@link UUID} to {@link Location}.
+	 */
+	public Map<UUID, Location> getAgentsInBox(Location min, Location max,
+			Location centre, double radius) {
+		return tree.box(coords(min), coords(max), coords(centre), radius);
+	}
+
+	/**
+	 * Get the <code>k</code> agents nearest to <code>centre</code>.
+	 * 
+	 * @param centre
+	 * @param k
+	 * @return {@link Map} of participant {@link UUID} to {@link Location},
+	 *         iterating from nearest to furthest.
+	 */
+	public Map<UUID, Location> getNearest(Location centre, int k) {
+		return tree.nearest(coords(centre), k, Double.POSITIVE_INFINITY, null);
+	}
+
+	/**
+	 * Get up to <code>k</code> agents nearest to <code>centre</code> which are
+	 * within <code>maxRadius</code> of it, ignoring the agent
+	 * <code>exclude</code>.
+	 * 
+	 * @param centre
+	 * @param k
+	 * @param maxRadius
+	 * @param exclude
+	 *            agent to leave out of the results, may be null.
+	 * @return {@link Map} of participant {@link UUID} to {@link Location},
+	 *         iterating from nearest to furthest.
+	 */
+	public Map<UUID, Location> getNearest(Location centre, int k,
+			double maxRadius, UUID exclude) {
+		return tree.nearest(coords(centre), k, maxRadius, exclude);
+	}
+
+}
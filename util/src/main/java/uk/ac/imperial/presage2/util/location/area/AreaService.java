@@ -18,20 +18,23 @@
  */
 package uk.ac.imperial.presage2.util.location.area;
 
-import java.io.Serializable;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
-import uk.ac.imperial.presage2.core.environment.StateTransformer;
 import uk.ac.imperial.presage2.util.environment.AbstractEnvironment;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.environment.ParticipantSlots;
+import uk.ac.imperial.presage2.util.environment.StateCommitListener;
 import uk.ac.imperial.presage2.util.location.Cell;
 import uk.ac.imperial.presage2.util.location.Location;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 /**
  * <p>
@@ -47,19 +50,37 @@ import com.google.inject.Inject;
  * {@link AbstractEnvironment#initialiseGlobalEnvironmentServices}.
  * </p>
  * 
+ * <p>
+ * When {@link Cell}s are used, cell occupancy is kept in a dense grid held by
+ * this service. Changes to it become visible when the shared state commits at
+ * the end of the timestep, or, if the shared state storage is not a
+ * {@link MappedSharedState}, at the next read.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
-public class AreaService extends EnvironmentService {
+@Singleton
+public class AreaService extends EnvironmentService implements
+		StateCommitListener {
 
 	private HasArea area;
 
-	private boolean cellArea = false;
+	private volatile boolean cellArea = false;
 
 	private final int xSize;
 	private final int ySize;
 	private final int zSize;
 
+	private final ParticipantSlots slots;
+
+	/**
+	 * Whether cell changes are applied when the shared state commits.
+	 */
+	private final boolean onCommit;
+
+	private volatile CellGrid grid = null;
+
 	@Inject
 	public AreaService(EnvironmentSharedStateAccess sharedState, HasArea area) {
 		super(sharedState);
@@ -67,6 +88,22 @@ public class AreaService extends EnvironmentService {
 		this.xSize = Math.max(this.area.getArea().x, 1);
 		this.ySize = Math.max(this.area.getArea().y, 1);
 		this.zSize = Math.max(this.area.getArea().z, 1);
+		if (sharedState instanceof MappedSharedState) {
+			MappedSharedState mss = (MappedSharedState) sharedState;
+			this.slots = mss.getParticipantSlots();
+			mss.addCommitListener(this);
+			this.onCommit = true;
+		} else {
+			this.slots = new ParticipantSlots();
+			this.onCommit = false;
+		}
+	}
+
+	@Override
+	public void stateCommitted() {
+		final CellGrid g = grid;
+		if (g != null)
+			g.commit();
 	}
 
 	/**
@@ -81,54 +118,55 @@ public class AreaService extends EnvironmentService {
 	public Set<UUID> getCell(int x, int y, int z) {
 		if (!validCell(x, y, z))
 			throw new RuntimeException("Cell out of bounds");
-		cellAction();
-
-		try {
-			@SuppressWarnings("unchecked")
-			Set<UUID> cell = (HashSet<UUID>) sharedState.getGlobal(cellKey(x,
-					y, z));
-			if (cell == null)
-				cell = new HashSet<UUID>();
-			cell = Collections.unmodifiableSet(cell);
-
-			return cell;
-		} catch (NullPointerException e) {
-			throw new RuntimeException(e);
-		}
+		return Collections.unmodifiableSet(readGrid().get(x, y, z));
+	}
+
+	/**
+	 * Get the number of agents in the cell at <code>x,y,z</code>.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public int getCellCount(int x, int y, int z) {
+		if (!validCell(x, y, z))
+			throw new RuntimeException("Cell out of bounds");
+		return readGrid().count(x, y, z);
+	}
+
+	/**
+	 * Get the agents in the cells from <code>minX,minY,minZ</code>
+	 * (inclusive) to <code>maxX,maxY,maxZ</code> (exclusive), and the
+	 * {@link Cell} each is in. The box is clipped to the area.
+	 * 
+	 * @return {@link Map} of agent {@link UUID} to {@link Cell}.
+	 */
+	public Map<UUID, Location> getAgentsInCells(int minX, int minY, int minZ,
+			int maxX, int maxY, int maxZ) {
+		final CellGrid g = readGrid();
+		final Map<UUID, Location> agents = new HashMap<UUID, Location>();
+		minX = Math.max(minX, 0);
+		minY = Math.max(minY, 0);
+		minZ = Math.max(minZ, 0);
+		maxX = Math.min(maxX, g.nx);
+		maxY = Math.min(maxY, g.ny);
+		maxZ = Math.min(maxZ, g.nz);
+		if (minX < maxX && minY < maxY && minZ < maxZ)
+			g.collect(minX, minY, minZ, maxX, maxY, maxZ, agents);
+		return agents;
 	}
 
 	public void addToCell(int x, int y, int z, final UUID aid) {
-		cellAction();
 		if (validCell(x, y, z)) {
-			sharedState.changeGlobal(cellKey(x, y, z), new StateTransformer() {
-				@SuppressWarnings("unchecked")
-				@Override
-				public Serializable transform(Serializable state) {
-					HashSet<UUID> cell = (HashSet<UUID>) state;
-					if (cell == null)
-						cell = new HashSet<UUID>();
-					cell.add(aid);
-					return cell;
-				}
-			});
+			getGrid().add(x, y, z, aid);
 		} else
 			throw new RuntimeException("Cell out of bounds");
 	}
 
 	public void removeFromCell(int x, int y, int z, final UUID aid) {
-		cellAction();
 		if (validCell(x, y, z)) {
-			sharedState.changeGlobal(cellKey(x, y, z), new StateTransformer() {
-				@SuppressWarnings("unchecked")
-				@Override
-				public Serializable transform(Serializable state) {
-					HashSet<UUID> cell = (HashSet<UUID>) state;
-					if (cell == null)
-						cell = new HashSet<UUID>();
-					cell.remove(aid);
-					return cell;
-				}
-			});
+			getGrid().remove(x, y, z, aid);
 		} else
 			throw new RuntimeException("Cell out of bounds");
 	}
@@ -155,19 +193,36 @@ public class AreaService extends EnvironmentService {
 		return cellArea;
 	}
 
-	private String cellKey(int x, int y, int z) {
-		return "area.cell." + x + "." + y + "." + z;
-	}
-
 	private boolean validCell(int x, int y, int z) {
 		return x >= 0 && x <= xSize && y >= 0 && y <= ySize && z >= 0
 				&& z <= zSize;
 	}
 
-	private void cellAction() {
-		if (!isCellArea()) {
-			this.cellArea = true;
+	/**
+	 * Get the cell grid, creating it on first use. This also marks the area
+	 * as a cell area.
+	 */
+	private CellGrid getGrid() {
+		CellGrid g = grid;
+		if (g == null) {
+			synchronized (this) {
+				g = grid;
+				if (g == null) {
+					// cell coordinates are valid up to and including the size
+					g = new CellGrid(xSize + 1, ySize + 1, zSize + 1, slots);
+					grid = g;
+					this.cellArea = true;
+				}
+			}
 		}
+		return g;
+	}
+
+	private CellGrid readGrid() {
+		final CellGrid g = getGrid();
+		if (!onCommit)
+			g.commit();
+		return g;
 	}
 
 }
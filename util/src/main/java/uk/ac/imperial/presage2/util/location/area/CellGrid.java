@@ -0,0 +1,221 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location.area;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uk.ac.imperial.presage2.util.environment.ParticipantSlots;
+import uk.ac.imperial.presage2.util.location.Cell;
+import uk.ac.imperial.presage2.util.location.Location;
+
+/**
+ * <p>
+ * Dense occupancy grid of the cells of an {@link AreaService}.
+ * </p>
+ * <p>
+ * Occupants are held as participant slots sorted by cell index, with the
+ * start of each cell's run in a second array (compressed sparse rows). Cells
+ * are indexed with x varying fastest, so the occupants of a row of cells are
+ * one contiguous run of the occupant array.
+ * </p>
+ * <p>
+ * Changes are queued and applied by {@link #commit()}, which rebuilds the
+ * arrays into a back buffer and then swaps it with the one being read, so
+ * readers see the occupancy as of the last commit. Each participant occupies
+ * at most one cell.
+ * </p>
+ */
+class CellGrid {
+
+	final int nx;
+	final int ny;
+	final int nz;
+	final int cells;
+
+	private final ParticipantSlots slots;
+
+	private final Queue<Change> pending = new ConcurrentLinkedQueue<Change>();
+
+	// committed cell of each slot, or -1.
+	private int[] cellOf = new int[64];
+
+	private volatile Buffer front;
+	private Buffer back;
+
+	// insert position of each cell during commit
+	private final int[] next;
+
+	CellGrid(int nx, int ny, int nz, ParticipantSlots slots) {
+		super();
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.cells = nx * ny * nz;
+		this.slots = slots;
+		Arrays.fill(cellOf, -1);
+		this.front = new Buffer(cells);
+		this.back = new Buffer(cells);
+		this.next = new int[cells];
+	}
+
+	int index(int x, int y, int z) {
+		return (z * ny + y) * nx + x;
+	}
+
+	void add(int x, int y, int z, UUID participantID) {
+		pending.add(new Change(participantID, index(x, y, z), true));
+	}
+
+	void remove(int x, int y, int z, UUID participantID) {
+		pending.add(new Change(participantID, index(x, y, z), false));
+	}
+
+	/**
+	 * Apply the queued changes and make them visible to readers.
+	 * 
+	 * @return true if there were any changes.
+	 */
+	synchronized boolean commit() {
+		if (pending.isEmpty())
+			return false;
+		Change c;
+		while ((c = pending.poll()) != null) {
+			final int slot = slots.getSlot(c.participantID);
+			ensureCapacity(slot);
+			if (c.add)
+				cellOf[slot] = c.cell;
+			else if (cellOf[slot] == c.cell)
+				cellOf[slot] = -1;
+		}
+
+		// counting sort of slots by cell into the back buffer
+		final Buffer b = back;
+		final int[] start = b.start;
+		Arrays.fill(start, 0);
+		final int n = slots.size();
+		int occupied = 0;
+		for (int slot = 0; slot < n && slot < cellOf.length; slot++) {
+			if (cellOf[slot] >= 0) {
+				start[cellOf[slot] + 1]++;
+				occupied++;
+			}
+		}
+		for (int i = 0; i < cells; i++) {
+			start[i + 1] += start[i];
+		}
+		if (b.occupants.length < occupied)
+			b.occupants = new int[Math.max(occupied, b.occupants.length * 2)];
+		System.arraycopy(start, 0, next, 0, cells);
+		for (int slot = 0; slot < n && slot < cellOf.length; slot++) {
+			if (cellOf[slot] >= 0)
+				b.occupants[next[cellOf[slot]]++] = slot;
+		}
+
+		back = front;
+		front = b;
+		return true;
+	}
+
+	private void ensureCapacity(int slot) {
+		if (slot < cellOf.length)
+			return;
+		int n = cellOf.length;
+		while (n <= slot)
+			n *= 2;
+		int[] grown = Arrays.copyOf(cellOf, n);
+		Arrays.fill(grown, cellOf.length, n, -1);
+		cellOf = grown;
+	}
+
+	int count(int x, int y, int z) {
+		final Buffer b = front;
+		final int i = index(x, y, z);
+		return b.start[i + 1] - b.start[i];
+	}
+
+	Set<UUID> get(int x, int y, int z) {
+		final Buffer b = front;
+		final int i = index(x, y, z);
+		final Set<UUID> cell = new HashSet<UUID>();
+		for (int j = b.start[i]; j < b.start[i + 1]; j++) {
+			cell.add(slots.getParticipant(b.occupants[j]));
+		}
+		return cell;
+	}
+
+	/**
+	 * Add the occupants of the cells in the box from <code>min</code>
+	 * (inclusive) to <code>max</code> (exclusive) to <code>result</code>,
+	 * mapped to the {@link Cell} they are in.
+	 */
+	void collect(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+			Map<UUID, Location> result) {
+		final Buffer b = front;
+		final int[] start = b.start;
+		final int[] occupants = b.occupants;
+		for (int z = minZ; z < maxZ; z++) {
+			for (int y = minY; y < maxY; y++) {
+				final int row = index(0, y, z);
+				// skip rows with no occupants in range without visiting cells
+				if (start[row + minX] == start[row + maxX])
+					continue;
+				for (int x = minX; x < maxX; x++) {
+					final int from = start[row + x];
+					final int to = start[row + x + 1];
+					if (from == to)
+						continue;
+					final Cell c = new Cell(x, y, z);
+					for (int j = from; j < to; j++) {
+						result.put(slots.getParticipant(occupants[j]), c);
+					}
+				}
+			}
+		}
+	}
+
+	static class Buffer {
+		final int[] start;
+		int[] occupants = new int[64];
+
+		Buffer(int cells) {
+			super();
+			this.start = new int[cells + 1];
+		}
+	}
+
+	static class Change {
+		final UUID participantID;
+		final int cell;
+		final boolean add;
+
+		Change(UUID participantID, int cell, boolean add) {
+			super();
+			this.participantID = participantID;
+			this.cell = cell;
+			this.add = add;
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.util.network.codec.MessageCodec;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * <p>
+ * Models a per-sender link of limited bandwidth. Each sender can transmit
+ * {@link #getBytesPerStep()} bytes of messages per time step, measured by
+ * their {@link MessageCodec} encoding. Messages queue behind earlier
+ * messages from the same sender which have not yet been transmitted, and
+ * are delivered {@link #getLatency()} steps after their last byte is sent.
+ * </p>
+ * 
+ * <p>
+ * Messages are not blocked or modified. Messages whose payload has no codec
+ * in the {@link MessageCodec} cannot be measured, so they queue behind
+ * earlier messages but use no bandwidth. Bind with
+ * {@link NetworkModule#withBandwidth(int, int)}.
+ * </p>
+ * 
+ */
+@Singleton
+public class BandwidthConstraint implements DelayedDeliveryConstraint {
+
+	static final String BYTES_PER_STEP = "network.bandwidth";
+	static final String LATENCY = "network.latency";
+
+	private final MessageCodec codec;
+	private final int bytesPerStep;
+	private final int latency;
+
+	private final Logger logger = Logger.getLogger(BandwidthConstraint.class);
+
+	/**
+	 * Reasons messages could not be encoded, so we only warn once for each.
+	 */
+	private final ConcurrentMap<String, Boolean> unsized = new ConcurrentHashMap<String, Boolean>();
+
+	private final ConcurrentMap<NetworkAddress, Link> links = new ConcurrentHashMap<NetworkAddress, Link>();
+
+	@Inject
+	BandwidthConstraint(MessageCodec codec,
+			@Named(BYTES_PER_STEP) int bytesPerStep,
+			@Named(LATENCY) int latency) {
+		super();
+		if (bytesPerStep < 1)
+			throw new IllegalArgumentException(
+					"Bandwidth must be at least one byte per step");
+		if (latency < 0)
+			throw new IllegalArgumentException("Latency must not be negative");
+		this.codec = codec;
+		this.bytesPerStep = bytesPerStep;
+		this.latency = latency;
+	}
+
+	public int getBytesPerStep() {
+		return bytesPerStep;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	@Override
+	public Message constrainMessage(Message m) {
+		return m;
+	}
+
+	@Override
+	public boolean blockMessageDelivery(NetworkAddress from, NetworkAddress to) {
+		return false;
+	}
+
+	@Override
+	public int getDeliveryDelay(Message m, int time) {
+		int size;
+		try {
+			size = codec.encodedSize(m);
+		} catch (IllegalArgumentException e) {
+			// no codec for the payload, queue it on the link for free.
+			if (unsized.putIfAbsent(String.valueOf(e.getMessage()),
+					Boolean.TRUE) == null)
+				logger.warn("Not charging bandwidth for messages which cannot be encoded: "
+						+ e.getMessage());
+			size = 0;
+		}
+		return getLink(m.getFrom()).send(size, time);
+	}
+
+	/**
+	 * Get the total number of bytes <code>sender</code> has sent.
+	 * 
+	 * @param sender
+	 * @return bytes sent.
+	 */
+	public long getBytesSent(NetworkAddress sender) {
+		final Link l = links.get(sender);
+		return l == null ? 0 : l.getBytesSent();
+	}
+
+	private Link getLink(NetworkAddress sender) {
+		Link l = links.get(sender);
+		if (l == null) {
+			l = new Link();
+			final Link existing = links.putIfAbsent(sender, l);
+			if (existing != null)
+				l = existing;
+		}
+		return l;
+	}
+
+	class Link {
+
+		/**
+		 * Bytes queued on the link at the start of step {@link #time}.
+		 */
+		private long backlog = 0;
+		private int time = 0;
+		private long bytesSent = 0;
+
+		synchronized int send(int bytes, int now) {
+			if (now > time) {
+				backlog = Math.max(0, backlog - (long) (now - time)
+						* bytesPerStep);
+				time = now;
+			}
+			backlog += bytes;
+			bytesSent += bytes;
+			// steps after this one needed to transmit everything queued
+			final long transmit = (backlog - 1) / bytesPerStep;
+			return (int) Math.min(Integer.MAX_VALUE, transmit + latency);
+		}
+
+		synchronized long getBytesSent() {
+			return bytesSent;
+		}
+	}
+
+}
@@ -71,6 +71,8 @@ public class BasicNetworkConnector extends NetworkConnector {
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<Message> getMessages() {
+		if (network != null && network.takeMessages(address, messages))
+			return messages;
 		LinkedList<Message> inbox = (LinkedList<Message>) sharedState.get(
 				"network.inbox", this.address.getId());
 		messages.addAll(inbox);
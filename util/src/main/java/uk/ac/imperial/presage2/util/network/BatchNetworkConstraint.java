@@ -0,0 +1,48 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.BitSet;
+
+/**
+ * A {@link NetworkConstraint} which can decide delivery from one sender to
+ * many receivers at once. The {@link MessageHandler} uses this when fanning
+ * out broadcast and multicast messages, so that per-sender work is done once
+ * rather than once per receiver.
+ * 
+ */
+public interface BatchNetworkConstraint extends NetworkConstraint {
+
+	/**
+	 * Block delivery from <code>from</code> to some of a set of receivers.
+	 * Equivalent to clearing bit <code>i</code> of <code>recipients</code>
+	 * whenever {@link #blockMessageDelivery(NetworkAddress, NetworkAddress)}
+	 * is true for <code>devices[i]</code>.
+	 * 
+	 * @param from
+	 *            a message sender
+	 * @param devices
+	 *            network devices, indexed by bit.
+	 * @param recipients
+	 *            receivers to check, bits of blocked receivers are cleared.
+	 */
+	public void blockMessageDelivery(NetworkAddress from,
+			NetworkAddress[] devices, BitSet recipients);
+
+}
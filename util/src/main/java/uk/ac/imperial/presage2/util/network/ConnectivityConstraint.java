@@ -0,0 +1,43 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+/**
+ * A {@link NetworkConstraint} whose blocking of message delivery can be
+ * computed for all pairs of devices at once. The {@link MessageHandler} asks
+ * for the graph once per time step and answers
+ * {@link #blockMessageDelivery(NetworkAddress, NetworkAddress)} for known
+ * devices from it.
+ * 
+ */
+public interface ConnectivityConstraint extends NetworkConstraint {
+
+	/**
+	 * Build the graph of devices which this constraint allows to communicate
+	 * in the current time step: device <code>i</code> may send to device
+	 * <code>j</code> if
+	 * <code>blockMessageDelivery(devices[i], devices[j])</code> is false.
+	 * 
+	 * @param devices
+	 *            devices of the network.
+	 * @return {@link ConnectivityGraph} over indices of <code>devices</code>.
+	 */
+	public ConnectivityGraph getConnectivity(NetworkAddress[] devices);
+
+}
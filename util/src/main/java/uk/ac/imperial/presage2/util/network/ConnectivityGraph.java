@@ -0,0 +1,239 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.imperial.presage2.util.location.Location;
+
+/**
+ * <p>
+ * Immutable adjacency lists of the network devices which may communicate in
+ * a time step, with devices identified by their index in the array of
+ * devices the graph was built for. A device may be connected to itself.
+ * </p>
+ * 
+ * <p>
+ * Range-limited graphs are built by {@link #ofRanges(Location[], double[])}
+ * using a uniform grid over device locations, so that each device only
+ * examines devices in nearby cells.
+ * </p>
+ * 
+ */
+public class ConnectivityGraph {
+
+	private static final int COORD_BITS = 21;
+	private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+	/**
+	 * Neighbours of device <code>i</code> are
+	 * <code>adjacency[offsets[i]]</code> to
+	 * <code>adjacency[offsets[i+1]-1]</code>, in ascending order.
+	 */
+	private final int[] offsets;
+	private final int[] adjacency;
+
+	ConnectivityGraph(int[] offsets, int[] adjacency) {
+		super();
+		this.offsets = offsets;
+		this.adjacency = adjacency;
+	}
+
+	/**
+	 * Build the graph of devices which can communicate with each other within
+	 * the smaller of their ranges: <code>i</code> and <code>j</code> are
+	 * connected if
+	 * <code>locations[i].distanceTo(locations[j]) &lt;= min(ranges[i], ranges[j])</code>
+	 * . Devices with a null location are not connected to any device.
+	 * 
+	 * @param locations
+	 *            location of each device.
+	 * @param ranges
+	 *            communication range of each device.
+	 * @return {@link ConnectivityGraph}
+	 */
+	public static ConnectivityGraph ofRanges(Location[] locations,
+			double[] ranges) {
+		final int n = locations.length;
+		final IntList[] edges = new IntList[n];
+		for (int i = 0; i < n; i++) {
+			edges[i] = new IntList();
+		}
+
+		// devices with an unbounded range do not search the grid, they are
+		// found by their neighbours.
+		double cellSize = 0;
+		final List<Integer> unbounded = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (locations[i] == null || !(ranges[i] >= 0))
+				continue;
+			edges[i].add(i);
+			if (Double.isInfinite(ranges[i]))
+				unbounded.add(i);
+			else
+				cellSize = Math.max(cellSize, ranges[i]);
+		}
+		if (cellSize == 0)
+			cellSize = 1;
+		// allow for rounding when placing devices at exactly range apart.
+		cellSize *= 1 + 1e-9;
+
+		final Map<Long, IntList> cells = new HashMap<Long, IntList>();
+		for (int i = 0; i < n; i++) {
+			if (locations[i] == null)
+				continue;
+			final Long key = cellKey(cell(locations[i].getX(), cellSize),
+					cell(locations[i].getY(), cellSize),
+					cell(locations[i].getZ(), cellSize));
+			IntList cell = cells.get(key);
+			if (cell == null) {
+				cell = new IntList();
+				cells.put(key, cell);
+			}
+			cell.add(i);
+		}
+
+		for (int i = 0; i < n; i++) {
+			final Location l = locations[i];
+			final double r = ranges[i];
+			if (l == null || !(r >= 0) || Double.isInfinite(r))
+				continue;
+			// r <= cellSize, so neighbours are in adjacent cells.
+			final long cx = cell(l.getX(), cellSize), cy = cell(l.getY(),
+					cellSize), cz = cell(l.getZ(), cellSize);
+			for (long x = cx - 1; x <= cx + 1; x++) {
+				for (long y = cy - 1; y <= cy + 1; y++) {
+					for (long z = cz - 1; z <= cz + 1; z++) {
+						final IntList cell = cells.get(cellKey(x, y, z));
+						if (cell == null)
+							continue;
+						for (int k = 0; k < cell.size; k++) {
+							final int j = cell.values[k];
+							final double rj = ranges[j];
+							// pairs of bounded devices find each other, only
+							// add them once.
+							if (j == i || (j < i && !Double.isInfinite(rj)))
+								continue;
+							if (l.distanceTo(locations[j]) <= Math.min(r, rj)) {
+								edges[i].add(j);
+								edges[j].add(i);
+							}
+						}
+					}
+				}
+			}
+		}
+		for (int a = 0; a < unbounded.size(); a++) {
+			for (int b = a + 1; b < unbounded.size(); b++) {
+				edges[unbounded.get(a)].add(unbounded.get(b));
+				edges[unbounded.get(b)].add(unbounded.get(a));
+			}
+		}
+
+		final int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] = offsets[i] + edges[i].size;
+		}
+		final int[] adjacency = new int[offsets[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(edges[i].values, 0, adjacency, offsets[i],
+					edges[i].size);
+			Arrays.sort(adjacency, offsets[i], offsets[i + 1]);
+		}
+		return new ConnectivityGraph(offsets, adjacency);
+	}
+
+	static long cell(double coord, double cellSize) {
+		return (long) Math.floor(coord / cellSize);
+	}
+
+	static long cellKey(long x, long y, long z) {
+		return ((x & COORD_MASK) << (2 * COORD_BITS))
+				| ((y & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+	}
+
+	/**
+	 * @return number of devices in the graph.
+	 */
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @param i
+	 * @param j
+	 * @return true if device <code>i</code> may send to device
+	 *         <code>j</code>.
+	 */
+	public boolean isConnected(int i, int j) {
+		return Arrays.binarySearch(adjacency, offsets[i], offsets[i + 1], j) >= 0;
+	}
+
+	/**
+	 * @param i
+	 * @return number of devices <code>i</code> is connected to, including
+	 *         itself if it is connected to itself.
+	 */
+	public int getDegree(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * @param i
+	 * @param k
+	 * @return the <code>k</code>th neighbour of device <code>i</code>.
+	 */
+	public int getNeighbour(int i, int k) {
+		return adjacency[offsets[i] + k];
+	}
+
+	/**
+	 * Clear the bits of devices which <code>i</code> is not connected to.
+	 * 
+	 * @param i
+	 * @param devices
+	 */
+	public void retainNeighbours(int i, BitSet devices) {
+		final BitSet neighbours = new BitSet(size());
+		for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+			neighbours.set(adjacency[k]);
+		}
+		devices.and(neighbours);
+	}
+
+	/**
+	 * Growable list of ints.
+	 */
+	static class IntList {
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = v;
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+/**
+ * A {@link NetworkConstraint} which may delay the delivery of messages. A
+ * message sent in a time step is normally visible to its recipients at the
+ * next step; the {@link MessageHandler} holds it back for the largest delay
+ * given by its delaying constraints.
+ * 
+ */
+public interface DelayedDeliveryConstraint extends NetworkConstraint {
+
+	/**
+	 * Get the number of additional time steps before <code>m</code> is
+	 * delivered. Called once for each message sent.
+	 * 
+	 * @param m
+	 *            message being sent.
+	 * @param time
+	 *            time slice the message is sent in, as counted by the
+	 *            {@link MessageHandler}.
+	 * @return delay in time steps, 0 for no delay.
+	 */
+	public int getDeliveryDelay(Message m, int time);
+
+}
@@ -0,0 +1,76 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ * Messages delivered to one network address, used by {@link MessageHandler}
+ * in place of the <code>network.inbox</code> shared state. Any number of
+ * threads may deliver to an inbox concurrently without locking; only the
+ * owner of the address takes messages from it.
+ * </p>
+ * 
+ * <p>
+ * Each message is tagged with the time slice it was delivered in, and is
+ * only taken once that time slice has been committed, so messages become
+ * visible at the next step as they do through the shared state. As all
+ * deliveries of a time slice happen before it is committed the queue is
+ * ordered by time slice.
+ * </p>
+ */
+class Inbox {
+
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	void put(Message m, int slice) {
+		queue.add(new Entry(m, slice));
+	}
+
+	/**
+	 * Move messages delivered before time slice <code>committed</code> into
+	 * <code>to</code>.
+	 * 
+	 * @param to
+	 * @param committed
+	 *            the current, uncommitted, time slice.
+	 */
+	void takeTo(Collection<Message> to, int committed) {
+		Entry e;
+		while ((e = queue.peek()) != null && e.slice < committed) {
+			queue.poll();
+			to.add(e.message);
+		}
+	}
+
+	static class Entry {
+		final Message message;
+		final int slice;
+
+		Entry(Message message, int slice) {
+			super();
+			this.message = message;
+			this.slice = slice;
+		}
+	}
+
+}
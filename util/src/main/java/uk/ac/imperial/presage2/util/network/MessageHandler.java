@@ -19,16 +19,23 @@
 package uk.ac.imperial.presage2.util.network;
 
 import java.io.Serializable;
+import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.log4j.Logger;
 
 import uk.ac.imperial.presage2.core.Action;
 import uk.ac.imperial.presage2.core.environment.ActionHandler;
@@ -37,21 +44,87 @@ import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.StateTransformer;
 import uk.ac.imperial.presage2.core.simulator.PreStep;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.environment.StateCommitListener;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 @Singleton
-public class MessageHandler extends EnvironmentService implements ActionHandler {
+public class MessageHandler extends EnvironmentService implements
+		ActionHandler, StateCommitListener {
+
+	/**
+	 * Name of the binding which enables delivery to {@link Inbox}es.
+	 */
+	static final String DIRECT_INBOXES = "network.directInboxes";
+
+	private final Logger logger = Logger.getLogger(MessageHandler.class);
 
 	Set<NetworkAddress> devices = new HashSet<NetworkAddress>();
 
+	/**
+	 * Inbox of each address, or null if messages are delivered via the
+	 * <code>network.inbox</code> shared state.
+	 */
+	private ConcurrentMap<UUID, Inbox> inboxes = null;
+
+	/**
+	 * Current time slice, incremented when the state is committed, or at the
+	 * start of each step if the state storage cannot tell us.
+	 */
+	private volatile int slice = 0;
+
+	/**
+	 * Whether we are notified of state commits.
+	 */
+	private final boolean commitListener;
+
+	/**
+	 * Messages held back by a {@link DelayedDeliveryConstraint}, by the time
+	 * at which they are delivered.
+	 */
+	private final ConcurrentMap<Integer, Queue<Delayed>> delayed = new ConcurrentHashMap<Integer, Queue<Delayed>>();
+
+	/**
+	 * {@link #devices} indexed for recipient bitsets.
+	 */
+	private NetworkAddress[] deviceList = new NetworkAddress[0];
+	private Map<NetworkAddress, Integer> deviceIndex = new HashMap<NetworkAddress, Integer>();
+
 	protected Set<NetworkConstraint> constraints = new HashSet<NetworkConstraint>();
-	private Map<Pair<NetworkAddress, NetworkAddress>, Boolean> connectionCache = new HashMap<Pair<NetworkAddress, NetworkAddress>, Boolean>();
+	private Map<Pair<NetworkAddress, NetworkAddress>, Boolean> connectionCache = new ConcurrentHashMap<Pair<NetworkAddress, NetworkAddress>, Boolean>();
+
+	/**
+	 * Constraints answered from a {@link ConnectivityGraph} for indexed
+	 * devices, and the other constraints. Split in {@link #updateDevices()}.
+	 */
+	private List<ConnectivityConstraint> graphConstraints = Collections
+			.emptyList();
+	private List<NetworkConstraint> otherConstraints = Collections.emptyList();
+
+	/**
+	 * Graphs of {@link #graphConstraints} for this time step, built on first
+	 * use.
+	 */
+	private volatile ConnectivityGraph[] graphs = null;
+
+	/**
+	 * Devices other than itself which each sender can reach in this time
+	 * step.
+	 */
+	private final Map<NetworkAddress, BitSet> reachableCache = new ConcurrentHashMap<NetworkAddress, BitSet>();
 
 	@Inject
 	MessageHandler(EnvironmentSharedStateAccess sharedState) {
 		super(sharedState);
+		if (sharedState instanceof MappedSharedState) {
+			((MappedSharedState) sharedState).addCommitListener(this);
+			commitListener = true;
+		} else {
+			commitListener = false;
+		}
 	}
 
 	@Inject(optional = true)
@@ -59,6 +132,30 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 		constraints.addAll(cons);
 	}
 
+	/**
+	 * Deliver messages to a lock-free {@link Inbox} per address instead of via
+	 * <code>network.inbox</code> shared state changes. Requires a
+	 * {@link MappedSharedState} to tell us when time slices are committed.
+	 * 
+	 * @param direct
+	 */
+	@Inject(optional = true)
+	void setDirectInboxes(@Named(DIRECT_INBOXES) boolean direct) {
+		if (!direct || inboxes != null)
+			return;
+		if (commitListener) {
+			inboxes = new ConcurrentHashMap<UUID, Inbox>();
+		} else {
+			logger.warn("Direct inboxes require a MappedSharedState, delivering via shared state.");
+		}
+	}
+
+	@Override
+	public void stateCommitted() {
+		slice++;
+		deliverDelayed();
+	}
+
 	@Override
 	public boolean canHandle(Action action) {
 		return action instanceof Message;
@@ -68,6 +165,8 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 	public Object handle(Action action, UUID actor)
 			throws ActionHandlingException {
 		Message m = (Message) action;
+		// the delivery delay is only asked for once we know the message
+		// reaches someone, as it may charge the sender for sending it.
 		if (m instanceof UnicastMessage) {
 			doUnicast((UnicastMessage) m);
 		} else if (m instanceof MulticastMessage) {
@@ -80,31 +179,191 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 		return null;
 	}
 
+	private int getDeliveryDelay(Message m) {
+		int delay = 0;
+		for (NetworkConstraint c : this.constraints) {
+			if (c instanceof DelayedDeliveryConstraint)
+				delay = Math.max(delay,
+						((DelayedDeliveryConstraint) c).getDeliveryDelay(m,
+								slice));
+		}
+		return delay;
+	}
+
 	private void doUnicast(UnicastMessage m) {
 		this.deliverMessageTo(m.getTo(), m);
 	}
 
 	private void doMulticast(MulticastMessage m) {
-		final List<NetworkAddress> recipients = m.getTo();
-		for (NetworkAddress to : recipients) {
-			this.deliverMessageTo(to, m);
+		final BitSet recipients = new BitSet(deviceList.length);
+		for (NetworkAddress to : m.getTo()) {
+			final Integer i = deviceIndex.get(to);
+			if (i != null)
+				recipients.set(i);
+		}
+		final BitSet reachable = reachableCache.get(m.getFrom());
+		if (reachable != null) {
+			final Integer self = deviceIndex.get(m.getFrom());
+			final boolean toSelf = self != null && recipients.get(self);
+			recipients.and(reachable);
+			if (toSelf && canDeliver(m.getFrom(), m.getFrom()))
+				recipients.set(self);
+		} else {
+			blockDelivery(m.getFrom(), recipients);
 		}
+		fanOut(m, recipients);
 	}
 
 	private void doBroadcast(BroadcastMessage m) {
-		for (NetworkAddress to : this.devices) {
-			// deliver to all but sender
-			if (m.getFrom() != to)
-				this.deliverMessageTo(to, m);
+		// deliver to all but sender
+		fanOut(m, getReachable(m.getFrom()));
+	}
+
+	/**
+	 * Deliver one copy of <code>m</code>, constrained once, to each device in
+	 * <code>recipients</code>.
+	 */
+	private void fanOut(Message m, BitSet recipients) {
+		if (recipients.isEmpty())
+			return;
+		final int delay = getDeliveryDelay(m);
+		final Message constrained = constrainMessage(m);
+		final NetworkAddress[] to = deviceList;
+		if (delay > 0) {
+			final List<NetworkAddress> later = new ArrayList<NetworkAddress>(
+					recipients.cardinality());
+			for (int i = recipients.nextSetBit(0); i >= 0; i = recipients
+					.nextSetBit(i + 1)) {
+				later.add(to[i]);
+			}
+			defer(constrained, later, delay);
+			return;
+		}
+		// the transformer only holds the message, so can be shared.
+		final QueueMessage queue = inboxes == null ? new QueueMessage(
+				constrained) : null;
+		for (int i = recipients.nextSetBit(0); i >= 0; i = recipients
+				.nextSetBit(i + 1)) {
+			deliverNow(constrained, to[i].getId(), queue);
+		}
+	}
+
+	/**
+	 * Put a message in the inbox of <code>to</code>.
+	 * 
+	 * @param m
+	 * @param to
+	 * @param queue
+	 *            transformer which queues <code>m</code>, used if we deliver
+	 *            via shared state.
+	 */
+	private void deliverNow(Message m, UUID to, QueueMessage queue) {
+		if (inboxes != null)
+			getInbox(to).put(m, slice);
+		else
+			this.sharedState.change("network.inbox", to, queue);
+	}
+
+	private void defer(Message m, List<NetworkAddress> to, int delay) {
+		final Integer due = slice + delay;
+		Queue<Delayed> queue = delayed.get(due);
+		if (queue == null) {
+			queue = new ConcurrentLinkedQueue<Delayed>();
+			final Queue<Delayed> existing = delayed.putIfAbsent(due, queue);
+			if (existing != null)
+				queue = existing;
+		}
+		queue.add(new Delayed(m, to));
+	}
+
+	/**
+	 * Get the devices, other than itself, which <code>from</code> can reach in
+	 * this time step. The result is cached and must not be modified.
+	 */
+	private BitSet getReachable(NetworkAddress from) {
+		BitSet reachable = reachableCache.get(from);
+		if (reachable == null) {
+			reachable = new BitSet(deviceList.length);
+			reachable.set(0, deviceList.length);
+			final Integer self = deviceIndex.get(from);
+			if (self != null)
+				reachable.clear(self);
+			blockDelivery(from, reachable);
+			reachableCache.put(from, reachable);
+		}
+		return reachable;
+	}
+
+	/**
+	 * Clear the bits of <code>recipients</code> which a
+	 * {@link NetworkConstraint} blocks <code>from</code> sending to. Uses
+	 * {@link BatchNetworkConstraint}s where available.
+	 */
+	private void blockDelivery(NetworkAddress from, BitSet recipients) {
+		final NetworkAddress[] to = deviceList;
+		final Integer self = deviceIndex.get(from);
+		if (self != null) {
+			for (ConnectivityGraph g : getGraphs()) {
+				g.retainNeighbours(self, recipients);
+			}
+		}
+		for (NetworkConstraint c : self != null ? otherConstraints
+				: constraints) {
+			if (recipients.isEmpty())
+				return;
+			if (c instanceof BatchNetworkConstraint) {
+				((BatchNetworkConstraint) c).blockMessageDelivery(from, to,
+						recipients);
+			} else {
+				for (int i = recipients.nextSetBit(0); i >= 0; i = recipients
+						.nextSetBit(i + 1)) {
+					if (c.blockMessageDelivery(from, to[i]))
+						recipients.clear(i);
+				}
+			}
 		}
 	}
 
 	private void deliverMessageTo(NetworkAddress to, Message m) {
-		this.sharedState.getGlobal("network.devices");
 		if (devices.contains(to) && canDeliver(m.getFrom(), to)) {
-			this.sharedState.change("network.inbox", to.getId(),
-					new QueueMessage(constrainMessage(m)));
+			final int delay = getDeliveryDelay(m);
+			final Message constrained = constrainMessage(m);
+			if (delay > 0)
+				defer(constrained, Collections.singletonList(to), delay);
+			else
+				deliverNow(constrained, to.getId(),
+						inboxes == null ? new QueueMessage(constrained) : null);
+		}
+	}
+
+	private Inbox getInbox(UUID id) {
+		Inbox inbox = inboxes.get(id);
+		if (inbox == null) {
+			inbox = new Inbox();
+			final Inbox existing = inboxes.putIfAbsent(id, inbox);
+			if (existing != null)
+				inbox = existing;
 		}
+		return inbox;
+	}
+
+	/**
+	 * Take the messages delivered to <code>address</code> in previous time
+	 * slices, if this handler uses direct inboxes.
+	 * 
+	 * @param address
+	 * @param messages
+	 *            list to add messages to.
+	 * @return false if messages are delivered via the
+	 *         <code>network.inbox</code> shared state instead.
+	 */
+	boolean takeMessages(NetworkAddress address, List<Message> messages) {
+		if (inboxes == null)
+			return false;
+		final Inbox inbox = inboxes.get(address.getId());
+		if (inbox != null)
+			inbox.takeTo(messages, slice);
+		return true;
 	}
 
 	/**
@@ -117,25 +376,104 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 		Serializable d = this.sharedState.getGlobal("network.devices");
 		if (d != null)
 			this.devices = (Set<NetworkAddress>) d;
+		final NetworkAddress[] list = this.devices
+				.toArray(new NetworkAddress[this.devices.size()]);
+		final Map<NetworkAddress, Integer> index = new HashMap<NetworkAddress, Integer>(
+				list.length * 2);
+		for (int i = 0; i < list.length; i++) {
+			index.put(list[i], i);
+		}
+		final List<ConnectivityConstraint> graphCons = new ArrayList<ConnectivityConstraint>();
+		final List<NetworkConstraint> otherCons = new ArrayList<NetworkConstraint>();
+		for (NetworkConstraint c : constraints) {
+			if (c instanceof ConnectivityConstraint)
+				graphCons.add((ConnectivityConstraint) c);
+			else
+				otherCons.add(c);
+		}
+		this.deviceList = list;
+		this.deviceIndex = index;
+		this.graphConstraints = graphCons;
+		this.otherConstraints = otherCons;
+		this.graphs = null;
 		connectionCache.clear();
+		reachableCache.clear();
+
+		if (!commitListener) {
+			slice++;
+			deliverDelayed();
+		}
+	}
+
+	/**
+	 * Deliver delayed messages which are due in the current time slice.
+	 */
+	private void deliverDelayed() {
+		final Queue<Delayed> due = delayed.remove(slice);
+		if (due != null) {
+			for (Delayed later : due) {
+				final QueueMessage queue = inboxes == null ? new QueueMessage(
+						later.message) : null;
+				for (NetworkAddress to : later.to) {
+					if (devices.contains(to))
+						deliverNow(later.message, to.getId(), queue);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the connectivity graphs of this time step, building them if this is
+	 * the first time they are needed.
+	 */
+	private ConnectivityGraph[] getGraphs() {
+		ConnectivityGraph[] g = graphs;
+		if (g == null) {
+			synchronized (this) {
+				g = graphs;
+				if (g == null) {
+					g = new ConnectivityGraph[graphConstraints.size()];
+					for (int i = 0; i < g.length; i++) {
+						g[i] = graphConstraints.get(i).getConnectivity(
+								deviceList);
+					}
+					graphs = g;
+				}
+			}
+		}
+		return g;
 	}
 
 	/**
 	 * Check whether a message may be sent to a network address, or if a
-	 * constraint is blocking it. Results are cached for one time-step.
+	 * constraint is blocking it. {@link ConnectivityConstraint}s are looked up
+	 * in their graphs, other results are cached for one time-step.
 	 * 
 	 * @param to
 	 * @param m
 	 * @return
 	 */
 	private boolean canDeliver(NetworkAddress from, NetworkAddress to) {
+		final Integer i = deviceIndex.get(from);
+		final Integer j = deviceIndex.get(to);
+		final boolean indexed = i != null && j != null;
+		if (indexed) {
+			for (ConnectivityGraph g : getGraphs()) {
+				if (!g.isConnected(i, j))
+					return false;
+			}
+			if (otherConstraints.isEmpty())
+				return true;
+		}
 		final Pair<NetworkAddress, NetworkAddress> link = Pair.of(from, to);
-		if (connectionCache.containsKey(link)) {
-			return connectionCache.get(link);
+		final Boolean cached = connectionCache.get(link);
+		if (cached != null) {
+			return cached;
 		} else {
 			boolean block = false;
 			// ask all networkconstraints if they want to block
-			for (NetworkConstraint c : this.constraints) {
+			for (NetworkConstraint c : indexed ? otherConstraints
+					: this.constraints) {
 				block = block || c.blockMessageDelivery(from, to);
 			}
 			connectionCache.put(link, !block);
@@ -156,6 +494,17 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 		return m;
 	}
 
+	static class Delayed {
+		final Message message;
+		final List<NetworkAddress> to;
+
+		Delayed(Message message, List<NetworkAddress> to) {
+			super();
+			this.message = message;
+			this.to = to;
+		}
+	}
+
 	static class QueueMessage implements StateTransformer {
 		final Message m;
 
@@ -181,7 +530,18 @@ public class MessageHandler extends EnvironmentService implements ActionHandler
 	public Set<NetworkAddress> getConnectedNodes(NetworkAddress from) {
 		if (constraints.size() == 0)
 			return Collections.unmodifiableSet(devices);
-		else {
+		else if (deviceIndex.containsKey(from)) {
+			final NetworkAddress[] list = deviceList;
+			final BitSet reachable = new BitSet(list.length);
+			reachable.set(0, list.length);
+			blockDelivery(from, reachable);
+			final Set<NetworkAddress> connected = new HashSet<NetworkAddress>();
+			for (int i = reachable.nextSetBit(0); i >= 0; i = reachable
+					.nextSetBit(i + 1)) {
+				connected.add(list[i]);
+			}
+			return connected;
+		} else {
 			Set<NetworkAddress> connected = new HashSet<NetworkAddress>();
 			for (NetworkAddress n : devices) {
 				if (canDeliver(from, n)) {
@@ -28,6 +28,7 @@ import uk.ac.imperial.presage2.core.simulator.ScenarioModule;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
 
 /**
  * Static factory for {@link AbstractModule}s which bind network interfaces.
@@ -39,6 +40,11 @@ public class NetworkModule extends AbstractModule {
 
 	private Set<Class<? extends NetworkConstraint>> constraints = new HashSet<Class<? extends NetworkConstraint>>();
 
+	private boolean directInboxes = false;
+
+	private int bandwidth = 0;
+	private int latency = 0;
+
 	final NetworkModule withConstraints(
 			Set<Class<? extends NetworkConstraint>> constraints) {
 		this.constraints.addAll(constraints);
@@ -54,8 +60,58 @@ public class NetworkModule extends AbstractModule {
 		return new NetworkModule().withConstraints(constraints);
 	}
 
+	/**
+	 * Deliver messages to a lock-free inbox per address held by the
+	 * {@link MessageHandler}, rather than through the
+	 * <code>network.inbox</code> shared state. Messages are still visible from
+	 * the step after they are sent. Requires a
+	 * {@link uk.ac.imperial.presage2.util.environment.MappedSharedState} and
+	 * connectors which get their messages from the {@link MessageHandler},
+	 * such as a {@link BasicNetworkConnector} bound as a participant
+	 * environment service.
+	 * 
+	 * @return this module
+	 */
+	public NetworkModule withDirectInboxes() {
+		this.directInboxes = true;
+		return this;
+	}
+
+	/**
+	 * Add a {@link BandwidthConstraint} limiting each sender to
+	 * <code>bytesPerStep</code> bytes per time step, with
+	 * <code>latency</code> steps of additional delay on each message.
+	 * 
+	 * @param bytesPerStep
+	 *            at least 1.
+	 * @param latency
+	 *            not negative.
+	 * @return this module
+	 */
+	public NetworkModule withBandwidth(int bytesPerStep, int latency) {
+		if (bytesPerStep < 1)
+			throw new IllegalArgumentException(
+					"Bandwidth must be at least one byte per step");
+		if (latency < 0)
+			throw new IllegalArgumentException("Latency must not be negative");
+		this.bandwidth = bytesPerStep;
+		this.latency = latency;
+		this.constraints.add(BandwidthConstraint.class);
+		return this;
+	}
+
 	@Override
 	protected void configure() {
+		if (bandwidth > 0) {
+			bindConstant().annotatedWith(
+					Names.named(BandwidthConstraint.BYTES_PER_STEP)).to(
+					bandwidth);
+			bindConstant().annotatedWith(
+					Names.named(BandwidthConstraint.LATENCY)).to(latency);
+		}
+		if (directInboxes)
+			bindConstant().annotatedWith(
+					Names.named(MessageHandler.DIRECT_INBOXES)).to(true);
 		// Bind MessageHandler as action hander
 		Multibinder.newSetBinder(binder(), ActionHandler.class).addBinding()
 				.to(MessageHandler.class);
@@ -18,22 +18,31 @@
  */
 package uk.ac.imperial.presage2.util.network;
 
+import java.util.BitSet;
+import java.util.Map;
 import java.util.UUID;
 
 import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
 import uk.ac.imperial.presage2.core.environment.ServiceDependencies;
+import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.util.environment.CommunicationRangeService;
 import uk.ac.imperial.presage2.util.location.Location;
 import uk.ac.imperial.presage2.util.location.LocationService;
+import uk.ac.imperial.presage2.util.location.SpatialIndexService;
 
 import com.google.inject.Inject;
 
 @ServiceDependencies({ LocationService.class, CommunicationRangeService.class })
-public class NetworkRangeConstraint implements NetworkConstraint {
+public class NetworkRangeConstraint implements BatchNetworkConstraint,
+		ConnectivityConstraint {
 
 	private LocationService locService;
 	private CommunicationRangeService commRangeService;
+	/**
+	 * {@link SpatialIndexService} to read locations from, if available.
+	 */
+	private SpatialIndexService spatialIndex;
 
 	@Inject
 	NetworkRangeConstraint(EnvironmentServiceProvider serviceProvider)
@@ -43,6 +52,12 @@ public class NetworkRangeConstraint implements NetworkConstraint {
 				.getEnvironmentService(LocationService.class);
 		commRangeService = serviceProvider
 				.getEnvironmentService(CommunicationRangeService.class);
+		try {
+			spatialIndex = serviceProvider
+					.getEnvironmentService(SpatialIndexService.class);
+		} catch (UnavailableServiceException e) {
+			spatialIndex = null;
+		}
 	}
 
 	@Override
@@ -55,8 +70,8 @@ public class NetworkRangeConstraint implements NetworkConstraint {
 	public boolean blockMessageDelivery(NetworkAddress from, NetworkAddress to) {
 		final UUID a1 = from.getId();
 		final UUID a2 = to.getId();
-		final Location senderLoc = locService.getAgentLocation(a1);
-		final Location receiverLoc = locService.getAgentLocation(a2);
+		final Location senderLoc = getLocation(a1);
+		final Location receiverLoc = getLocation(a2);
 		final double senderRange = commRangeService
 				.getAgentCommunicationRange(a1);
 		final double receiverRange = commRangeService
@@ -68,4 +83,75 @@ public class NetworkRangeConstraint implements NetworkConstraint {
 		return result;
 	}
 
+	/**
+	 * Blocks as {@link #blockMessageDelivery(NetworkAddress, NetworkAddress)}
+	 * with the sender's location and range looked up once. When a
+	 * {@link SpatialIndexService} is available only receivers within the
+	 * sender's range are examined.
+	 */
+	@Override
+	public void blockMessageDelivery(NetworkAddress from,
+			NetworkAddress[] devices, BitSet recipients) {
+		final UUID a1 = from.getId();
+		final Location senderLoc = getLocation(a1);
+		final double senderRange = commRangeService
+				.getAgentCommunicationRange(a1);
+		Map<UUID, Location> inRange = null;
+		if (spatialIndex != null && !Double.isInfinite(senderRange)) {
+			// pad the radius so rounding in the index cannot exclude a
+			// receiver exactly at range.
+			inRange = spatialIndex.getAgentsWithin(senderLoc,
+					senderRange * (1 + 1e-9));
+		}
+		for (int i = recipients.nextSetBit(0); i >= 0; i = recipients
+				.nextSetBit(i + 1)) {
+			final UUID a2 = devices[i].getId();
+			final Location receiverLoc;
+			if (inRange != null) {
+				receiverLoc = inRange.get(a2);
+				if (receiverLoc == null) {
+					recipients.clear(i);
+					continue;
+				}
+			} else {
+				receiverLoc = getLocation(a2);
+			}
+			final double receiverRange = commRangeService
+					.getAgentCommunicationRange(a2);
+			if (senderLoc.distanceTo(receiverLoc) > Math.min(senderRange,
+					receiverRange))
+				recipients.clear(i);
+		}
+	}
+
+	/**
+	 * Build the graph of devices within range of each other with one
+	 * location and range lookup per device.
+	 */
+	@Override
+	public ConnectivityGraph getConnectivity(NetworkAddress[] devices) {
+		final Location[] locations = new Location[devices.length];
+		final double[] ranges = new double[devices.length];
+		for (int i = 0; i < devices.length; i++) {
+			final UUID id = devices[i].getId();
+			try {
+				locations[i] = getLocation(id);
+				ranges[i] = commRangeService.getAgentCommunicationRange(id);
+			} catch (SharedStateAccessException e) {
+				// device without location or range can't communicate
+				locations[i] = null;
+			}
+		}
+		return ConnectivityGraph.ofRanges(locations, ranges);
+	}
+
+	private Location getLocation(UUID participantID) {
+		if (spatialIndex != null) {
+			final Location l = spatialIndex.getLocation(participantID);
+			if (l != null)
+				return l;
+		}
+		return locService.getAgentLocation(participantID);
+	}
+
 }
@@ -0,0 +1,446 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.util.network.BroadcastMessage;
+import uk.ac.imperial.presage2.util.network.Message;
+import uk.ac.imperial.presage2.util.network.MulticastMessage;
+import uk.ac.imperial.presage2.util.network.NetworkAddress;
+import uk.ac.imperial.presage2.util.network.UnicastMessage;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Compact binary encoding of {@link Message}s, for measuring message size
+ * and passing messages between processes.
+ * </p>
+ * 
+ * <p>
+ * {@link UnicastMessage}s, {@link MulticastMessage}s and
+ * {@link BroadcastMessage}s can be encoded, subclasses are decoded as the
+ * class they extend. The payload ({@link Message#getData()}) is encoded by
+ * the {@link PayloadCodec} registered for its class. Codecs for
+ * {@link String}, {@link Integer}, {@link Long}, {@link Double},
+ * {@link Boolean}, {@link UUID} and <code>byte[]</code> are built in, others
+ * can be added with {@link #setPayloadCodecs(Set)}, for example by binding
+ * them with a {@link com.google.inject.multibindings.Multibinder}. Codecs
+ * are numbered in order of their type's name, so two codecs with the same
+ * registered codecs can read each other's messages.
+ * </p>
+ * 
+ */
+@Singleton
+public class MessageCodec {
+
+	static final byte UNICAST = 1;
+	static final byte MULTICAST = 2;
+	static final byte BROADCAST = 3;
+
+	private static final Performative[] PERFORMATIVES = Performative.values();
+
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private volatile Registry registry;
+
+	public MessageCodec() {
+		super();
+		setPayloadCodecs(Collections.<PayloadCodec<?>> emptySet());
+	}
+
+	/**
+	 * Use the given {@link PayloadCodec}s in addition to the built in ones.
+	 * 
+	 * @param codecs
+	 */
+	@Inject(optional = true)
+	public void setPayloadCodecs(Set<PayloadCodec<?>> codecs) {
+		final List<PayloadCodec<?>> all = new ArrayList<PayloadCodec<?>>();
+		all.add(new StringCodec());
+		all.add(new IntegerCodec());
+		all.add(new LongCodec());
+		all.add(new DoubleCodec());
+		all.add(new BooleanCodec());
+		all.add(new UUIDCodec());
+		all.add(new ByteArrayCodec());
+		all.addAll(codecs);
+		this.registry = new Registry(all);
+	}
+
+	/**
+	 * Encode a message.
+	 * 
+	 * @param m
+	 * @return encoded message
+	 * @throws IllegalArgumentException
+	 *             if the message or its payload cannot be encoded.
+	 */
+	public byte[] encode(Message m) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		try {
+			write(m, new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Get the number of bytes <code>m</code> encodes to, without encoding it
+	 * to an array.
+	 * 
+	 * @param m
+	 * @return encoded size in bytes.
+	 * @throws IllegalArgumentException
+	 *             if the message or its payload cannot be encoded.
+	 */
+	public int encodedSize(Message m) {
+		final DataOutputStream out = new DataOutputStream(NULL_STREAM);
+		try {
+			write(m, out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.size();
+	}
+
+	/**
+	 * Decode a message produced by {@link #encode(Message)}.
+	 * 
+	 * @param bytes
+	 * @return decoded {@link Message}
+	 * @throws IOException
+	 *             if <code>bytes</code> is not a valid message.
+	 */
+	public Message decode(byte[] bytes) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * Write <code>m</code> to <code>out</code>.
+	 * 
+	 * @param m
+	 * @param out
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void write(Message m, DataOutput out) throws IOException {
+		final byte kind;
+		if (m instanceof UnicastMessage)
+			kind = UNICAST;
+		else if (m instanceof MulticastMessage)
+			kind = MULTICAST;
+		else if (m instanceof BroadcastMessage)
+			kind = BROADCAST;
+		else
+			throw new IllegalArgumentException("Cannot encode message class "
+					+ m.getClass().getName());
+		final Object data = m.getData();
+		final Registry r = registry;
+		final int codecId = data == null ? 0 : r.idOf(data.getClass());
+
+		out.writeByte(kind);
+		out.writeByte(m.getPerformative().ordinal());
+		out.writeInt(m.getTimestamp());
+		writeUUID(m.getFrom().getId(), out);
+		writeNullableString(m.getType(), out);
+		writeNullableString(m.getProtocol(), out);
+		out.writeBoolean(m.getConversationKey() != null);
+		if (m.getConversationKey() != null)
+			writeUUID(m.getConversationKey(), out);
+		if (kind == UNICAST) {
+			writeUUID(((UnicastMessage) m).getTo().getId(), out);
+		} else if (kind == MULTICAST) {
+			final List<NetworkAddress> to = ((MulticastMessage) m).getTo();
+			out.writeInt(to.size());
+			for (NetworkAddress a : to) {
+				writeUUID(a.getId(), out);
+			}
+		}
+		out.writeShort(codecId);
+		if (codecId > 0)
+			((PayloadCodec) r.codecs[codecId]).write(data, out);
+	}
+
+	/**
+	 * Read a message written by {@link #write(Message, DataOutput)}.
+	 * 
+	 * @param in
+	 * @return decoded {@link Message}
+	 * @throws IOException
+	 */
+	public Message read(DataInput in) throws IOException {
+		final byte kind = in.readByte();
+		final int perf = in.readUnsignedByte();
+		if (perf >= PERFORMATIVES.length)
+			throw new IOException("Unknown performative " + perf);
+		final Performative performative = PERFORMATIVES[perf];
+		final int timestamp = in.readInt();
+		final NetworkAddress from = new NetworkAddress(readUUID(in));
+		final String type = readNullableString(in);
+		final String protocol = readNullableString(in);
+		final UUID conversationKey = in.readBoolean() ? readUUID(in) : null;
+		NetworkAddress to = null;
+		List<NetworkAddress> recipients = null;
+		if (kind == UNICAST) {
+			to = new NetworkAddress(readUUID(in));
+		} else if (kind == MULTICAST) {
+			final int n = in.readInt();
+			if (n < 0)
+				throw new IOException("Invalid recipient count " + n);
+			recipients = new ArrayList<NetworkAddress>(n);
+			for (int i = 0; i < n; i++) {
+				recipients.add(new NetworkAddress(readUUID(in)));
+			}
+		} else if (kind != BROADCAST) {
+			throw new IOException("Unknown message kind " + kind);
+		}
+		final int codecId = in.readUnsignedShort();
+		final Registry r = registry;
+		if (codecId >= r.codecs.length)
+			throw new IOException("Unknown payload codec " + codecId);
+		final Object data = codecId == 0 ? null : r.codecs[codecId].read(in);
+
+		final Message m;
+		if (kind == UNICAST)
+			m = new UnicastMessage(performative, type, timestamp, from, to,
+					data);
+		else if (kind == MULTICAST)
+			m = new MulticastMessage(performative, type, timestamp, from,
+					recipients, data);
+		else
+			m = new BroadcastMessage(performative, type, timestamp, from, data);
+		m.setProtocol(protocol);
+		m.setConversationKey(conversationKey);
+		return m;
+	}
+
+	static void writeUUID(UUID id, DataOutput out) throws IOException {
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+	}
+
+	static UUID readUUID(DataInput in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	private static void writeNullableString(String s, DataOutput out)
+			throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Immutable numbering of payload codecs. Codec 0 is the null payload.
+	 */
+	static class Registry {
+
+		final PayloadCodec<?>[] codecs;
+		final Map<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>();
+
+		Registry(List<PayloadCodec<?>> list) {
+			Collections.sort(list, new Comparator<PayloadCodec<?>>() {
+				@Override
+				public int compare(PayloadCodec<?> o1, PayloadCodec<?> o2) {
+					return o1.getType().getName()
+							.compareTo(o2.getType().getName());
+				}
+			});
+			codecs = new PayloadCodec<?>[list.size() + 1];
+			for (int i = 0; i < list.size(); i++) {
+				final PayloadCodec<?> c = list.get(i);
+				if (ids.put(c.getType(), i + 1) != null)
+					throw new IllegalArgumentException(
+							"More than one codec for payload type "
+									+ c.getType().getName());
+				codecs[i + 1] = c;
+			}
+		}
+
+		int idOf(Class<?> type) {
+			final Integer id = ids.get(type);
+			if (id != null)
+				return id;
+			for (int i = 1; i < codecs.length; i++) {
+				if (codecs[i].getType().isAssignableFrom(type))
+					return i;
+			}
+			throw new IllegalArgumentException("No codec for payload type "
+					+ type.getName());
+		}
+	}
+
+	static class StringCodec implements PayloadCodec<String> {
+		@Override
+		public Class<String> getType() {
+			return String.class;
+		}
+
+		@Override
+		public void write(String value, DataOutput out) throws IOException {
+			out.writeUTF(value);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			return in.readUTF();
+		}
+	}
+
+	static class IntegerCodec implements PayloadCodec<Integer> {
+		@Override
+		public Class<Integer> getType() {
+			return Integer.class;
+		}
+
+		@Override
+		public void write(Integer value, DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	}
+
+	static class LongCodec implements PayloadCodec<Long> {
+		@Override
+		public Class<Long> getType() {
+			return Long.class;
+		}
+
+		@Override
+		public void write(Long value, DataOutput out) throws IOException {
+			out.writeLong(value);
+		}
+
+		@Override
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+	}
+
+	static class DoubleCodec implements PayloadCodec<Double> {
+		@Override
+		public Class<Double> getType() {
+			return Double.class;
+		}
+
+		@Override
+		public void write(Double value, DataOutput out) throws IOException {
+			out.writeDouble(value);
+		}
+
+		@Override
+		public Double read(DataInput in) throws IOException {
+			return in.readDouble();
+		}
+	}
+
+	static class BooleanCodec implements PayloadCodec<Boolean> {
+		@Override
+		public Class<Boolean> getType() {
+			return Boolean.class;
+		}
+
+		@Override
+		public void write(Boolean value, DataOutput out) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		@Override
+		public Boolean read(DataInput in) throws IOException {
+			return in.readBoolean();
+		}
+	}
+
+	static class UUIDCodec implements PayloadCodec<UUID> {
+		@Override
+		public Class<UUID> getType() {
+			return UUID.class;
+		}
+
+		@Override
+		public void write(UUID value, DataOutput out) throws IOException {
+			writeUUID(value, out);
+		}
+
+		@Override
+		public UUID read(DataInput in) throws IOException {
+			return readUUID(in);
+		}
+	}
+
+	static class ByteArrayCodec implements PayloadCodec<byte[]> {
+		@Override
+		public Class<byte[]> getType() {
+			return byte[].class;
+		}
+
+		@Override
+		public void write(byte[] value, DataOutput out) throws IOException {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+
+		@Override
+		public byte[] read(DataInput in) throws IOException {
+			final int n = in.readInt();
+			if (n < 0)
+				throw new IOException("Invalid array length " + n);
+			final byte[] value = new byte[n];
+			in.readFully(value);
+			return value;
+		}
+	}
+
+}
@@ -18,6 +18,7 @@
  */
 package uk.ac.imperial.presage2.util.environment;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -25,16 +26,20 @@ import static org.junit.Assert.fail;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.UUID;
 
+import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.junit.Test;
 
 import uk.ac.imperial.presage2.core.environment.ActionHandler;
 import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
+import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationResponse;
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
+import uk.ac.imperial.presage2.core.participant.Participant;
 
 /**
  * @author Sam Macbeth
@@ -101,4 +106,34 @@ public class AbstractEnvironmentTest {
 		}
 	}
 
+	@Test
+	public void testParticipantSlots() {
+		final TestAbstractEnvironment envUnderTest = new TestAbstractEnvironment(mockStorage);
+		final int count = 5;
+		final UUID[] ids = new UUID[count];
+		for (int i = 0; i < count; i++) {
+			final UUID id = UUID.randomUUID();
+			final Participant p = context.mock(Participant.class, "p" + i);
+			context.checking(new Expectations() {
+				{
+					allowing(p).getID();
+					will(returnValue(id));
+				}
+			});
+			ids[i] = id;
+			EnvironmentRegistrationResponse response = envUnderTest
+					.register(new EnvironmentRegistrationRequest(id, p));
+			assertEquals(i, response.getSlot());
+		}
+		ParticipantSlots slots = envUnderTest.getParticipantSlots();
+		assertEquals(count, slots.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, slots.lookup(ids[i]));
+			assertEquals(ids[i], slots.getParticipant(i));
+			// shared state uses the same slots
+			assertEquals(i, ((MappedSharedState) mockStorage).getSlot(ids[i]));
+		}
+		assertEquals(-1, slots.lookup(UUID.randomUUID()));
+	}
+
 }
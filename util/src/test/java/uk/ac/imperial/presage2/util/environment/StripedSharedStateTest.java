@@ -0,0 +1,139 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.environment.IntStateKey;
+import uk.ac.imperial.presage2.core.environment.StateTransformer;
+
+public class StripedSharedStateTest {
+
+	final StateTransformer increment = new StateTransformer() {
+		@Override
+		public Serializable transform(Serializable state) {
+			return state == null ? 1 : ((Integer) state) + 1;
+		}
+	};
+
+	@Test
+	public void testCommitMatchesMappedSharedState() {
+		final int agents = 500;
+		final int changes = 5;
+		final UUID[] ids = new UUID[agents];
+		for (int i = 0; i < agents; i++) {
+			ids[i] = UUID.randomUUID();
+		}
+		MappedSharedState serial = new MappedSharedState();
+		StripedSharedState striped = new StripedSharedState(4);
+		for (MappedSharedState s : new MappedSharedState[] { serial, striped }) {
+			s.createGlobal("count", 0);
+			for (int i = 0; i < agents; i++) {
+				s.create("value", ids[i], -1);
+				for (int j = 0; j < changes; j++) {
+					s.change("value", ids[i], i * changes + j);
+					s.change("count", ids[i], increment);
+				}
+				s.changeGlobal("count", increment);
+			}
+		}
+
+		// nothing visible until time is incremented
+		assertEquals(-1, striped.get("value", ids[0]));
+		assertNull(striped.get("count", ids[0]));
+
+		serial.incrementTime();
+		striped.incrementTime();
+
+		assertEquals(agents, striped.getGlobal("count"));
+		assertEquals(serial.getGlobal("count"), striped.getGlobal("count"));
+		for (int i = 0; i < agents; i++) {
+			assertEquals(i * changes + changes - 1, striped.get("value", ids[i]));
+			assertEquals(changes, striped.get("count", ids[i]));
+			assertEquals(serial.get("value", ids[i]),
+					striped.get("value", ids[i]));
+		}
+	}
+
+	@Test
+	public void testStripesArePartitionedByParticipant() {
+		StripedSharedState striped = new StripedSharedState(8);
+		UUID id = UUID.randomUUID();
+		int stripe = striped.stripeOf(id);
+		for (int i = 0; i < 10; i++) {
+			striped.change("value", id, i);
+		}
+		for (int i = 0; i < striped.stripes.size(); i++) {
+			assertEquals(i == stripe ? 10 : 0, striped.stripes.get(i).size());
+		}
+		striped.incrementTime();
+		assertEquals(9, striped.get("value", id));
+		assertTrue(striped.stripes.get(stripe).isEmpty());
+	}
+
+	@Test
+	public void testTypedAndNamedChanges() {
+		final IntStateKey counter = new IntStateKey("test.striped.counter");
+		StripedSharedState striped = new StripedSharedState(4);
+		UUID id = UUID.randomUUID();
+		int slot = striped.getSlot(id);
+		striped.create("test.striped.counter", id, 0);
+		striped.getInt(counter, slot);
+
+		// by name after typed: by-name value is staged in the column and wins
+		striped.changeInt(counter, slot, 1);
+		striped.change("test.striped.counter", id, 2);
+		for (int i = 0; i < striped.stripes.size(); i++) {
+			assertTrue(striped.stripes.get(i).isEmpty());
+		}
+		striped.incrementTime();
+		assertEquals(2, striped.getInt(counter, slot));
+
+		// typed after by name: typed value wins
+		striped.change("test.striped.counter", id, 3);
+		striped.changeInt(counter, slot, 4);
+		striped.incrementTime();
+		assertEquals(4, striped.getInt(counter, slot));
+		assertEquals(4, striped.get("test.striped.counter", id));
+
+		// transformers on column keys see the committed typed value
+		striped.change("test.striped.counter", id, increment);
+		striped.incrementTime();
+		assertEquals(5, striped.getInt(counter, slot));
+	}
+
+	@Test
+	public void testGetDoesNotCreateState() {
+		StripedSharedState striped = new StripedSharedState(4);
+		UUID id = UUID.randomUUID();
+		assertNull(striped.get("value", id));
+		assertFalse(striped.agentState.containsKey(id));
+		striped.delete("value", id);
+		assertFalse(striped.agentState.containsKey(id));
+		striped.change("value", id, 1);
+		striped.incrementTime();
+		assertEquals(1, striped.get("value", id));
+	}
+
+}
@@ -0,0 +1,192 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.environment.DoubleStateKey;
+import uk.ac.imperial.presage2.core.environment.IntStateKey;
+import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
+import uk.ac.imperial.presage2.core.environment.StateKey;
+import uk.ac.imperial.presage2.core.environment.StateTransformer;
+import uk.ac.imperial.presage2.util.location.Location;
+import uk.ac.imperial.presage2.util.location.LocationService;
+
+public class TypedSharedStateTest {
+
+	final IntStateKey counter = new IntStateKey("test.counter");
+	final DoubleStateKey range = new DoubleStateKey("test.range");
+	final StateKey<String> label = new StateKey<String>("test.label",
+			String.class);
+
+	@Test
+	public void testTypedAccess() {
+		MappedSharedState state = new MappedSharedState();
+		final int agents = 3000;
+		UUID[] ids = new UUID[agents];
+		int[] slots = new int[agents];
+		for (int i = 0; i < agents; i++) {
+			ids[i] = UUID.randomUUID();
+			slots[i] = state.getSlot(ids[i]);
+			assertEquals(slots[i], state.getSlot(ids[i]));
+			assertFalse(state.has(counter, slots[i]));
+			state.changeInt(counter, slots[i], i);
+			state.changeDouble(range, slots[i], i / 2.0);
+			state.change(label, slots[i], "agent" + i);
+		}
+		// changes are not visible until the next time slice
+		assertFalse(state.has(counter, slots[0]));
+		assertNull(state.get(label, slots[0]));
+		try {
+			state.getInt(counter, slots[0]);
+			fail();
+		} catch (SharedStateAccessException e) {
+		}
+
+		state.incrementTime();
+		for (int i = 0; i < agents; i++) {
+			assertEquals(i, state.getInt(counter, slots[i]));
+			assertEquals(i / 2.0, state.getDouble(range, slots[i]), 0);
+			assertEquals("agent" + i, state.get(label, slots[i]));
+			// typed state is also visible by name
+			assertEquals(i, state.get("test.counter", ids[i]));
+			assertEquals(i / 2.0, state.get("test.range", ids[i]));
+		}
+
+		// changes by name go to the typed state
+		state.change("test.counter", ids[1], 42);
+		state.incrementTime();
+		assertEquals(42, state.getInt(counter, slots[1]));
+	}
+
+	@Test
+	public void testExistingStateMovedToKey() {
+		MappedSharedState state = new MappedSharedState();
+		UUID id = UUID.randomUUID();
+		state.create("test.range", id, 5.0);
+		state.create("test.other", id, 1.0);
+
+		int slot = state.getSlot(id);
+		assertEquals(5.0, state.getDouble(range, slot), 0);
+		assertEquals(5.0, state.get("test.range", id));
+		assertEquals(1.0, state.get("test.other", id));
+
+		try {
+			state.create("test.range", id, 6.0);
+			fail();
+		} catch (SharedStateAccessException e) {
+		}
+		state.delete("test.range", id);
+		assertFalse(state.has(range, slot));
+		assertNull(state.get("test.range", id));
+	}
+
+	@Test(expected = SharedStateAccessException.class)
+	public void testKeyTypeMismatch() {
+		MappedSharedState state = new MappedSharedState();
+		state.has(new DoubleStateKey("test.mismatch"), 0);
+		state.has(new IntStateKey("test.mismatch"), 0);
+	}
+
+	@Test
+	public void testNamedReadDoesNotAssignSlot() {
+		MappedSharedState state = new MappedSharedState();
+		UUID known = UUID.randomUUID();
+		state.changeInt(counter, state.getSlot(known), 1);
+		state.incrementTime();
+		assertEquals(1, state.getParticipantSlots().size());
+
+		UUID unknown = UUID.randomUUID();
+		assertNull(state.get("test.counter", unknown));
+		state.delete("test.counter", unknown);
+		assertEquals(-1, state.getParticipantSlots().lookup(unknown));
+		assertEquals(1, state.getParticipantSlots().size());
+	}
+
+	@Test
+	public void testMixedChangesKeepOrder() {
+		MappedSharedState state = new MappedSharedState();
+		UUID id = UUID.randomUUID();
+		int slot = state.getSlot(id);
+		state.changeInt(counter, slot, 1);
+		state.incrementTime();
+		final StateTransformer add10 = new StateTransformer() {
+			@Override
+			public Serializable transform(Serializable state) {
+				return ((Integer) state) + 10;
+			}
+		};
+
+		// typed then transformer: the transformer sees the typed value
+		state.changeInt(counter, slot, 2);
+		state.change("test.counter", id, add10);
+		state.incrementTime();
+		assertEquals(12, state.getInt(counter, slot));
+
+		// transformer then typed: the typed value wins
+		state.change("test.counter", id, add10);
+		state.changeInt(counter, slot, 5);
+		state.incrementTime();
+		assertEquals(5, state.getInt(counter, slot));
+
+		// transformer, by name, transformer
+		state.change("test.counter", id, add10);
+		state.change("test.counter", id, 7);
+		state.change("test.counter", id, add10);
+		state.incrementTime();
+		assertEquals(17, state.getInt(counter, slot));
+
+		// without transformers typed changes are staged again
+		state.changeInt(counter, slot, 3);
+		assertTrue(state.stateChange.isEmpty());
+		state.incrementTime();
+		assertEquals(3, state.getInt(counter, slot));
+	}
+
+	@Test
+	public void testServiceReadsDoNotAssignSlot() {
+		MappedSharedState state = new MappedSharedState();
+		LocationService locations = new LocationService(state, null);
+		CommunicationRangeService ranges = new CommunicationRangeService(state);
+		UUID known = UUID.randomUUID();
+		state.change(LocationService.LOCATION, state.getSlot(known),
+				new Location(1, 2));
+		state.changeDouble(CommunicationRangeService.COMM_RANGE,
+				state.getSlot(known), 5.0);
+		state.incrementTime();
+		assertEquals(new Location(1, 2), locations.getAgentLocation(known));
+		assertEquals(5.0, ranges.getAgentCommunicationRange(known), 0);
+
+		UUID unknown = UUID.randomUUID();
+		assertNull(locations.getAgentLocation(unknown));
+		try {
+			ranges.getAgentCommunicationRange(unknown);
+			fail();
+		} catch (SharedStateAccessException e) {
+		}
+		assertEquals(-1, state.lookupSlot(unknown));
+		assertEquals(1, state.getParticipantSlots().size());
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.util.random.Random;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+
+public class TestSpatialIndexService {
+
+	@Test
+	public void testRadiusQuery() {
+		final MappedSharedState state = new MappedSharedState();
+		final SpatialIndexService index = new SpatialIndexService(state, 5);
+		final java.util.Random rnd = new java.util.Random();
+		final Map<UUID, Location> locations = new HashMap<UUID, Location>();
+		for (int i = 0; i < 500; i++) {
+			UUID id = Random.randomUUID();
+			Location l = new Location(rnd.nextDouble() * 100 - 50,
+					rnd.nextDouble() * 100 - 50, rnd.nextDouble() * 10);
+			locations.put(id, l);
+			index.update(id, l);
+		}
+		// updates are not visible until the state is committed
+		assertTrue(index.getAgentsWithin(new Location(0, 0, 0), 1000)
+				.isEmpty());
+		state.incrementTime();
+		assertQueriesMatch(index, locations, rnd);
+
+		// move half of the agents and remove some
+		int i = 0;
+		for (UUID id : locations.keySet().toArray(new UUID[0])) {
+			if (i % 2 == 0) {
+				Location l = new Location(rnd.nextDouble() * 100 - 50,
+						rnd.nextDouble() * 100 - 50, rnd.nextDouble() * 10);
+				locations.put(id, l);
+				index.update(id, l);
+			} else if (i % 7 == 0) {
+				locations.remove(id);
+				index.remove(id);
+			}
+			i++;
+		}
+		state.incrementTime();
+		assertQueriesMatch(index, locations, rnd);
+	}
+
+	@Test
+	public void testDeregisteredParticipantsAreRemoved() {
+		final MappedSharedState state = new MappedSharedState();
+		final SpatialIndexService index = new SpatialIndexService(state, 5);
+		final UUID stays = Random.randomUUID();
+		final UUID leaves = Random.randomUUID();
+		index.update(stays, new Location(1, 1));
+		index.update(leaves, new Location(2, 2));
+		state.incrementTime();
+		assertEquals(2, index.getAgentsWithin(new Location(0, 0), 10).size());
+
+		index.deregisterParticipant(leaves);
+		// removing a participant which was never indexed does not give it a
+		// slot
+		final UUID unknown = Random.randomUUID();
+		index.deregisterParticipant(unknown);
+		state.incrementTime();
+		Map<UUID, Location> nearby = index.getAgentsWithin(new Location(0, 0),
+				10);
+		assertEquals(1, nearby.size());
+		assertTrue(nearby.containsKey(stays));
+		assertNull(index.getLocation(leaves));
+		assertEquals(-1, state.getParticipantSlots().lookup(unknown));
+	}
+
+	private void assertQueriesMatch(SpatialIndexService index,
+			Map<UUID, Location> locations, java.util.Random rnd) {
+		for (int q = 0; q < 50; q++) {
+			Location centre = new Location(rnd.nextDouble() * 100 - 50,
+					rnd.nextDouble() * 100 - 50, rnd.nextDouble() * 10);
+			double radius = rnd.nextDouble() * (q < 45 ? 15 : 200);
+			Map<UUID, Location> expected = new HashMap<UUID, Location>();
+			for (Map.Entry<UUID, Location> e : locations.entrySet()) {
+				if (centre.distanceTo(e.getValue()) <= radius)
+					expected.put(e.getKey(), e.getValue());
+			}
+			assertEquals(expected, index.getAgentsWithin(centre, radius));
+		}
+		for (Map.Entry<UUID, Location> e : locations.entrySet()) {
+			assertSame(e.getValue(), index.getLocation(e.getKey()));
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.util.random.Random;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+
+public class TestSpatialQueryService {
+
+	final java.util.Random rnd = new java.util.Random();
+
+	Location randomLocation() {
+		return new Location(rnd.nextDouble() * 100, rnd.nextDouble() * 100,
+				rnd.nextInt(3) * 5.0);
+	}
+
+	@Test
+	public void testQueries() {
+		final MappedSharedState state = new MappedSharedState();
+		final SpatialQueryService query = new SpatialQueryService(state, null);
+		final Map<UUID, Location> locations = new HashMap<UUID, Location>();
+		for (int i = 0; i < 1000; i++) {
+			UUID id = Random.randomUUID();
+			Location l = randomLocation();
+			locations.put(id, l);
+			state.create("util.location", id, l);
+		}
+		assertEquals(0, query.size());
+		state.incrementTime();
+		assertEquals(locations.size(), query.size());
+
+		for (int q = 0; q < 50; q++) {
+			final Location centre = randomLocation();
+			final double radius = rnd.nextDouble() * 30;
+
+			Map<UUID, Location> expected = new HashMap<UUID, Location>();
+			for (Map.Entry<UUID, Location> e : locations.entrySet()) {
+				if (centre.distanceTo(e.getValue()) <= radius)
+					expected.put(e.getKey(), e.getValue());
+			}
+			assertEquals(expected, query.getAgentsWithin(centre, radius));
+
+			final Location min = randomLocation();
+			final Location max = new Location(min.getX() + 20,
+					min.getY() + 30, min.getZ() + 5);
+			expected.clear();
+			Map<UUID, Location> expectedInRange = new HashMap<UUID, Location>();
+			for (Map.Entry<UUID, Location> e : locations.entrySet()) {
+				Location l = e.getValue();
+				if (l.getX() >= min.getX() && l.getX() <= max.getX()
+						&& l.getY() >= min.getY() && l.getY() <= max.getY()
+						&& l.getZ() >= min.getZ() && l.getZ() <= max.getZ()) {
+					expected.put(e.getKey(), l);
+					if (centre.distanceTo(l) <= radius)
+						expectedInRange.put(e.getKey(), l);
+				}
+			}
+			assertEquals(expected, query.getAgentsInBox(min, max));
+			assertEquals(expectedInRange,
+					query.getAgentsInBox(min, max, centre, radius));
+
+			final int k = 1 + rnd.nextInt(20);
+			List<Double> expectedDistances = new ArrayList<Double>();
+			for (Location l : locations.values()) {
+				expectedDistances.add(centre.distanceTo(l));
+			}
+			Collections.sort(expectedDistances);
+			List<Double> distances = new ArrayList<Double>();
+			for (Location l : query.getNearest(centre, k).values()) {
+				distances.add(centre.distanceTo(l));
+			}
+			assertEquals(expectedDistances.subList(0, k), distances);
+		}
+	}
+
+	@Test
+	public void testNearestWithinRange() {
+		final MappedSharedState state = new MappedSharedState();
+		final SpatialQueryService query = new SpatialQueryService(state, null);
+		final UUID me = Random.randomUUID();
+		final Location myLoc = new Location(0, 0);
+		state.create("util.location", me, myLoc);
+		final List<UUID> ids = new ArrayList<UUID>();
+		final Map<UUID, Location> locations = new HashMap<UUID, Location>();
+		for (int i = 1; i <= 10; i++) {
+			UUID id = Random.randomUUID();
+			ids.add(id);
+			locations.put(id, new Location(i, 0));
+			state.create("util.location", id, locations.get(id));
+		}
+		state.incrementTime();
+
+		Map<UUID, Location> nearest = query.getNearest(myLoc, 5, 3.5, me);
+		assertEquals(ids.subList(0, 3), new ArrayList<UUID>(nearest.keySet()));
+
+		nearest = query.getNearest(myLoc, 4, Double.POSITIVE_INFINITY, me);
+		assertEquals(ids.subList(0, 4), new ArrayList<UUID>(nearest.keySet()));
+
+		// moves are seen after the next commit
+		state.change("util.location", ids.get(9), new Location(0.5, 0));
+		assertFalse(query.getNearest(myLoc, 1, 1, me).containsKey(ids.get(9)));
+		state.incrementTime();
+		assertEquals(Collections.singletonList(ids.get(9)),
+				new ArrayList<UUID>(query.getNearest(myLoc, 1, 1, me).keySet()));
+	}
+
+	@Test
+	public void testDeregisteredAndLargeK() {
+		final MappedSharedState state = new MappedSharedState();
+		final SpatialQueryService query = new SpatialQueryService(state, null);
+		final UUID stays = Random.randomUUID();
+		final UUID leaves = Random.randomUUID();
+		state.create("util.location", stays, new Location(1, 0));
+		state.create("util.location", leaves, new Location(2, 0));
+		state.incrementTime();
+		assertEquals(2, query.size());
+
+		query.deregisterParticipant(leaves);
+		state.incrementTime();
+		assertEquals(1, query.size());
+		Map<UUID, Location> nearest = query.getNearest(new Location(0, 0),
+				Integer.MAX_VALUE);
+		assertEquals(Collections.singleton(stays), nearest.keySet());
+	}
+
+}
@@ -0,0 +1,99 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.location.area;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.util.random.Random;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.location.Cell;
+import uk.ac.imperial.presage2.util.location.Location;
+
+public class TestAreaService {
+
+	@Test
+	public void testCellsCommitWithState() {
+		final MappedSharedState state = new MappedSharedState();
+		final AreaService area = new AreaService(state, new Area(10, 10, 0));
+		final UUID a = Random.randomUUID();
+		final UUID b = Random.randomUUID();
+
+		assertFalse(area.isCellArea());
+		area.addToCell(1, 2, 0, a);
+		area.addToCell(1, 2, 0, b);
+		assertTrue(area.isCellArea());
+		// not visible until the state is committed
+		assertEquals(0, area.getCellCount(1, 2, 0));
+		state.incrementTime();
+		assertEquals(2, area.getCellCount(1, 2, 0));
+		assertTrue(area.getCell(1, 2, 0).contains(a));
+		assertTrue(area.getCell(1, 2, 0).contains(b));
+
+		area.removeFromCell(1, 2, 0, a);
+		area.addToCell(10, 10, 0, a);
+		assertEquals(2, area.getCellCount(1, 2, 0));
+		state.incrementTime();
+		assertEquals(1, area.getCellCount(1, 2, 0));
+		assertFalse(area.getCell(1, 2, 0).contains(a));
+		assertTrue(area.getCell(10, 10, 0).contains(a));
+
+		try {
+			area.getCell(11, 0, 0);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testAgentsInCells() {
+		final MappedSharedState state = new MappedSharedState();
+		final AreaService area = new AreaService(state, new Area(50, 40, 2));
+		final java.util.Random rnd = new java.util.Random();
+		final Map<UUID, Cell> cells = new HashMap<UUID, Cell>();
+		for (int i = 0; i < 500; i++) {
+			UUID id = Random.randomUUID();
+			Cell c = new Cell(rnd.nextInt(51), rnd.nextInt(41), rnd.nextInt(3));
+			cells.put(id, c);
+			area.addToCell((int) c.getX(), (int) c.getY(), (int) c.getZ(), id);
+		}
+		state.incrementTime();
+
+		for (int q = 0; q < 50; q++) {
+			final int x0 = rnd.nextInt(60) - 5, y0 = rnd.nextInt(50) - 5, z0 = rnd
+					.nextInt(3) - 1;
+			final int x1 = x0 + rnd.nextInt(20), y1 = y0 + rnd.nextInt(20), z1 = z0
+					+ rnd.nextInt(3);
+			Map<UUID, Location> expected = new HashMap<UUID, Location>();
+			for (Map.Entry<UUID, Cell> e : cells.entrySet()) {
+				Cell c = e.getValue();
+				if (c.getX() >= x0 && c.getX() < x1 && c.getY() >= y0
+						&& c.getY() < y1 && c.getZ() >= z0 && c.getZ() < z1)
+					expected.put(e.getKey(), c);
+			}
+			assertEquals(expected, area.getAgentsInCells(x0, y0, z0, x1, y1, z1));
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.environment.ActionHandlingException;
+import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.simulator.RunnableSimulation;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.util.environment.AbstractEnvironmentModule;
+import uk.ac.imperial.presage2.util.network.codec.MessageCodec;
+import uk.ac.imperial.presage2.util.participant.AbstractParticipant;
+
+public class TestBandwidthConstraint {
+
+	AbstractParticipant p1;
+	AbstractParticipant p2;
+	RunnableSimulation sim;
+	NetworkConnector n1;
+	NetworkConnector n2;
+
+	private void setUp(final NetworkModule network)
+			throws UnavailableServiceException {
+		p1 = new AbstractParticipant(UUID.randomUUID(), "p1") {
+		};
+		p2 = new AbstractParticipant(UUID.randomUUID(), "p2") {
+		};
+		sim = new RunnableSimulation() {
+			@Override
+			public void initialiseScenario(Scenario s) {
+				addModule(new AbstractEnvironmentModule()
+						.addParticipantEnvironmentService(BasicNetworkConnector.class));
+				addModule(network);
+				s.addAgent(p1);
+				s.addAgent(p2);
+			}
+		};
+		sim.initialise();
+		n1 = p1.getEnvironmentService(BasicNetworkConnector.class);
+		n2 = p2.getEnvironmentService(BasicNetworkConnector.class);
+		sim.step();
+	}
+
+	@Test
+	public void testBandwidth() throws UnavailableServiceException,
+			ActionHandlingException {
+		final Message m = new BroadcastMessage(Performative.INFORM,
+				new NetworkAddress(UUID.randomUUID()), 1);
+		final int size = new MessageCodec().encodedSize(m);
+		// room for one message per step
+		setUp(NetworkModule.fullyConnectedNetworkModule().withBandwidth(size,
+				0));
+
+		p1.act(new BroadcastMessage(Performative.INFORM, n1.getAddress(), 1));
+		p1.act(new BroadcastMessage(Performative.INFORM, n1.getAddress(), 1));
+		p1.act(new BroadcastMessage(Performative.INFORM, n1.getAddress(), 1));
+		sim.step();
+		assertEquals(1, n2.getMessages().size());
+		sim.step();
+		assertEquals(2, n2.getMessages().size());
+		sim.step();
+		assertEquals(3, n2.getMessages().size());
+		sim.step();
+		assertEquals(3, n2.getMessages().size());
+
+		BandwidthConstraint bandwidth = sim.getInjector().getInstance(
+				BandwidthConstraint.class);
+		assertEquals(3 * size, bandwidth.getBytesSent(n1.getAddress()));
+		assertEquals(0, bandwidth.getBytesSent(n2.getAddress()));
+	}
+
+	@Test
+	public void testLatency() throws UnavailableServiceException,
+			ActionHandlingException {
+		setUp(NetworkModule.fullyConnectedNetworkModule()
+				.withBandwidth(1000, 2).withDirectInboxes());
+
+		p1.act(new UnicastMessage(Performative.INFORM, n1.getAddress(), n2
+				.getAddress(), 1));
+		sim.step();
+		assertEquals(0, n2.getMessages().size());
+		sim.step();
+		assertEquals(0, n2.getMessages().size());
+		sim.step();
+		assertEquals(1, n2.getMessages().size());
+	}
+
+	@Test
+	public void testUndeliveredAndUnencodableMessages()
+			throws UnavailableServiceException, ActionHandlingException {
+		setUp(NetworkModule.fullyConnectedNetworkModule().withBandwidth(1000,
+				0));
+		BandwidthConstraint bandwidth = sim.getInjector().getInstance(
+				BandwidthConstraint.class);
+
+		// unknown recipient: nothing is sent, so the link is not charged
+		p1.act(new UnicastMessage(Performative.INFORM, n1.getAddress(),
+				new NetworkAddress(UUID.randomUUID()), 1));
+		assertEquals(0, bandwidth.getBytesSent(n1.getAddress()));
+
+		// payload without a codec is delivered without charging the link
+		p1.act(new UnicastMessage(Performative.INFORM, n1.getAddress(), n2
+				.getAddress(), 1, new Object()));
+		sim.step();
+		assertEquals(1, n2.getMessages().size());
+		assertEquals(0, bandwidth.getBytesSent(n1.getAddress()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroBandwidth() {
+		NetworkModule.fullyConnectedNetworkModule().withBandwidth(0, 0);
+	}
+
+}
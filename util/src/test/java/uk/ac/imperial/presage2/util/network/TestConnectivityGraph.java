@@ -0,0 +1,90 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.util.location.Location;
+
+public class TestConnectivityGraph {
+
+	@Test
+	public void testMatchesPairwiseRanges() {
+		final Random rand = new Random(42);
+		final int n = 500;
+		final Location[] locs = new Location[n];
+		final double[] ranges = new double[n];
+		for (int i = 0; i < n; i++) {
+			locs[i] = new Location(rand.nextDouble() * 100,
+					rand.nextDouble() * 100);
+			ranges[i] = rand.nextDouble() * 15;
+		}
+		// some special cases
+		ranges[0] = Double.POSITIVE_INFINITY;
+		ranges[1] = Double.POSITIVE_INFINITY;
+		ranges[2] = -1;
+		locs[3] = null;
+		locs[4] = new Location(locs[5].getX() + 3, locs[5].getY());
+		ranges[4] = 3;
+		ranges[5] = 3;
+
+		final ConnectivityGraph g = ConnectivityGraph.ofRanges(locs, ranges);
+		assertEquals(n, g.size());
+		for (int i = 0; i < n; i++) {
+			int degree = 0;
+			for (int j = 0; j < n; j++) {
+				final boolean expected = locs[i] != null
+						&& locs[j] != null
+						&& locs[i].distanceTo(locs[j]) <= Math.min(ranges[i],
+								ranges[j]);
+				assertEquals(i + "->" + j, expected, g.isConnected(i, j));
+				if (expected)
+					degree++;
+			}
+			assertEquals(degree, g.getDegree(i));
+		}
+		assertTrue(g.isConnected(0, 1));
+		assertTrue(g.isConnected(4, 5));
+		assertFalse(g.isConnected(2, 2));
+		assertEquals(0, g.getDegree(3));
+	}
+
+	@Test
+	public void testRetainNeighbours() {
+		final Location[] locs = { new Location(0, 0), new Location(4, 0),
+				new Location(8, 0) };
+		final double[] ranges = { 5, 5, 5 };
+		final ConnectivityGraph g = ConnectivityGraph.ofRanges(locs, ranges);
+		final BitSet all = new BitSet();
+		all.set(0, 3);
+		g.retainNeighbours(0, all);
+		assertTrue(all.get(0));
+		assertTrue(all.get(1));
+		assertFalse(all.get(2));
+		assertEquals(1, g.getNeighbour(0, 1));
+	}
+
+}
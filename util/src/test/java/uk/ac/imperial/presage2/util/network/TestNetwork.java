@@ -193,4 +193,64 @@ public class TestNetwork {
 
 		assertEquals(3, n1.getConnectedNodes().size());
 	}
+
+	@Test
+	public void testDirectInboxes() throws UnavailableServiceException,
+			ActionHandlingException {
+		final AbstractParticipant p1 = new AbstractParticipant(
+				UUID.randomUUID(), "p1") {
+		};
+		final AbstractParticipant p2 = new AbstractParticipant(
+				UUID.randomUUID(), "p2") {
+		};
+		final AbstractParticipant p3 = new AbstractParticipant(
+				UUID.randomUUID(), "p3") {
+		};
+		RunnableSimulation sim = new RunnableSimulation() {
+			@Override
+			public void initialiseScenario(Scenario s) {
+				addModule(new AbstractEnvironmentModule().addParticipantEnvironmentService(
+						BasicNetworkConnector.class));
+				addModule(NetworkModule.fullyConnectedNetworkModule()
+						.withDirectInboxes());
+				s.addAgent(p1);
+				s.addAgent(p2);
+				s.addAgent(p3);
+			}
+		};
+
+		sim.initialise();
+
+		NetworkConnector n1 = p1
+				.getEnvironmentService(BasicNetworkConnector.class);
+		NetworkConnector n2 = p2
+				.getEnvironmentService(BasicNetworkConnector.class);
+		NetworkConnector n3 = p3
+				.getEnvironmentService(BasicNetworkConnector.class);
+
+		sim.step();
+
+		final Message b1 = new BroadcastMessage(Performative.CFP,
+				n1.getAddress(), 1);
+		p1.act(b1);
+		final Message u1 = new UnicastMessage(Performative.CONFIRM,
+				n1.getAddress(), n2.getAddress(), 1);
+		p1.act(u1);
+
+		// not visible until the next step
+		assertEquals(0, n2.getMessages().size());
+
+		sim.step();
+
+		assertEquals(0, n1.getMessages().size());
+		assertEquals(2, n2.getMessages().size());
+		assertEquals(b1, n2.getMessages().get(0));
+		assertEquals(u1, n2.getMessages().get(1));
+		assertEquals(1, n3.getMessages().size());
+		n2.getMessages().clear();
+
+		sim.step();
+		assertEquals(0, n2.getMessages().size());
+		assertEquals(1, n3.getMessages().size());
+	}
 }
@@ -36,6 +36,7 @@ import uk.ac.imperial.presage2.core.simulator.RunnableSimulation;
 import uk.ac.imperial.presage2.core.simulator.Scenario;
 import uk.ac.imperial.presage2.util.environment.AbstractEnvironmentModule;
 import uk.ac.imperial.presage2.util.location.Location;
+import uk.ac.imperial.presage2.util.location.SpatialIndexService;
 import uk.ac.imperial.presage2.util.participant.AbstractParticipant;
 
 public class TestNetworkConstraints {
@@ -51,6 +52,17 @@ public class TestNetworkConstraints {
 	@Test
 	public void test() throws UnavailableServiceException,
 			ActionHandlingException {
+		runRangeConstraint(false);
+	}
+
+	@Test
+	public void testWithSpatialIndex() throws UnavailableServiceException,
+			ActionHandlingException {
+		runRangeConstraint(true);
+	}
+
+	private void runRangeConstraint(final boolean spatialIndex)
+			throws UnavailableServiceException, ActionHandlingException {
 		final AbstractParticipant p1 = new SituatedTestingAgent("p1",
 				new Location(0, 0), 5);
 		final AbstractParticipant p2 = new SituatedTestingAgent("p2",
@@ -62,8 +74,11 @@ public class TestNetworkConstraints {
 		RunnableSimulation sim = new RunnableSimulation() {
 			@Override
 			public void initialiseScenario(Scenario s) {
-				addModule(new AbstractEnvironmentModule()
-						.addParticipantEnvironmentService(BasicNetworkConnector.class));
+				AbstractEnvironmentModule env = new AbstractEnvironmentModule()
+						.addParticipantEnvironmentService(BasicNetworkConnector.class);
+				if (spatialIndex)
+					env.addGlobalEnvironmentService(SpatialIndexService.class);
+				addModule(env);
 				Set<Class<? extends NetworkConstraint>> constraints = new HashSet<Class<? extends NetworkConstraint>>();
 				constraints.add(NetworkRangeConstraint.class);
 				addModule(NetworkModule.constrainedNetworkModule(constraints));
@@ -129,6 +144,32 @@ public class TestNetworkConstraints {
 		assertEquals(0, n3.getMessages().size());
 		assertEquals(0, n4.getMessages().size());
 
+		// multicast, including to self and out of range
+		MulticastMessage m1 = new MulticastMessage(Performative.INFORM,
+				n2.getAddress(), 1);
+		m1.addRecipient(n1.getAddress());
+		m1.addRecipient(n2.getAddress());
+		m1.addRecipient(n4.getAddress());
+		n2.sendMessage(m1);
+
+		sim.step();
+		assertEquals(1, n1.getMessages().size());
+		assertEquals(1, n2.getMessages().size());
+		assertEquals(0, n3.getMessages().size());
+		assertEquals(0, n4.getMessages().size());
+		n1.getMessages().clear();
+		n2.getMessages().clear();
+
+		// multicast after broadcast from the same sender in one step
+		n2.sendMessage(new BroadcastMessage(Performative.INFORM, n2
+				.getAddress(), 1));
+		n2.sendMessage(m1);
+
+		sim.step();
+		assertEquals(2, n1.getMessages().size());
+		assertEquals(1, n2.getMessages().size());
+		assertEquals(1, n3.getMessages().size());
+		assertEquals(0, n4.getMessages().size());
 	}
 
 	public static class SituatedTestingAgent extends AbstractParticipant {
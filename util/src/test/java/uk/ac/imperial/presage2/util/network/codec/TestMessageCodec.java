@@ -0,0 +1,129 @@
+/**
+ * 	Copyright (C) 2011-2014 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.util.location.Location;
+import uk.ac.imperial.presage2.util.network.BroadcastMessage;
+import uk.ac.imperial.presage2.util.network.Message;
+import uk.ac.imperial.presage2.util.network.MulticastMessage;
+import uk.ac.imperial.presage2.util.network.NetworkAddress;
+import uk.ac.imperial.presage2.util.network.UnicastMessage;
+
+public class TestMessageCodec {
+
+	final NetworkAddress a = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress b = new NetworkAddress(UUID.randomUUID());
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final MessageCodec codec = new MessageCodec();
+
+		UnicastMessage u = new UnicastMessage(Performative.PROPOSE, "offer",
+				5, a, b, "hello");
+		u.setProtocol("auction");
+		u.setConversationKey(UUID.randomUUID());
+		Message d = codec.decode(codec.encode(u));
+		assertTrue(d instanceof UnicastMessage);
+		assertEquals(Performative.PROPOSE, d.getPerformative());
+		assertEquals("offer", d.getType());
+		assertEquals(5, d.getTimestamp());
+		assertEquals(a, d.getFrom());
+		assertEquals(b, ((UnicastMessage) d).getTo());
+		assertEquals("hello", d.getData());
+		assertEquals("auction", d.getProtocol());
+		assertEquals(u.getConversationKey(), d.getConversationKey());
+
+		MulticastMessage m = new MulticastMessage(Performative.INFORM, a, 2,
+				new byte[] { 1, 2, 3 });
+		m.addRecipient(a);
+		m.addRecipient(b);
+		d = codec.decode(codec.encode(m));
+		assertTrue(d instanceof MulticastMessage);
+		assertEquals(m.getTo(), ((MulticastMessage) d).getTo());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) d.getData());
+
+		BroadcastMessage br = new BroadcastMessage(Performative.CFP, a, 1);
+		d = codec.decode(codec.encode(br));
+		assertTrue(d instanceof BroadcastMessage);
+		assertNull(d.getData());
+		assertNull(d.getProtocol());
+		assertNull(d.getConversationKey());
+
+		assertEquals(codec.encode(u).length, codec.encodedSize(u));
+		assertEquals(codec.encode(br).length, codec.encodedSize(br));
+	}
+
+	static class LocationCodec implements PayloadCodec<Location> {
+		@Override
+		public Class<Location> getType() {
+			return Location.class;
+		}
+
+		@Override
+		public void write(Location value, DataOutput out) throws IOException {
+			out.writeDouble(value.getX());
+			out.writeDouble(value.getY());
+			out.writeDouble(value.getZ());
+		}
+
+		@Override
+		public Location read(DataInput in) throws IOException {
+			return new Location(in.readDouble(), in.readDouble(),
+					in.readDouble());
+		}
+	}
+
+	@Test
+	public void testPayloadCodecs() throws IOException {
+		final MessageCodec codec = new MessageCodec();
+		final Message m = new BroadcastMessage(Performative.INFORM, a, 1,
+				new Location(1, 2, 3));
+		try {
+			codec.encode(m);
+			fail("no codec for Location");
+		} catch (IllegalArgumentException e) {
+		}
+		codec.setPayloadCodecs(Collections
+				.<PayloadCodec<?>> singleton(new LocationCodec()));
+		final Message d = codec.decode(codec.encode(m));
+		assertEquals(new Location(1, 2, 3), d.getData());
+
+		try {
+			codec.decode(new byte[] { 9 });
+			fail("invalid message");
+		} catch (IOException e) {
+		}
+	}
+
+}